@@ -0,0 +1,311 @@
+package com.example.android.quakereport;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the app's background work, in place of the single thread AsyncTask work queues on.
+ * <p>
+ * There are three pools: one for stages that mostly wait on the network, with a few threads,
+ * one for parsing, formatting and diffing, with a thread per core, and one for reading rows
+ * back from local files, with a couple of threads that a slow server can never take up. Each
+ * pool takes tasks by priority, then in the order they came: the page the user is looking at
+ * before prefetches, and prefetches before syncs. Tasks already running are never
+ * interrupted for more urgent ones.
+ * <p>
+ * Only {@link #PRIORITY_VISIBLE} work is always accepted. Each pool holds at most
+ * {@link #QUEUE_CAPACITY} other tasks, queued or running; past that the submit methods block
+ * the caller until a task finishes, and the trySubmit ones refuse, for work that is only
+ * worth doing when there is room.
+ */
+final class BackgroundScheduler {
+
+	/**
+	 * Work for what is on screen
+	 */
+	static final int PRIORITY_VISIBLE = 0;
+
+	/**
+	 * Work that only makes later requests quicker
+	 */
+	static final int PRIORITY_PREFETCH = 1;
+
+	/**
+	 * Keeping local data current while nothing is waiting for it
+	 */
+	static final int PRIORITY_SYNC = 2;
+
+	/**
+	 * Background tasks each pool holds, queued or running, before callers are held up
+	 */
+	static final int QUEUE_CAPACITY = 16;
+
+	/**
+	 * Requests in flight at once; the connections are what is waited on, not the threads
+	 */
+	private static final int IO_THREADS = 4;
+
+	/**
+	 * Local reads in flight at once, each a short positional read that blocks on flash
+	 */
+	private static final int DISK_THREADS = 2;
+
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	private static BackgroundScheduler sInstance;
+
+	private final ThreadPoolExecutor mIo;
+
+	private final ThreadPoolExecutor mCpu;
+
+	private final ThreadPoolExecutor mDisk;
+
+	private final Semaphore mIoPermits = new Semaphore(QUEUE_CAPACITY);
+
+	private final Semaphore mCpuPermits = new Semaphore(QUEUE_CAPACITY);
+
+	private final Semaphore mDiskPermits = new Semaphore(QUEUE_CAPACITY);
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Orders tasks of equal priority by arrival
+	 */
+	private final AtomicLong mSequence = new AtomicLong();
+
+	static synchronized BackgroundScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new BackgroundScheduler(IO_THREADS,
+					Runtime.getRuntime().availableProcessors(), DISK_THREADS);
+		}
+		return sInstance;
+	}
+
+	BackgroundScheduler(int ioThreads, int cpuThreads, int diskThreads) {
+		mIo = newPool("io", ioThreads);
+		mCpu = newPool("cpu", cpuThreads);
+		mDisk = newPool("disk", diskThreads);
+	}
+
+	/**
+	 * Run {@code task} on the I/O pool, first waiting for room if it is full and
+	 * {@code priority} isn't {@link #PRIORITY_VISIBLE}. Return null, keeping the interrupt,
+	 * if interrupted while waiting. Only visible work may be submitted from the main thread.
+	 */
+	<T> Future<T> submitIo(int priority, Callable<T> task) {
+		return submit(mIo, mIoPermits, priority, task, true);
+	}
+
+	/**
+	 * Run {@code task} on the I/O pool if there is room, or return null if it is full.
+	 */
+	<T> Future<T> trySubmitIo(int priority, Callable<T> task) {
+		return submit(mIo, mIoPermits, priority, task, false);
+	}
+
+	/**
+	 * Run {@code task} on the CPU pool, as {@link #submitIo} does on the I/O pool.
+	 */
+	<T> Future<T> submitCpu(int priority, Callable<T> task) {
+		return submit(mCpu, mCpuPermits, priority, task, true);
+	}
+
+	/**
+	 * Run {@code task} on the disk pool, as {@link #submitIo} does on the I/O pool.
+	 */
+	<T> Future<T> submitDisk(int priority, Callable<T> task) {
+		return submit(mDisk, mDiskPermits, priority, task, true);
+	}
+
+	/**
+	 * Run {@code task} on the disk pool if there is room, or return null if it is full.
+	 */
+	<T> Future<T> trySubmitDisk(int priority, Callable<T> task) {
+		return submit(mDisk, mDiskPermits, priority, task, false);
+	}
+
+	/**
+	 * Run {@code runnable} on the main thread.
+	 */
+	void postToMain(Runnable runnable) {
+		mMainHandler.post(runnable);
+	}
+
+	/**
+	 * Return an executor for work that must not overlap: its tasks run one at a time on the
+	 * I/O pool, in the order they were submitted, each at its own priority.
+	 */
+	Serial newSerial() {
+		return new Serial();
+	}
+
+	private <T> Future<T> submit(ThreadPoolExecutor pool, Semaphore permits, int priority,
+	                             Callable<T> callable, boolean wait) {
+		boolean bounded = priority != PRIORITY_VISIBLE;
+		if (bounded) {
+			if (wait) {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			} else if (!permits.tryAcquire()) {
+				return null;
+			}
+		}
+		Task<T> task = new Task<>(callable, priority, mSequence.getAndIncrement(),
+				bounded ? permits : null);
+		// Executed rather than submitted, as the pool's own wrapper couldn't be ordered
+		pool.execute(task);
+		return task;
+	}
+
+	private static ThreadPoolExecutor newPool(final String name, int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"quake-" + name + "-" + mCount.incrementAndGet());
+						// Below the main thread, as AsyncTask threads are
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * A task ordered by priority and then arrival, which gives its queue slot back once it
+	 * has run or been cancelled
+	 */
+	private static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+		final int priority;
+		final long sequence;
+		final Semaphore permits;
+
+		Task(Callable<T> callable, int priority, long sequence, Semaphore permits) {
+			super(callable);
+			this.priority = priority;
+			this.sequence = sequence;
+			this.permits = permits;
+		}
+
+		@Override
+		protected void done() {
+			if (permits != null) {
+				permits.release();
+			}
+		}
+
+		@Override
+		public int compareTo(Task<?> other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Runs its tasks one after another; see {@link #newSerial()}
+	 */
+	final class Serial {
+		private final Queue<Task<?>> mPending = new ArrayDeque<>();
+
+		/**
+		 * Task handed to the pool and not yet done, or null if there is none
+		 */
+		private Task<?> mCurrent;
+
+		/**
+		 * Run {@code task} once every task submitted before it has finished.
+		 */
+		synchronized <T> Future<T> submit(int priority, Callable<T> task) {
+			SerialTask<T> serialTask = new SerialTask<>(task, priority);
+			mPending.add(serialTask);
+			if (mCurrent == null) {
+				next();
+			}
+			return serialTask;
+		}
+
+		/**
+		 * Hand the next task to the pool once {@code task} is done, unless that already
+		 * happened.
+		 */
+		private synchronized void advance(Task<?> task) {
+			if (mCurrent == task) {
+				next();
+			}
+		}
+
+		private synchronized void next() {
+			Task<?> task;
+			do {
+				task = mPending.poll();
+			} while (task != null && task.isCancelled());
+			mCurrent = task;
+			if (task != null) {
+				mIo.execute(task);
+			}
+		}
+
+		/**
+		 * A task that moves its lane on once done, whether it ran or was cancelled before it
+		 * could, even while waiting in the pool's queue
+		 */
+		private final class SerialTask<T> extends Task<T> {
+			/**
+			 * Thread running the task, or null if it hasn't started
+			 */
+			private volatile Thread mRunner;
+
+			SerialTask(Callable<T> callable, int priority) {
+				super(callable, priority, mSequence.getAndIncrement(), null);
+			}
+
+			@Override
+			public void run() {
+				mRunner = Thread.currentThread();
+				try {
+					super.run();
+				} finally {
+					if (isCancelled()) {
+						// Done before its callable returned, which the lane waited for
+						advance(this);
+					}
+				}
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				Thread runner = mRunner;
+				// Cancelled from another thread while running, the next task would overlap
+				// it; run() moves the lane on instead once the callable returns
+				if (runner == null || runner == Thread.currentThread()) {
+					advance(this);
+				}
+			}
+		}
+	}
+}
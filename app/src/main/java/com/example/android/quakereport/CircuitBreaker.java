@@ -0,0 +1,85 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests to USGS for a while once enough of them have failed in a row, so callers
+ * fall back to the data they already have at once rather than each waiting out its own
+ * timeouts. Once the pause is over, a single request is let through; if it succeeds requests
+ * flow again, and if it fails the pause starts over.
+ */
+final class CircuitBreaker {
+
+	/**
+	 * Thrown instead of sending a request while the breaker is open
+	 */
+	static final class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException(String host) {
+			super("Not contacting " + host + " while its requests fail");
+		}
+	}
+
+	private final int mFailureThreshold;
+
+	private final long mOpenNanos;
+
+	private int mFailures;
+
+	private boolean mOpen;
+
+	private long mOpenUntil;
+
+	/**
+	 * Whether the request let through to test recovery is in flight
+	 */
+	private boolean mProbing;
+
+	CircuitBreaker(int failureThreshold, long openMillis) {
+		mFailureThreshold = failureThreshold;
+		mOpenNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * Return whether a request may be sent now. Once the pause is over this is true for one
+	 * caller only, whose request must then be reported like any other.
+	 */
+	synchronized boolean allowRequest() {
+		if (!mOpen) {
+			return true;
+		}
+		if (mProbing || System.nanoTime() - mOpenUntil < 0) {
+			return false;
+		}
+		mProbing = true;
+		return true;
+	}
+
+	synchronized boolean isOpen() {
+		return mOpen;
+	}
+
+	synchronized void onSuccess() {
+		mFailures = 0;
+		mOpen = false;
+		mProbing = false;
+	}
+
+	synchronized void onFailure() {
+		mFailures++;
+		if (mProbing || mFailures >= mFailureThreshold) {
+			mOpen = true;
+			mProbing = false;
+			mOpenUntil = System.nanoTime() + mOpenNanos;
+		}
+	}
+
+	/**
+	 * Report a request given up on by its caller, which says nothing about the server.
+	 */
+	synchronized void onAbandoned() {
+		mProbing = false;
+	}
+}
@@ -1,16 +1,60 @@
 package com.example.android.quakereport;
 
 public class Earthquake {
+	private String mId;
 	private double mMagnitude;
 	private String mPlace;
 	private long mDateAndTime;
 	private String mUrl;
+	private double mLongitude;
+	private double mLatitude;
+	private double mDepth;
+	private long mUpdated;
+	private boolean mDeleted;
 
 	public Earthquake(double mag, String place, long dateAndTime, String url) {
+		// USGS event page urls are unique per event, so they do as an id when none is known
+		this(url, mag, place, dateAndTime, url);
+	}
+
+	public Earthquake(String id, double mag, String place, long dateAndTime, String url) {
+		this(id, mag, place, dateAndTime, url, Double.NaN, Double.NaN, Double.NaN);
+	}
+
+	public Earthquake(String id, double mag, String place, long dateAndTime, String url,
+	                  double longitude, double latitude, double depth) {
+		this(id, mag, place, dateAndTime, url, longitude, latitude, depth, dateAndTime);
+	}
+
+	public Earthquake(String id, double mag, String place, long dateAndTime, String url,
+	                  double longitude, double latitude, double depth, long updated) {
+		this.mId = id;
 		this.mMagnitude = mag;
 		this.mPlace = place;
 		this.mDateAndTime = dateAndTime;
 		this.mUrl = url;
+		this.mLongitude = longitude;
+		this.mLatitude = latitude;
+		this.mDepth = depth;
+		this.mUpdated = updated;
+	}
+
+	/**
+	 * Return the record of event {@code id} having been deleted by USGS at {@code updated}.
+	 * Only its id and update time are meaningful.
+	 */
+	static Earthquake deleted(String id, long updated) {
+		Earthquake earthquake = new Earthquake(id, Double.NaN, "", updated, "",
+				Double.NaN, Double.NaN, Double.NaN, updated);
+		earthquake.mDeleted = true;
+		return earthquake;
+	}
+
+	/**
+	 * USGS event id, such as "us10004u1y"
+	 */
+	String getId() {
+		return mId;
 	}
 
 	double getMag() {
@@ -28,4 +72,46 @@ public class Earthquake {
 	public String getUrl() {
 		return mUrl;
 	}
+
+	/**
+	 * Longitude of the epicenter in degrees, or NaN if the feed gave no location
+	 */
+	double getLongitude() {
+		return mLongitude;
+	}
+
+	/**
+	 * Latitude of the epicenter in degrees, or NaN if the feed gave no location
+	 */
+	double getLatitude() {
+		return mLatitude;
+	}
+
+	/**
+	 * Depth of the hypocenter in kilometers, or NaN if unknown
+	 */
+	double getDepth() {
+		return mDepth;
+	}
+
+	/**
+	 * When USGS last revised the event, which is its origin time if the feed didn't say
+	 */
+	long getUpdated() {
+		return mUpdated;
+	}
+
+	/**
+	 * True for an event USGS has withdrawn, which only appears in feeds asking for deletions
+	 */
+	boolean isDeleted() {
+		return mDeleted;
+	}
+
+	/**
+	 * Return true if the epicenter is known.
+	 */
+	boolean hasLocation() {
+		return !Double.isNaN(mLongitude) && !Double.isNaN(mLatitude);
+	}
 }
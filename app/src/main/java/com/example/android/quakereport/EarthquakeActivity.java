@@ -24,31 +24,33 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 @SuppressWarnings("unchecked")
 public class EarthquakeActivity
 		extends AppCompatActivity
-		implements LoaderCallbacks<List<Earthquake>> {
+		implements LoaderCallbacks<EarthquakeListUpdate> {
 
 	private static final String LOG_TAG = EarthquakeActivity.class.getName();
 
 	/**
 	 * Sample JSON response for a USGS query
 	 */
-	private static final String USGS_REQUEST_URL =
+	static final String USGS_REQUEST_URL =
 			"https://earthquake.usgs.gov/fdsnws/event/1/query";
 
 	/**
@@ -57,6 +59,16 @@ public class EarthquakeActivity
 	 */
 	private static final int EARTHQUAKE_LOADER_ID = 1;
 
+	/**
+	 * How many rows from the end of the list the next page is requested
+	 */
+	private static final int PREFETCH_DISTANCE = EarthquakeLoader.PAGE_SIZE / 2;
+
+	/**
+	 * How often the shown earthquakes are refreshed
+	 */
+	private static final long REFRESH_INTERVAL_MILLIS = 5 * 60 * 1000;
+
 	/**
 	 * Adapter for the list of earthquakes
 	 */
@@ -69,26 +81,63 @@ public class EarthquakeActivity
 
 	private View mProgressSpinner;
 
+	private RecyclerView mEarthquakeListView;
+
+	private EarthquakeDensityView mDensityView;
+
+	private final Handler mRefreshHandler = new Handler();
+
+	/**
+	 * Re-fetches the shown rows while the activity is in the foreground
+	 */
+	private final Runnable mRefreshTask = new Runnable() {
+		@Override
+		public void run() {
+			EarthquakeLoader loader = getEarthquakeLoader();
+			if (loader != null) {
+				loader.refresh();
+			}
+			mRefreshHandler.postDelayed(this, REFRESH_INTERVAL_MILLIS);
+		}
+	};
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.earthquake_activity);
+		MetricsActivity.applyPreference(this);
+
+		// Find a reference to the {@link RecyclerView} in the layout
+		mEarthquakeListView = (RecyclerView) findViewById(R.id.list);
+		assert mEarthquakeListView != null;
+		final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+		mEarthquakeListView.setLayoutManager(layoutManager);
+		mEarthquakeListView.setHasFixedSize(true);
+
+		// Create a new adapter that starts out empty. When an earthquake is clicked on, it sends
+		// an intent to a web browser to open a website with more information about it.
+		mAdapter = new EarthquakeAdapter(this, new EarthquakeAdapter.OnEarthquakeClickListener() {
+			@Override
+			public void onEarthquakeClick(EarthquakeDisplayRow currentEarthquake) {
+				// Convert the String URL into a URI object (to pass into the Intent constructor)
+				Uri earthquakeUri = Uri.parse(currentEarthquake.url);
 
-		// Find a reference to the {@link ListView} in the layout
-		ListView earthquakeListView = (ListView) findViewById(R.id.list);
+				// Create a new intent to view the earthquake URI
+				Intent websiteIntent = new Intent(Intent.ACTION_VIEW, earthquakeUri);
 
-		// Create a new adapter that takes an empty list of earthquakes as input
-		mAdapter = new EarthquakeAdapter(this, new ArrayList<Earthquake>());
+				// Send the intent to launch a new activity
+				startActivity(websiteIntent);
+			}
+		});
 
-		// Set the adapter on the {@link ListView}
+		// Set the adapter on the {@link RecyclerView}
 		// so the list can be populated in the user interface
-		assert earthquakeListView != null;
-		earthquakeListView.setAdapter(mAdapter);
+		mEarthquakeListView.setAdapter(mAdapter);
 
 		// empty state
 		mEmptyStateView = (TextView) findViewById(R.id.empty_state_text_view);
-		earthquakeListView.setEmptyView(mEmptyStateView);
+
+		mDensityView = (EarthquakeDensityView) findViewById(R.id.density_map);
 
 		// get a reference to the progress bar
 		mProgressSpinner = findViewById(R.id.loading_spinner);
@@ -101,25 +150,33 @@ public class EarthquakeActivity
 		// Set boolean for whether the host system is connected to the internet or not
 		boolean isConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
 
-		// Set an item click listener on the ListView, which sends an intent to a web browser
-		// to open a website with more information about the selected earthquake.
-		earthquakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-			@Override
-			public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-				// Find the current earthquake that was clicked on
-				Earthquake currentEarthquake = (Earthquake) mAdapter.getItem(position);
-
-				// Convert the String URL into a URI object (to pass into the Intent constructor)
-				assert currentEarthquake != null;
-				Uri earthquakeUri = Uri.parse(currentEarthquake.getUrl());
-
-				// Create a new intent to view the earthquake URI
-				Intent websiteIntent = new Intent(Intent.ACTION_VIEW, earthquakeUri);
+		// Keep the local copy of the feed current from now on, so the next start can use it
+		EarthquakeSyncService.schedule(this);
 
-				// Send the intent to launch a new activity
-				startActivity(websiteIntent);
+		// Read the stored rows around those on screen, and ask for the next page while there
+		// are still a few rows left to scroll through, so it has usually arrived by the time
+		// the user reaches the end of the list.
+		mEarthquakeListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+			@Override
+			public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+				mAdapter.onVisibleRangeChanged(layoutManager.findFirstVisibleItemPosition(),
+						layoutManager.findLastVisibleItemPosition());
+				int totalItemCount = mAdapter.getItemCount();
+				if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition()
+						>= totalItemCount - 1 - PREFETCH_DISTANCE) {
+					EarthquakeLoader loader = getEarthquakeLoader();
+					if (loader != null) {
+						loader.loadNextPage();
+					}
+				}
 			}
 		});
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			// Frame times while scrolling show how smoothly the rows draw
+			mEarthquakeListView.addOnScrollListener(new ScrollFrameTimer());
+		}
+
 		if (isConnected) {
 			// Get a reference to the LoaderManager, in order to interact with loaders.
 			LoaderManager loaderManager = getLoaderManager();
@@ -139,9 +196,27 @@ public class EarthquakeActivity
 		}
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mRefreshHandler.postDelayed(mRefreshTask, REFRESH_INTERVAL_MILLIS);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mRefreshHandler.removeCallbacks(mRefreshTask);
+	}
+
+	private EarthquakeLoader getEarthquakeLoader() {
+		Loader<EarthquakeListUpdate> loader = getLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+		return (EarthquakeLoader) loader;
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.main, menu);
+		menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
 		return true;
 	}
 
@@ -155,6 +230,9 @@ public class EarthquakeActivity
 			Intent settingsIntent = new Intent(this, SettingsActivity.class);
 			startActivity(settingsIntent);
 			return true;
+		} else if (id == R.id.action_metrics) {
+			startActivity(new Intent(this, MetricsActivity.class));
+			return true;
 		}
 
 		// Default behaviour
@@ -162,7 +240,7 @@ public class EarthquakeActivity
 	}
 
 	@Override
-	public Loader<List<Earthquake>> onCreateLoader(int i, Bundle bundle) {
+	public Loader<EarthquakeListUpdate> onCreateLoader(int i, Bundle bundle) {
 		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 		String minMagnitude = sharedPrefs.
 				getString(
@@ -176,19 +254,15 @@ public class EarthquakeActivity
 						getString(R.string.settings_order_by_default)
 				);
 
-		Uri baseUrl = Uri.parse(USGS_REQUEST_URL);
-		Uri.Builder uriBuilder = baseUrl.buildUpon();
+		EarthquakeQuery query = EarthquakeQuery.fromPreferences(minMagnitude, orderBy,
+				Double.parseDouble(getString(R.string.settings_min_magnitude_default)));
 
-		uriBuilder.appendQueryParameter("format", "geojson");
-		uriBuilder.appendQueryParameter("limit", "20");
-		uriBuilder.appendQueryParameter("minmag", minMagnitude);
-		uriBuilder.appendQueryParameter("orderby", orderBy);
-
-		return new EarthquakeLoader(this, uriBuilder.toString());
+		// The loader pages through the query, locally when it can and over the network if not
+		return new EarthquakeLoader(this, USGS_REQUEST_URL, query);
 	}
 
 	@Override
-	public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> earthquakes) {
+	public void onLoadFinished(Loader<EarthquakeListUpdate> loader, EarthquakeListUpdate update) {
 		// Hide progress bar
 		assert mProgressSpinner != null;
 		mProgressSpinner.setVisibility(View.GONE);
@@ -196,14 +270,12 @@ public class EarthquakeActivity
 		// Set empty state {@link TextView}
 		mEmptyStateView.setText(R.string.empty_state_text);
 
-		// Clear the adapter of previous earthquake data
-		mAdapter.clear();
-
-		// If there is a valid list of {@link Earthquake}s, then add them to the adapter's
-		// data set. This will trigger the ListView to update.
-		if (earthquakes != null && !earthquakes.isEmpty()) {
-			mAdapter.addAll(earthquakes);
-		}
+		// Only rows that were inserted, removed or changed since the last delivery get rebound
+		long bindStart = Metrics.start();
+		mAdapter.setRows(update);
+		mDensityView.setTiles(((EarthquakeLoader) loader).getDensityTiles());
+		updateEmptyState();
+		Metrics.stop(Metrics.BIND, bindStart);
 	}
 
 	@Override
@@ -212,5 +284,22 @@ public class EarthquakeActivity
 		Log.v(LOG_TAG, "loaderReset()");
 		// Loader reset, so we can clear out our existing data.
 		mAdapter.clear();
+		mDensityView.setTiles(null);
+	}
+
+	@Override
+	public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+		super.dump(prefix, fd, writer, args);
+		writer.print(MetricsActivity.report());
+	}
+
+	/**
+	 * Show the empty state {@link TextView} instead of the list when there is nothing in it.
+	 */
+	private void updateEmptyState() {
+		boolean empty = mAdapter.getItemCount() == 0;
+		mEmptyStateView.setVisibility(empty ? View.VISIBLE : View.GONE);
+		mEarthquakeListView.setVisibility(empty ? View.GONE : View.VISIBLE);
+		mDensityView.setVisibility(empty ? View.GONE : View.VISIBLE);
 	}
 }
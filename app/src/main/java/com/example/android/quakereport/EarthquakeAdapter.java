@@ -1,155 +1,131 @@
 package com.example.android.quakereport;
 
 import android.content.Context;
-import android.graphics.drawable.GradientDrawable;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.support.v4.content.ContextCompat;
-import android.view.LayoutInflater;
+import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
+/**
+ * Binds pre-formatted {@link EarthquakeDisplayRow}s to list rows. All formatting happens on the
+ * loader thread, so binding only hands the row to its {@link EarthquakeRowView}, which draws it
+ * without any child views to measure and lay out. New results are applied through the
+ * difference the loader computed, so only inserted, removed and changed rows are rebound.
+ * <p>
+ * Rows whose block of the {@link WindowedRows} isn't in memory yet are bound empty, and
+ * rebound once the block has been read.
+ */
+class EarthquakeAdapter extends RecyclerView.Adapter<EarthquakeAdapter.ViewHolder> {
+
+	/**
+	 * Notified when the user taps an earthquake
+	 */
+	interface OnEarthquakeClickListener {
+		void onEarthquakeClick(EarthquakeDisplayRow earthquake);
+	}
 
-class EarthquakeAdapter extends ArrayAdapter {
+	/**
+	 * Payload of rows rebound once read, which only need their content replaced
+	 */
+	private static final Object PAYLOAD_LOADED = new Object();
 
-	private List<Earthquake> mEarthquakesList;
+	private final EarthquakeRowView.Style mRowStyle;
 
+	private final OnEarthquakeClickListener mClickListener;
 
-	EarthquakeAdapter(Context context, List<Earthquake> earthquakes) {
-		super(context, 0, earthquakes);
+	private WindowedRows mEarthquakesList = WindowedRows.EMPTY;
 
-		// Initialize list
-		mEarthquakesList = earthquakes;
+	private final WindowedRows.OnRowsLoadedListener mRowsLoadedListener =
+			new WindowedRows.OnRowsLoadedListener() {
+				@Override
+				public void onRowsLoaded(WindowedRows rows, int start, int count) {
+					if (rows == mEarthquakesList) {
+						notifyItemRangeChanged(start, count, PAYLOAD_LOADED);
+					}
+				}
+			};
 
-	}
+	final class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+		final EarthquakeRowView row;
 
-	@NonNull
-	@Override
-	public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-		// Inflate complex view (3 TextViews) for presenting the quake report details
-		if (convertView == null) {
-			// No views available to recycle
-			convertView = LayoutInflater.from(getContext())
-					.inflate(R.layout.earthquake_list, parent, false);
+		ViewHolder(EarthquakeRowView row) {
+			super(row);
+			this.row = row;
+			row.setOnClickListener(this);
 		}
 
-		// Get earthquake report details from list
-		Earthquake currentQuake = mEarthquakesList.get(position);
-
-		// Get the magnitude value
-		double magnitude = currentQuake.getMag();
-
-		// Format magnitude value to display one point precision
-		DecimalFormat magnitudeFormatter = new DecimalFormat("0.0");
-		String formattedMagnitude = magnitudeFormatter.format(magnitude);
-
-		// Map TextView to earthquake's magnitude
-		TextView magTextView = (TextView) convertView.findViewById(R.id.magnitude_text_view);
-		magTextView.setText(formattedMagnitude);
-
-		// Set the proper background color on the magnitude circle.
-		// Fetch the background from the TextView, which is a GradientDrawable.
-		GradientDrawable magnitudeCircle = (GradientDrawable) magTextView.getBackground();
+		@Override
+		public void onClick(View view) {
+			int position = getAdapterPosition();
+			EarthquakeDisplayRow earthquake = position == RecyclerView.NO_POSITION
+					? null
+					: mEarthquakesList.getIfLoaded(position);
+			if (earthquake != null) {
+				mClickListener.onEarthquakeClick(earthquake);
+			}
+		}
+	}
 
-		// Get the appropriate background color based on the current earthquake magnitude
-		int magnitudeColor = getMagnitudeColor(currentQuake.getMag());
+	EarthquakeAdapter(Context context, OnEarthquakeClickListener clickListener) {
+		mRowStyle = new EarthquakeRowView.Style(context);
+		mClickListener = clickListener;
+	}
 
-		// Set the color on the magnitude circle
-		magnitudeCircle.setColor(magnitudeColor);
+	/**
+	 * Show the rows of {@code update}. Its difference is dispatched when it was computed
+	 * against the rows currently shown; otherwise, such as after a rotation or for a new
+	 * query, the whole list is replaced.
+	 */
+	void setRows(EarthquakeListUpdate update) {
+		WindowedRows rows = update == null ? WindowedRows.EMPTY : update.rows;
+		if (rows == mEarthquakesList) {
+			// Redelivery of what is already shown
+			return;
+		}
+		boolean incremental = update != null
+				&& update.isIncremental()
+				&& update.previousRows == mEarthquakesList;
+		mEarthquakesList = rows;
+		if (incremental) {
+			update.dispatchUpdatesTo(this);
+		} else {
+			notifyDataSetChanged();
+		}
+	}
 
-		// Map location information
-		// Get full location information from earthquake
-		String fullLocation = currentQuake.getPlace();
+	void clear() {
+		mEarthquakesList = WindowedRows.EMPTY;
+		notifyDataSetChanged();
+	}
 
-		// Split fullLocation into primary and secondary location information
-		String primaryLocation = "";
-		String secondaryLocation = "";
-		if (fullLocation.contains("of")) {
-			int splitAtIndex = fullLocation.indexOf("f") + 1;
-			primaryLocation = fullLocation.substring(splitAtIndex, fullLocation.length()).trim();
-			secondaryLocation = fullLocation.substring(0, splitAtIndex).trim();
-		} else {
-			primaryLocation = fullLocation;
-			secondaryLocation = getContext().getString(R.string.near_the);
+	/**
+	 * Have the rows from {@code first} to {@code last} read into memory, and those around
+	 * them, as the list scrolls.
+	 */
+	void onVisibleRangeChanged(int first, int last) {
+		if (first != RecyclerView.NO_POSITION && first < mEarthquakesList.size()) {
+			mEarthquakesList.loadAround(first, last, mRowsLoadedListener);
 		}
+	}
 
-		// Hook {@link TextView} to primary location information
-		TextView primaryLocationTextView = (TextView) convertView
-				.findViewById(R.id.location_primary_text_view);
-		primaryLocationTextView.setText(primaryLocation);
-
-		// Map {@link TextView} to earthquake's location
-		TextView secondaryLocationTextView = (TextView) convertView
-				.findViewById(R.id.location_secondary_text_view);
-		secondaryLocationTextView.setText(secondaryLocation);
-
-		// Map {@link TextView} to earthquake's date
-		// Format unix timestamp to human readable date format
-		// Get date and time information from unix timestamp
-		Date getDateAndTime = new Date(currentQuake.getDateAndTime());
-		// Initialize {@link SimpleDateFormat) with locale date format
-		SimpleDateFormat dateFormatter = new SimpleDateFormat("MMM dd yyyy", Locale.US);
-		// Format date using the formatter
-		String formattedDate = dateFormatter.format(getDateAndTime);
-		// Set the formatted date as text to display
-		TextView dateTextView = (TextView) convertView.findViewById(R.id.date_text_view);
-		dateTextView.setText(formattedDate);
-
-		// Map {@link TextView} to earthquake's time
-		// Initialize {@link SimpleDateFormat) with locale time format
-		SimpleDateFormat timeFormatter = new SimpleDateFormat("h:mm a", Locale.US);
-		// Format time information using the time formatter
-		String formattedTime = timeFormatter.format(getDateAndTime);
-		// Set the formatted date as text to display
-		TextView timeTextView = (TextView) convertView.findViewById(R.id.time_text_view);
-		timeTextView.setText(formattedTime);
-
-		return convertView;
+	@Override
+	public int getItemCount() {
+		return mEarthquakesList.size();
 	}
 
-	private int getMagnitudeColor(double magnitude) {
-		int magAsInteger = (int) Math.floor(magnitude);
-		int magnitudeColorResourceId = 0;
-		switch (magAsInteger) {
-			case 0:
-			case 1:
-				magnitudeColorResourceId = R.color.magnitude1;
-				break;
-			case 2:
-				magnitudeColorResourceId = R.color.magnitude2;
-				break;
-			case 3:
-				magnitudeColorResourceId = R.color.magnitude3;
-				break;
-			case 4:
-				magnitudeColorResourceId = R.color.magnitude4;
-				break;
-			case 5:
-				magnitudeColorResourceId = R.color.magnitude5;
-				break;
-			case 6:
-				magnitudeColorResourceId = R.color.magnitude6;
-				break;
-			case 7:
-				magnitudeColorResourceId = R.color.magnitude7;
-				break;
-			case 8:
-				magnitudeColorResourceId = R.color.magnitude8;
-				break;
-			case 9:
-				magnitudeColorResourceId = R.color.magnitude9;
-				break;
-			default:
-				magnitudeColorResourceId = R.color.magnitude10plus;
-				break;
+	@Override
+	public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+		EarthquakeRowView row = new EarthquakeRowView(parent.getContext(), mRowStyle);
+		row.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
+				ViewGroup.LayoutParams.WRAP_CONTENT));
+		return new ViewHolder(row);
+	}
+
+	@Override
+	public void onBindViewHolder(ViewHolder holder, int position) {
+		EarthquakeDisplayRow row = mEarthquakesList.getIfLoaded(position);
+		holder.row.bind(row);
+		if (row == null) {
+			mEarthquakesList.loadAround(position, position, mRowsLoadedListener);
 		}
-		return ContextCompat.getColor(getContext(), magnitudeColorResourceId);
 	}
 }
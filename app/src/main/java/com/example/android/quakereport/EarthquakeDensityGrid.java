@@ -0,0 +1,271 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Epicenters of the events loaded for a query, rasterized into density tiles for
+ * {@link EarthquakeDensityView}.
+ * <p>
+ * Tiles cover the world in the equirectangular projection, so that at zoom level z it is cut
+ * into 2<sup>z</sup> by 2<sup>z</sup> tiles of {@link #TILE_WIDTH} by {@link #TILE_HEIGHT}
+ * pixels and every pixel spans the same angle both ways. A tile is drawn as square bins of
+ * {@link #BIN_PIXELS}: each bin takes the magnitude colour of its strongest event, and is the
+ * more opaque the more events it holds.
+ * <p>
+ * Epicenters are kept in primitive arrays, bucketed by cells of one degree so that a tile
+ * only reads the events it covers. Merging events that are already held updates them in place
+ * and reports only the points that actually changed, so that only the tiles covering them
+ * need drawing again. Merging and rendering may happen on different threads.
+ */
+final class EarthquakeDensityGrid {
+
+	static final int TILE_WIDTH = 256;
+
+	static final int TILE_HEIGHT = TILE_WIDTH / 2;
+
+	static final int BIN_PIXELS = 4;
+
+	static final int MAX_ZOOM = 6;
+
+	private static final int BINS_ACROSS = TILE_WIDTH / BIN_PIXELS;
+
+	private static final int BINS_DOWN = TILE_HEIGHT / BIN_PIXELS;
+
+	private static final int LATITUDE_CELLS = 180;
+
+	private static final int LONGITUDE_CELLS = 360;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Latitudes are kept this far north of the south pole, so that it falls inside the
+	 * bottom row of tiles
+	 */
+	private static final double POLE_MARGIN = 1e-9;
+
+	/**
+	 * Events in one bin that make it fully opaque
+	 */
+	private static final int SATURATION_COUNT = 64;
+
+	/**
+	 * Opacity of a bin holding a single event
+	 */
+	private static final int MIN_ALPHA = 0x70;
+
+	private final int[] mMagnitudeColors;
+
+	private final EarthquakeIdIndex mIds = new EarthquakeIdIndex(INITIAL_CAPACITY);
+
+	private int mSize;
+
+	private double[] mLatitudes = new double[INITIAL_CAPACITY];
+
+	private double[] mLongitudes = new double[INITIAL_CAPACITY];
+
+	private double[] mMagnitudes = new double[INITIAL_CAPACITY];
+
+	/**
+	 * Point numbers in each cell, row by row from the north pole
+	 */
+	private final int[][] mCellPoints = new int[LATITUDE_CELLS * LONGITUDE_CELLS][];
+
+	private final int[] mCellSizes = new int[LATITUDE_CELLS * LONGITUDE_CELLS];
+
+	/**
+	 * @param magnitudeColors colours by {@link EarthquakeFormatter#getMagnitudeBucket}, as
+	 *                        the list rows use
+	 */
+	EarthquakeDensityGrid(int[] magnitudeColors) {
+		if (magnitudeColors.length != EarthquakeFormatter.MAGNITUDE_BUCKETS) {
+			throw new IllegalArgumentException(
+					"Expected " + EarthquakeFormatter.MAGNITUDE_BUCKETS + " colours");
+		}
+		mMagnitudeColors = magnitudeColors.clone();
+	}
+
+	synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Add the located events of {@code earthquakes}, updating those already held, and return
+	 * the latitudes and longitudes, one pair after the other, of every point whose tiles
+	 * changed: those added, those removed and both ends of those moved.
+	 */
+	synchronized double[] merge(List<? extends Earthquake> earthquakes) {
+		double[] changed = new double[earthquakes.size() * 4];
+		int changedLength = 0;
+		for (Earthquake earthquake : earthquakes) {
+			int point = mIds.get(earthquake.getId());
+			boolean located = earthquake.hasLocation() && !earthquake.isDeleted();
+			double latitude = Math.max(-90 + POLE_MARGIN, Math.min(90, earthquake.getLatitude()));
+			double longitude = normalizeLongitude(earthquake.getLongitude());
+			if (point < 0) {
+				if (!located) {
+					continue;
+				}
+				point = mSize++;
+				ensureCapacity(mSize);
+				mIds.put(earthquake.getId(), point);
+			} else if (located
+					&& mLatitudes[point] == latitude
+					&& mLongitudes[point] == longitude
+					&& mMagnitudes[point] == earthquake.getMag()) {
+				continue;
+			} else if (!Double.isNaN(mLatitudes[point])) {
+				changed[changedLength++] = mLatitudes[point];
+				changed[changedLength++] = mLongitudes[point];
+				removeFromCell(point);
+			}
+
+			if (located) {
+				mLatitudes[point] = latitude;
+				mLongitudes[point] = longitude;
+				mMagnitudes[point] = earthquake.getMag();
+				addToCell(point);
+				changed[changedLength++] = mLatitudes[point];
+				changed[changedLength++] = mLongitudes[point];
+			} else {
+				// Withdrawn, or no longer located; the point number stays with its id
+				mLatitudes[point] = Double.NaN;
+				mLongitudes[point] = Double.NaN;
+			}
+		}
+		return Arrays.copyOf(changed, changedLength);
+	}
+
+	/**
+	 * Return the ARGB pixels of tile {@code x}, {@code y} of zoom level {@code zoom}, row by
+	 * row from its north-west corner.
+	 */
+	int[] render(int zoom, int x, int y) {
+		int tiles = 1 << zoom;
+		double longitudeSpan = 360.0 / tiles;
+		double latitudeSpan = 180.0 / tiles;
+		double west = -180 + x * longitudeSpan;
+		double north = 90 - y * latitudeSpan;
+		double binsPerDegree = BINS_ACROSS / longitudeSpan;
+
+		int[] counts = new int[BINS_ACROSS * BINS_DOWN];
+		double[] strongest = new double[BINS_ACROSS * BINS_DOWN];
+		synchronized (this) {
+			int firstRow = latitudeCell(north);
+			int lastRow = latitudeCell(north - latitudeSpan);
+			int firstColumn = longitudeCell(west);
+			int lastColumn = longitudeCell(west + longitudeSpan);
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					int cell = row * LONGITUDE_CELLS + column;
+					int[] points = mCellPoints[cell];
+					for (int i = 0; i < mCellSizes[cell]; i++) {
+						int point = points[i];
+						int binX = (int) Math.floor((mLongitudes[point] - west) * binsPerDegree);
+						int binY = (int) Math.floor((north - mLatitudes[point]) * binsPerDegree);
+						if (binX < 0 || binX >= BINS_ACROSS || binY < 0 || binY >= BINS_DOWN) {
+							continue;
+						}
+						int bin = binY * BINS_ACROSS + binX;
+						if (counts[bin]++ == 0 || mMagnitudes[point] > strongest[bin]) {
+							strongest[bin] = mMagnitudes[point];
+						}
+					}
+				}
+			}
+		}
+
+		int[] pixels = new int[TILE_WIDTH * TILE_HEIGHT];
+		for (int bin = 0; bin < counts.length; bin++) {
+			if (counts[bin] == 0) {
+				continue;
+			}
+			int color = mMagnitudeColors[EarthquakeFormatter.getMagnitudeBucket(strongest[bin])];
+			int pixel = alpha(counts[bin]) << 24 | color & 0xffffff;
+			int left = bin % BINS_ACROSS * BIN_PIXELS;
+			int top = bin / BINS_ACROSS * BIN_PIXELS;
+			for (int row = top; row < top + BIN_PIXELS; row++) {
+				Arrays.fill(pixels, row * TILE_WIDTH + left, row * TILE_WIDTH + left + BIN_PIXELS,
+						pixel);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Return the column of the zoom level {@code zoom} tile holding {@code longitude}.
+	 */
+	static int tileX(int zoom, double longitude) {
+		int tiles = 1 << zoom;
+		return Math.max(0, Math.min(tiles - 1, (int) Math.floor((longitude + 180) / 360 * tiles)));
+	}
+
+	/**
+	 * Return the row of the zoom level {@code zoom} tile holding {@code latitude}.
+	 */
+	static int tileY(int zoom, double latitude) {
+		int tiles = 1 << zoom;
+		return Math.max(0, Math.min(tiles - 1, (int) Math.floor((90 - latitude) / 180 * tiles)));
+	}
+
+	/**
+	 * Return {@code longitude} in [-180, 180), as some feeds run slightly past the
+	 * antimeridian.
+	 */
+	private static double normalizeLongitude(double longitude) {
+		if (longitude >= -180 && longitude < 180) {
+			return longitude;
+		}
+		double normalized = (longitude + 180) % 360;
+		return (normalized < 0 ? normalized + 360 : normalized) - 180;
+	}
+
+	private static int alpha(int count) {
+		double share = Math.log(count) / Math.log(SATURATION_COUNT);
+		return Math.min(0xff, MIN_ALPHA + (int) ((0xff - MIN_ALPHA) * share));
+	}
+
+	private void addToCell(int point) {
+		int cell = cell(mLatitudes[point], mLongitudes[point]);
+		int[] points = mCellPoints[cell];
+		if (points == null) {
+			points = mCellPoints[cell] = new int[4];
+		} else if (mCellSizes[cell] == points.length) {
+			points = mCellPoints[cell] = Arrays.copyOf(points, points.length * 2);
+		}
+		points[mCellSizes[cell]++] = point;
+	}
+
+	private void removeFromCell(int point) {
+		int cell = cell(mLatitudes[point], mLongitudes[point]);
+		int[] points = mCellPoints[cell];
+		for (int i = 0; i < mCellSizes[cell]; i++) {
+			if (points[i] == point) {
+				points[i] = points[--mCellSizes[cell]];
+				return;
+			}
+		}
+	}
+
+	private static int cell(double latitude, double longitude) {
+		return latitudeCell(latitude) * LONGITUDE_CELLS + longitudeCell(longitude);
+	}
+
+	private static int latitudeCell(double latitude) {
+		return Math.max(0, Math.min(LATITUDE_CELLS - 1, (int) Math.floor(90 - latitude)));
+	}
+
+	private static int longitudeCell(double longitude) {
+		return Math.max(0, Math.min(LONGITUDE_CELLS - 1, (int) Math.floor(longitude + 180)));
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= mLatitudes.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, mLatitudes.length * 2);
+		mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+		mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+		mMagnitudes = Arrays.copyOf(mMagnitudes, newCapacity);
+	}
+}
@@ -0,0 +1,206 @@
+package com.example.android.quakereport;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Density tiles of an {@link EarthquakeDensityGrid}, rendered on the CPU pool and kept as
+ * bitmaps. Each zoom level keeps its most recently drawn tiles, and only the most recently
+ * drawn zoom levels are kept at all. Merging events drops just the tiles they fall in, at
+ * every level, which are then rendered again the next time they are asked for. A grid built
+ * up separately, as for a refresh, replaces the whole grid and drops every tile.
+ * <p>
+ * Only events may be merged and grids created off the main thread; everything else happens
+ * on it.
+ */
+final class EarthquakeDensityTiles {
+
+	/**
+	 * Told on the main thread when a tile has been rendered or dropped
+	 */
+	interface OnTilesChangedListener {
+		void onTilesChanged();
+	}
+
+	/**
+	 * Enough to cover a large screen at any zoom level, plus a margin to pan into
+	 */
+	private static final int MAX_TILES_PER_LEVEL = 24;
+
+	private static final int MAX_LEVELS = 2;
+
+	private final int[] mMagnitudeColors;
+
+	/**
+	 * Replaced on the main thread, and read by renders on the CPU pool
+	 */
+	private volatile EarthquakeDensityGrid mGrid;
+
+	private final BackgroundScheduler mScheduler = BackgroundScheduler.getInstance();
+
+	/**
+	 * Tiles by {@link #tileKey}, by zoom level, each in order of use
+	 */
+	private final LinkedHashMap<Integer, LinkedHashMap<Long, Bitmap>> mLevels =
+			new LinkedHashMap<Integer, LinkedHashMap<Long, Bitmap>>(4, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<Integer, LinkedHashMap<Long, Bitmap>> eldest) {
+					return size() > MAX_LEVELS;
+				}
+			};
+
+	/**
+	 * Tiles being rendered, and whether their events changed since they were started
+	 */
+	private final Map<Long, Boolean> mRendering = new HashMap<>();
+
+	private OnTilesChangedListener mListener;
+
+	EarthquakeDensityTiles(int[] magnitudeColors) {
+		mMagnitudeColors = magnitudeColors.clone();
+		mGrid = newGrid();
+	}
+
+	/**
+	 * Return an empty grid to build up and then show with {@link #setGrid}. May be called
+	 * from any thread.
+	 */
+	EarthquakeDensityGrid newGrid() {
+		return new EarthquakeDensityGrid(mMagnitudeColors);
+	}
+
+	/**
+	 * Show {@code grid} in place of the current one, dropping every tile.
+	 */
+	void setGrid(EarthquakeDensityGrid grid) {
+		mGrid = grid;
+		for (Map.Entry<Long, Boolean> rendering : mRendering.entrySet()) {
+			rendering.setValue(true);
+		}
+		mLevels.clear();
+		notifyTilesChanged();
+	}
+
+	/**
+	 * Drop every event and tile.
+	 */
+	void clear() {
+		setGrid(newGrid());
+	}
+
+	void setOnTilesChangedListener(OnTilesChangedListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Return tile {@code x}, {@code y} of zoom level {@code zoom}, or null if it isn't rendered
+	 * yet, in which case the listener is told once it is.
+	 */
+	Bitmap getTile(int zoom, int x, int y) {
+		long key = tileKey(zoom, x, y);
+		LinkedHashMap<Long, Bitmap> level = mLevels.get(zoom);
+		Bitmap tile = level == null ? null : level.get(key);
+		if (tile == null && !mRendering.containsKey(key)) {
+			render(key, zoom, x, y);
+		}
+		return tile;
+	}
+
+	/**
+	 * Add {@code earthquakes} to the grid, and drop the tiles that now look different. May be
+	 * called from any thread.
+	 */
+	void merge(List<? extends Earthquake> earthquakes) {
+		final double[] changed = mGrid.merge(earthquakes);
+		if (changed.length > 0) {
+			mScheduler.postToMain(new Runnable() {
+				@Override
+				public void run() {
+					invalidate(changed);
+				}
+			});
+		}
+	}
+
+	private void invalidate(double[] changed) {
+		for (int zoom = 0; zoom <= EarthquakeDensityGrid.MAX_ZOOM; zoom++) {
+			// Not get(), which would count as a use of the level
+			LinkedHashMap<Long, Bitmap> level = null;
+			for (Map.Entry<Integer, LinkedHashMap<Long, Bitmap>> entry : mLevels.entrySet()) {
+				if (entry.getKey() == zoom) {
+					level = entry.getValue();
+				}
+			}
+			for (int i = 0; i < changed.length; i += 2) {
+				long key = tileKey(zoom, EarthquakeDensityGrid.tileX(zoom, changed[i + 1]),
+						EarthquakeDensityGrid.tileY(zoom, changed[i]));
+				if (level != null) {
+					level.remove(key);
+				}
+				if (mRendering.containsKey(key)) {
+					mRendering.put(key, true);
+				}
+			}
+		}
+		notifyTilesChanged();
+	}
+
+	private void render(final long key, final int zoom, final int x, final int y) {
+		mRendering.put(key, false);
+		final EarthquakeDensityGrid grid = mGrid;
+		mScheduler.submitCpu(BackgroundScheduler.PRIORITY_VISIBLE, new Callable<Void>() {
+			@Override
+			public Void call() {
+				long start = Metrics.start();
+				int[] pixels = grid.render(zoom, x, y);
+				final Bitmap tile = Bitmap.createBitmap(pixels, EarthquakeDensityGrid.TILE_WIDTH,
+						EarthquakeDensityGrid.TILE_HEIGHT, Bitmap.Config.ARGB_8888);
+				Metrics.stop(Metrics.DENSITY_TILE, start);
+				mScheduler.postToMain(new Runnable() {
+					@Override
+					public void run() {
+						onRendered(key, zoom, tile);
+					}
+				});
+				return null;
+			}
+		});
+	}
+
+	private void onRendered(long key, int zoom, Bitmap tile) {
+		Boolean stale = mRendering.remove(key);
+		if (stale == null || stale) {
+			// Drawn from events since changed; the listener asks for it again
+			notifyTilesChanged();
+			return;
+		}
+		LinkedHashMap<Long, Bitmap> level = mLevels.get(zoom);
+		if (level == null) {
+			level = new LinkedHashMap<Long, Bitmap>(MAX_TILES_PER_LEVEL, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
+					return size() > MAX_TILES_PER_LEVEL;
+				}
+			};
+			mLevels.put(zoom, level);
+		}
+		level.put(key, tile);
+		notifyTilesChanged();
+	}
+
+	private void notifyTilesChanged() {
+		if (mListener != null) {
+			mListener.onTilesChanged();
+		}
+	}
+
+	private static long tileKey(int zoom, int x, int y) {
+		return (long) zoom << 56 | (long) x << 28 | y;
+	}
+}
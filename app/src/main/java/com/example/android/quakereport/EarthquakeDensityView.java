@@ -0,0 +1,187 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+/**
+ * Overview of where the loaded earthquakes are, drawn from the tiles of an
+ * {@link EarthquakeDensityTiles}. The whole world fits the width to start with; pinching zooms
+ * in up to the deepest tile level and dragging pans. Drawing only places tiles already
+ * rendered in the background, and those still missing are filled in as they arrive.
+ * <p>
+ * Public, as it is inflated from layouts.
+ */
+public final class EarthquakeDensityView extends View
+		implements EarthquakeDensityTiles.OnTilesChangedListener {
+
+	/**
+	 * Tiles are never drawn more than this much larger than they were rendered
+	 */
+	private static final float MAX_MAGNIFICATION = 2;
+
+	private final ScaleGestureDetector mScaleDetector;
+
+	private final GestureDetector mPanDetector;
+
+	/**
+	 * Tiles are scaled without filtering, keeping the bins sharp
+	 */
+	private final Paint mTilePaint = new Paint();
+
+	private final RectF mTileRect = new RectF();
+
+	private EarthquakeDensityTiles mTiles;
+
+	/**
+	 * Width of the world drawn, as a multiple of the view's width
+	 */
+	private float mScale = 1;
+
+	/**
+	 * Position in the world drawn of the view's top left corner, in pixels
+	 */
+	private float mOffsetX;
+
+	private float mOffsetY;
+
+	public EarthquakeDensityView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mScaleDetector = new ScaleGestureDetector(context,
+				new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+					@Override
+					public boolean onScale(ScaleGestureDetector detector) {
+						zoomBy(detector.getScaleFactor(), detector.getFocusX(),
+								detector.getFocusY());
+						return true;
+					}
+				});
+		mPanDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			@Override
+			public boolean onDown(MotionEvent event) {
+				return true;
+			}
+
+			@Override
+			public boolean onScroll(MotionEvent first, MotionEvent current, float distanceX,
+			                        float distanceY) {
+				mOffsetX += distanceX;
+				mOffsetY += distanceY;
+				clampOffsets();
+				invalidate();
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Draw the tiles of {@code tiles}, or nothing if null.
+	 */
+	void setTiles(EarthquakeDensityTiles tiles) {
+		if (tiles == mTiles) {
+			return;
+		}
+		if (mTiles != null) {
+			mTiles.setOnTilesChangedListener(null);
+		}
+		mTiles = tiles;
+		if (tiles != null) {
+			tiles.setOnTilesChangedListener(this);
+		}
+		invalidate();
+	}
+
+	@Override
+	public void onTilesChanged() {
+		invalidate();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		boolean handled = mScaleDetector.onTouchEvent(event);
+		if (!mScaleDetector.isInProgress()) {
+			handled |= mPanDetector.onTouchEvent(event);
+		}
+		return handled || super.onTouchEvent(event);
+	}
+
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		clampOffsets();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mTiles == null || getWidth() == 0) {
+			return;
+		}
+		float worldWidth = getWidth() * mScale;
+		int zoom = zoomLevel(worldWidth);
+		int tiles = 1 << zoom;
+		float tileWidth = worldWidth / tiles;
+		float tileHeight = tileWidth / 2;
+
+		int firstX = Math.max(0, (int) Math.floor(mOffsetX / tileWidth));
+		int lastX = Math.min(tiles - 1, (int) Math.floor((mOffsetX + getWidth()) / tileWidth));
+		int firstY = Math.max(0, (int) Math.floor(mOffsetY / tileHeight));
+		int lastY = Math.min(tiles - 1, (int) Math.floor((mOffsetY + getHeight()) / tileHeight));
+		for (int y = firstY; y <= lastY; y++) {
+			for (int x = firstX; x <= lastX; x++) {
+				Bitmap tile = mTiles.getTile(zoom, x, y);
+				if (tile != null) {
+					float left = x * tileWidth - mOffsetX;
+					float top = y * tileHeight - mOffsetY;
+					mTileRect.set(left, top, left + tileWidth, top + tileHeight);
+					canvas.drawBitmap(tile, null, mTileRect, mTilePaint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the coarsest zoom level whose tiles are drawn at most {@link #MAX_MAGNIFICATION}
+	 * times larger than rendered when the world is {@code worldWidth} wide.
+	 */
+	private static int zoomLevel(float worldWidth) {
+		float maxTileWidth = EarthquakeDensityGrid.TILE_WIDTH * MAX_MAGNIFICATION;
+		int zoom = 0;
+		while (zoom < EarthquakeDensityGrid.MAX_ZOOM && worldWidth / (1 << zoom) > maxTileWidth) {
+			zoom++;
+		}
+		return zoom;
+	}
+
+	/**
+	 * Scale the world by {@code factor}, keeping the point under the focus where it is.
+	 */
+	private void zoomBy(float factor, float focusX, float focusY) {
+		float maxScale = Math.max(1, EarthquakeDensityGrid.TILE_WIDTH * MAX_MAGNIFICATION
+				* (1 << EarthquakeDensityGrid.MAX_ZOOM) / Math.max(getWidth(), 1));
+		float scale = Math.max(1, Math.min(maxScale, mScale * factor));
+		float change = scale / mScale;
+		mOffsetX = (mOffsetX + focusX) * change - focusX;
+		mOffsetY = (mOffsetY + focusY) * change - focusY;
+		mScale = scale;
+		clampOffsets();
+		invalidate();
+	}
+
+	/**
+	 * Keep the world covering the view, or centered in it where it is smaller.
+	 */
+	private void clampOffsets() {
+		float worldWidth = getWidth() * mScale;
+		float worldHeight = worldWidth / 2;
+		mOffsetX = Math.max(0, Math.min(worldWidth - getWidth(), mOffsetX));
+		mOffsetY = worldHeight <= getHeight()
+				? (worldHeight - getHeight()) / 2
+				: Math.max(0, Math.min(worldHeight - getHeight(), mOffsetY));
+	}
+}
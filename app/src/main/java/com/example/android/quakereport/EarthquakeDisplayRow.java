@@ -0,0 +1,89 @@
+package com.example.android.quakereport;
+
+/**
+ * An {@link Earthquake} with every piece of text and colour its list row shows already worked
+ * out, so binding the row is a matter of copying fields into views.
+ */
+final class EarthquakeDisplayRow {
+
+	/**
+	 * USGS event id, which identifies the row across refreshes
+	 */
+	final String id;
+
+	final String magnitude;
+
+	/**
+	 * Resolved colour of the magnitude circle
+	 */
+	final int magnitudeColor;
+
+	/**
+	 * Region, such as "Volcano, Hawaii"
+	 */
+	final String primaryLocation;
+
+	/**
+	 * Distance from the region, such as "12km SSW of"
+	 */
+	final String secondaryLocation;
+
+	final String date;
+
+	final String time;
+
+	final String url;
+
+	EarthquakeDisplayRow(String id, String magnitude, int magnitudeColor,
+	                     String primaryLocation, String secondaryLocation, String date,
+	                     String time, String url) {
+		this.id = id;
+		this.magnitude = magnitude;
+		this.magnitudeColor = magnitudeColor;
+		this.primaryLocation = primaryLocation;
+		this.secondaryLocation = secondaryLocation;
+		this.date = date;
+		this.time = time;
+		this.url = url;
+	}
+
+	/**
+	 * Return a 64-bit hash of {@link #id}, which tells the rows of different events apart
+	 * without keeping their ids.
+	 */
+	long idKey() {
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Return a hash of everything the row shows, which changes along with
+	 * {@link #hasSameContentAs} but for a rare collision.
+	 */
+	int contentKey() {
+		int hash = magnitudeColor;
+		hash = hash * 31 + magnitude.hashCode();
+		hash = hash * 31 + primaryLocation.hashCode();
+		hash = hash * 31 + secondaryLocation.hashCode();
+		hash = hash * 31 + date.hashCode();
+		hash = hash * 31 + time.hashCode();
+		return hash * 31 + url.hashCode();
+	}
+
+	/**
+	 * Return true if binding {@code other} would show exactly what this row shows.
+	 */
+	boolean hasSameContentAs(EarthquakeDisplayRow other) {
+		return magnitudeColor == other.magnitudeColor
+				&& magnitude.equals(other.magnitude)
+				&& primaryLocation.equals(other.primaryLocation)
+				&& secondaryLocation.equals(other.secondaryLocation)
+				&& date.equals(other.date)
+				&& time.equals(other.time)
+				&& url.equals(other.url);
+	}
+}
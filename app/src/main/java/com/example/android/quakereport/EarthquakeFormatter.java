@@ -0,0 +1,106 @@
+package com.example.android.quakereport;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns {@link Earthquake}s into {@link EarthquakeDisplayRow}s. Meant to run on the loader's
+ * background thread; the formatters it reuses are not thread safe, so each thread needs its
+ * own instance. Colours and strings come already resolved from resources, so formatting
+ * runs on a plain JVM as well.
+ */
+final class EarthquakeFormatter {
+
+	/**
+	 * Number of magnitude circle colours, see {@link #getMagnitudeBucket(double)}
+	 */
+	static final int MAGNITUDE_BUCKETS = 10;
+
+	private static final String LOCATION_SEPARATOR = " of ";
+
+	private final DecimalFormat mMagnitudeFormatter = new DecimalFormat("0.0");
+
+	private final SimpleDateFormat mDateFormatter = new SimpleDateFormat("MMM dd yyyy", Locale.US);
+
+	private final SimpleDateFormat mTimeFormatter = new SimpleDateFormat("h:mm a", Locale.US);
+
+	private final Date mDate = new Date();
+
+	private final int[] mMagnitudeColors;
+
+	private final String mNearThe;
+
+	/**
+	 * @param magnitudeColors one colour per magnitude bucket
+	 * @param nearThe         text shown as the distance when a place has none
+	 */
+	EarthquakeFormatter(int[] magnitudeColors, String nearThe) {
+		if (magnitudeColors.length != MAGNITUDE_BUCKETS) {
+			throw new IllegalArgumentException("Expected " + MAGNITUDE_BUCKETS + " colours");
+		}
+		mMagnitudeColors = magnitudeColors.clone();
+		mNearThe = nearThe;
+	}
+
+	/**
+	 * Return the colour bucket for {@code magnitude}: magnitudes below 2 share the first
+	 * bucket, each whole magnitude up to 9 gets its own, and 10 or more share the last.
+	 */
+	static int getMagnitudeBucket(double magnitude) {
+		int magAsInteger = (int) Math.floor(magnitude);
+		return Math.max(0, Math.min(magAsInteger - 1, MAGNITUDE_BUCKETS - 1));
+	}
+
+	int getMagnitudeColor(double magnitude) {
+		return mMagnitudeColors[getMagnitudeBucket(magnitude)];
+	}
+
+	List<EarthquakeDisplayRow> format(List<Earthquake> earthquakes) {
+		List<EarthquakeDisplayRow> rows = new ArrayList<>(earthquakes.size());
+		for (int i = 0; i < earthquakes.size(); i++) {
+			rows.add(format(earthquakes.get(i)));
+		}
+		return rows;
+	}
+
+	EarthquakeDisplayRow format(Earthquake earthquake) {
+		double magnitude = earthquake.getMag();
+
+		// Split the place into the distance ("12km SSW of") and the region it is measured from
+		String place = earthquake.getPlace();
+		String primaryLocation;
+		String secondaryLocation;
+		int split = locationSplit(place);
+		if (split >= 0) {
+			primaryLocation = place.substring(split).trim();
+			secondaryLocation = place.substring(0, split).trim();
+		} else {
+			primaryLocation = place;
+			secondaryLocation = mNearThe;
+		}
+
+		mDate.setTime(earthquake.getDateAndTime());
+		return new EarthquakeDisplayRow(
+				earthquake.getId(),
+				mMagnitudeFormatter.format(magnitude),
+				getMagnitudeColor(magnitude),
+				primaryLocation,
+				secondaryLocation,
+				mDateFormatter.format(mDate),
+				mTimeFormatter.format(mDate),
+				earthquake.getUrl());
+	}
+
+	/**
+	 * Return where {@code place} divides into the distance ("12km SSW of") and the region,
+	 * or -1 if it names only a region.
+	 */
+	static int locationSplit(String place) {
+		int split = place.indexOf(LOCATION_SEPARATOR);
+		return split < 0 ? -1 : split + LOCATION_SEPARATOR.length() - 1;
+	}
+}
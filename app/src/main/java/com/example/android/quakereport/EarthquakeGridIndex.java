@@ -0,0 +1,284 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the epicenters in an {@link EarthquakeStore}, for "within X km" and
+ * bounding box lookups without a round trip to USGS.
+ * <p>
+ * The globe is cut into a fixed grid of latitude/longitude cells. The rows of each cell are
+ * stored together, cell after cell, in one array with a second array of where each cell
+ * starts, and the coordinates are copied alongside in the same order so a lookup only walks
+ * the few cells it overlaps, reading memory sequentially. Within a cell rows are ordered by
+ * latitude, so only the band of the cell a lookup spans is scanned, found by binary search.
+ * Rows without a location are left out. The index is immutable; a changed store needs a new
+ * one.
+ */
+final class EarthquakeGridIndex {
+
+	static final double DEFAULT_CELL_DEGREES = 1.0;
+
+	/**
+	 * Mean radius of the Earth
+	 */
+	private static final double EARTH_RADIUS_KM = 6371.0088;
+
+	private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+	/**
+	 * Latitudes are ordered at this resolution, so bands are widened by it when searched
+	 */
+	private static final double LATITUDE_RESOLUTION = 1e-6;
+
+	private final double mCellDegrees;
+
+	private final int mLatitudeCells;
+
+	private final int mLongitudeCells;
+
+	/**
+	 * Position in the arrays below where each cell starts, plus the total at the end
+	 */
+	private final int[] mCellStarts;
+
+	private final int[] mRows;
+
+	private final double[] mLatitudes;
+
+	private final double[] mLongitudes;
+
+	private final double[] mCosLatitudes;
+
+	EarthquakeGridIndex(EarthquakeStore store) {
+		this(store, DEFAULT_CELL_DEGREES);
+	}
+
+	EarthquakeGridIndex(EarthquakeStore store, double cellDegrees) {
+		mCellDegrees = cellDegrees;
+		mLatitudeCells = (int) Math.ceil(180 / cellDegrees);
+		mLongitudeCells = (int) Math.ceil(360 / cellDegrees);
+
+		// Count the rows of each cell, then lay the cells out one after the other
+		int size = store.size();
+		int[] cells = new int[size];
+		mCellStarts = new int[mLatitudeCells * mLongitudeCells + 1];
+		int located = 0;
+		for (int row = 0; row < size; row++) {
+			double latitude = store.getLatitude(row);
+			double longitude = store.getLongitude(row);
+			if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				cells[row] = -1;
+			} else {
+				cells[row] = cell(latitudeCell(latitude), longitudeCell(longitude));
+				mCellStarts[cells[row] + 1]++;
+				located++;
+			}
+		}
+		for (int cell = 0; cell < mCellStarts.length - 1; cell++) {
+			mCellStarts[cell + 1] += mCellStarts[cell];
+		}
+
+		// Visiting rows by latitude leaves every cell ordered by latitude. Sort keys hold the
+		// quantized latitude above the row number.
+		long[] byLatitude = new long[located];
+		int count = 0;
+		for (int row = 0; row < size; row++) {
+			if (cells[row] >= 0) {
+				long latitude = Math.round((store.getLatitude(row) + 90) / LATITUDE_RESOLUTION);
+				byLatitude[count++] = latitude << 32 | row;
+			}
+		}
+		Arrays.sort(byLatitude);
+
+		mRows = new int[located];
+		mLatitudes = new double[located];
+		mLongitudes = new double[located];
+		mCosLatitudes = new double[located];
+		int[] next = Arrays.copyOf(mCellStarts, mCellStarts.length - 1);
+		for (long key : byLatitude) {
+			int row = (int) key;
+			int position = next[cells[row]]++;
+			double latitude = store.getLatitude(row);
+			mRows[position] = row;
+			mLatitudes[position] = latitude;
+			mLongitudes[position] = store.getLongitude(row);
+			mCosLatitudes[position] = Math.cos(Math.toRadians(latitude));
+		}
+	}
+
+	/**
+	 * Number of rows with a location
+	 */
+	int size() {
+		return mRows.length;
+	}
+
+	/**
+	 * Return the store rows within {@code radiusKm} of the given point, by great circle
+	 * distance, in ascending row order.
+	 */
+	int[] withinRadius(double latitude, double longitude, double radiusKm) {
+		if (radiusKm < 0 || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return new int[0];
+		}
+		longitude = normalizeLongitude(longitude);
+		double latitudeDelta = radiusKm / KM_PER_DEGREE;
+		double south = latitude - latitudeDelta;
+		double north = latitude + latitudeDelta;
+
+		// Lines of longitude converge towards the poles, so the circle spans more of them
+		double longitudeDelta = 180;
+		if (south > -90 && north < 90) {
+			double cosFarthest = Math.cos(Math.toRadians(Math.max(Math.abs(south),
+					Math.abs(north))));
+			longitudeDelta = Math.min(180, latitudeDelta / cosFarthest);
+		}
+
+		// Haversine, compared before the square root and arcsine that would give the distance
+		double sinHalfRadius = Math.sin(radiusKm / EARTH_RADIUS_KM / 2);
+		double threshold = radiusKm / EARTH_RADIUS_KM >= Math.PI
+				? Double.POSITIVE_INFINITY
+				: sinHalfRadius * sinHalfRadius;
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+
+		Results results = new Results();
+		int firstLatitudeCell = latitudeCell(south);
+		int lastLatitudeCell = latitudeCell(north);
+		int firstLongitudeCell =
+				(int) Math.floor((longitude - longitudeDelta + 180) / mCellDegrees);
+		int longitudeCells = Math.min(mLongitudeCells, (int) Math.floor(
+				(longitude + longitudeDelta + 180) / mCellDegrees) - firstLongitudeCell + 1);
+		for (int band = firstLatitudeCell; band <= lastLatitudeCell; band++) {
+			for (int i = 0; i < longitudeCells; i++) {
+				int cell = cell(band, wrap(firstLongitudeCell + i));
+				int end = mCellStarts[cell + 1];
+				for (int p = firstAtLeast(mCellStarts[cell], end, south);
+				     p < end && mLatitudes[p] <= north + LATITUDE_RESOLUTION; p++) {
+					// Rule out the corners of the cells before any trigonometry
+					double longitudeDistance = Math.abs(mLongitudes[p] - longitude);
+					if (Math.min(longitudeDistance, 360 - longitudeDistance) > longitudeDelta) {
+						continue;
+					}
+					double sinHalfLatitude =
+							Math.sin(Math.toRadians(mLatitudes[p] - latitude) / 2);
+					double sinHalfLongitude =
+							Math.sin(Math.toRadians(mLongitudes[p] - longitude) / 2);
+					double a = sinHalfLatitude * sinHalfLatitude
+							+ cosLatitude * mCosLatitudes[p] * sinHalfLongitude * sinHalfLongitude;
+					if (a <= threshold) {
+						results.add(mRows[p]);
+					}
+				}
+			}
+		}
+		return results.toSortedArray();
+	}
+
+	/**
+	 * Return the store rows inside the given box, in ascending row order. A box whose
+	 * {@code west} edge is east of its {@code east} edge crosses the antimeridian.
+	 */
+	int[] inBoundingBox(double south, double west, double north, double east) {
+		if (!(south <= north)) {
+			return new int[0];
+		}
+		boolean wholeWidth = east - west >= 360;
+		west = normalizeLongitude(west);
+		east = normalizeLongitude(east);
+		boolean crossesAntimeridian = !wholeWidth && west > east;
+
+		int firstLongitudeCell = wholeWidth ? 0 : longitudeCell(west);
+		int lastLongitudeCell = wholeWidth ? mLongitudeCells - 1 : longitudeCell(east);
+		int longitudeCells = crossesAntimeridian
+				? mLongitudeCells - firstLongitudeCell + lastLongitudeCell + 1
+				: lastLongitudeCell - firstLongitudeCell + 1;
+
+		Results results = new Results();
+		int lastLatitudeCell = latitudeCell(north);
+		for (int band = latitudeCell(south); band <= lastLatitudeCell; band++) {
+			for (int i = 0; i < longitudeCells; i++) {
+				int cell = cell(band, wrap(firstLongitudeCell + i));
+				int end = mCellStarts[cell + 1];
+				for (int p = firstAtLeast(mCellStarts[cell], end, south);
+				     p < end && mLatitudes[p] <= north + LATITUDE_RESOLUTION; p++) {
+					double latitude = mLatitudes[p];
+					double longitude = normalizeLongitude(mLongitudes[p]);
+					boolean inLongitude = wholeWidth || (crossesAntimeridian
+							? longitude >= west || longitude <= east
+							: longitude >= west && longitude <= east);
+					if (inLongitude && latitude >= south && latitude <= north) {
+						results.add(mRows[p]);
+					}
+				}
+			}
+		}
+		return results.toSortedArray();
+	}
+
+	/**
+	 * Return the first position in [{@code from}, {@code to}) of a cell whose latitude may be
+	 * {@code latitude} or more.
+	 */
+	private int firstAtLeast(int from, int to, double latitude) {
+		double bound = latitude - LATITUDE_RESOLUTION;
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (mLatitudes[mid] < bound) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+
+	private int cell(int latitudeCell, int longitudeCell) {
+		return latitudeCell * mLongitudeCells + longitudeCell;
+	}
+
+	private int latitudeCell(double latitude) {
+		int cell = (int) Math.floor((latitude + 90) / mCellDegrees);
+		return Math.max(0, Math.min(cell, mLatitudeCells - 1));
+	}
+
+	private int longitudeCell(double longitude) {
+		return wrap((int) Math.floor((normalizeLongitude(longitude) + 180) / mCellDegrees));
+	}
+
+	private int wrap(int longitudeCell) {
+		int wrapped = longitudeCell % mLongitudeCells;
+		return wrapped < 0 ? wrapped + mLongitudeCells : wrapped;
+	}
+
+	/**
+	 * Return {@code longitude} in [-180, 180).
+	 */
+	private static double normalizeLongitude(double longitude) {
+		if (longitude >= -180 && longitude < 180) {
+			return longitude;
+		}
+		double normalized = (longitude + 180) % 360;
+		return (normalized < 0 ? normalized + 360 : normalized) - 180;
+	}
+
+	/**
+	 * Growable list of row numbers
+	 */
+	private static final class Results {
+		private int[] mRows = new int[16];
+		private int mSize;
+
+		void add(int row) {
+			if (mSize == mRows.length) {
+				mRows = Arrays.copyOf(mRows, mSize * 2);
+			}
+			mRows[mSize++] = row;
+		}
+
+		int[] toSortedArray() {
+			int[] rows = Arrays.copyOf(mRows, mSize);
+			Arrays.sort(rows);
+			return rows;
+		}
+	}
+}
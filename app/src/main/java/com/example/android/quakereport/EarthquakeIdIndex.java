@@ -0,0 +1,193 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * Hash index from USGS event ids to ints, such as rows or list positions, for telling which
+ * events of one fetch are already held from another.
+ * <p>
+ * Neither ids nor values are boxed: the characters of the ids are packed into one shared
+ * {@code char[]}, as in {@link EarthquakeStore}, and the table is an {@code int[]} searched by
+ * linear probing and kept at most half full. Each slot holds the hash of its id next to its
+ * entry number, so probing reads one place in memory and compares characters only on a
+ * likely match. Ids in an {@link EarthquakeStore} are looked up in place, without creating
+ * a String per row.
+ */
+final class EarthquakeIdIndex {
+
+	private static final int MIN_SLOTS = 16;
+
+	/**
+	 * Pairs of id hash and entry number plus one, the latter 0 where the slot is empty. The
+	 * number of slots is a power of two.
+	 */
+	private int[] mSlots;
+
+	private int mSize;
+
+	private int[] mValues;
+
+	private int[] mIdStarts;
+
+	private int[] mIdLengths;
+
+	private char[] mIdChars;
+
+	private int mIdCharsUsed;
+
+	EarthquakeIdIndex(int expectedSize) {
+		int capacity = Math.max(expectedSize, 1);
+		mSlots = new int[slotsFor(capacity) * 2];
+		mValues = new int[capacity];
+		mIdStarts = new int[capacity];
+		mIdLengths = new int[capacity];
+		mIdChars = new char[capacity * 12];
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Return the value of {@code id}, or -1 if it isn't held.
+	 */
+	int get(String id) {
+		int entry = find(id, null, 0, id.hashCode());
+		return entry < 0 ? -1 : mValues[entry];
+	}
+
+	/**
+	 * Return the value of the event id of {@code row} in {@code store}, or -1 if it isn't
+	 * held.
+	 */
+	int get(EarthquakeStore store, int row) {
+		int entry = find(null, store, row, store.getIdHash(row));
+		return entry < 0 ? -1 : mValues[entry];
+	}
+
+	/**
+	 * Set the value of {@code id}, which must not be negative, and return the one it
+	 * replaces, or -1 if the id is new.
+	 */
+	int put(String id, int value) {
+		int hash = id.hashCode();
+		int entry = find(id, null, 0, hash);
+		if (entry >= 0) {
+			int previous = mValues[entry];
+			mValues[entry] = value;
+			return previous;
+		}
+		entry = addEntry(hash, value, id.length());
+		id.getChars(0, id.length(), mIdChars, mIdStarts[entry]);
+		return -1;
+	}
+
+	/**
+	 * Set the value of the event id of {@code row} in {@code store}, which must not be
+	 * negative, and return the one it replaces, or -1 if the id is new.
+	 */
+	int put(EarthquakeStore store, int row, int value) {
+		int hash = store.getIdHash(row);
+		int entry = find(null, store, row, hash);
+		if (entry >= 0) {
+			int previous = mValues[entry];
+			mValues[entry] = value;
+			return previous;
+		}
+		entry = addEntry(hash, value, store.getIdLength(row));
+		store.getIdChars(row, mIdChars, mIdStarts[entry]);
+		return -1;
+	}
+
+	/**
+	 * Return the entry of the id given either as {@code id} or as a row of {@code store},
+	 * or -1 if it has none.
+	 */
+	private int find(String id, EarthquakeStore store, int row, int hash) {
+		int mask = mSlots.length / 2 - 1;
+		for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+			int entry = mSlots[slot * 2 + 1] - 1;
+			if (entry < 0) {
+				return -1;
+			}
+			if (mSlots[slot * 2] == hash && (id != null ? idEquals(entry, id)
+					: store.idEquals(row, mIdChars, mIdStarts[entry], mIdLengths[entry]))) {
+				return entry;
+			}
+		}
+	}
+
+	private boolean idEquals(int entry, String id) {
+		int length = mIdLengths[entry];
+		if (length != id.length()) {
+			return false;
+		}
+		int start = mIdStarts[entry];
+		for (int i = 0; i < length; i++) {
+			if (mIdChars[start + i] != id.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add an entry, leaving room for {@code idLength} characters of its id, and return it.
+	 */
+	private int addEntry(int hash, int value, int idLength) {
+		if (mSize == mValues.length) {
+			int capacity = mSize * 2;
+			mValues = Arrays.copyOf(mValues, capacity);
+			mIdStarts = Arrays.copyOf(mIdStarts, capacity);
+			mIdLengths = Arrays.copyOf(mIdLengths, capacity);
+		}
+		if (mIdCharsUsed + idLength > mIdChars.length) {
+			mIdChars = Arrays.copyOf(mIdChars, Math.max(mIdChars.length * 2,
+					mIdCharsUsed + idLength));
+		}
+		int entry = mSize++;
+		mValues[entry] = value;
+		mIdStarts[entry] = mIdCharsUsed;
+		mIdLengths[entry] = idLength;
+		mIdCharsUsed += idLength;
+
+		if (mSize > mSlots.length / 4) {
+			int[] slots = mSlots;
+			mSlots = new int[slots.length * 2];
+			for (int slot = 0; slot < slots.length; slot += 2) {
+				if (slots[slot + 1] != 0) {
+					insert(slots[slot], slots[slot + 1] - 1);
+				}
+			}
+		}
+		insert(hash, entry);
+		return entry;
+	}
+
+	private void insert(int hash, int entry) {
+		int mask = mSlots.length / 2 - 1;
+		int slot = spread(hash) & mask;
+		while (mSlots[slot * 2 + 1] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		mSlots[slot * 2] = hash;
+		mSlots[slot * 2 + 1] = entry + 1;
+	}
+
+	/**
+	 * Mix the bits of a String hash, whose low bits alone differ little between ids that
+	 * share a prefix and count up.
+	 */
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int slotsFor(int size) {
+		int slots = MIN_SLOTS;
+		while (slots < size * 2) {
+			slots *= 2;
+		}
+		return slots;
+	}
+}
@@ -0,0 +1,611 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports catalogs exported from USGS, as CSV or GeoJSON, into an {@link EarthquakeStore}.
+ * Files of millions of events are read through memory maps rather than onto the heap: the
+ * file is cut into chunks at record boundaries, each chunk is mapped and parsed on a thread
+ * of its own, and the parsed chunks are appended to the store in file order by the calling
+ * thread, a batch per chunk. Only a couple of chunks per thread are parsed ahead of the one
+ * being appended, so besides the store the heap holds a bounded number of batches, however
+ * large the file.
+ * <p>
+ * CSV records are lines, so quoted fields must not span lines, which they never do in USGS
+ * exports. GeoJSON features are found by the {@code {"type":"Feature"} each one starts with
+ * in USGS exports; a file laid out otherwise is parsed whole on the calling thread.
+ */
+final class EarthquakeImporter {
+
+	static final int DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * Receives the progress of an import after each batch is appended, on the importing
+	 * thread
+	 */
+	interface Listener {
+		void onProgress(long bytesDone, long bytesTotal, int rows, double rowsPerSecond);
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] FEATURE_START = "{\"type\":\"Feature\"".getBytes(UTF_8);
+
+	/**
+	 * CSV exports have no event page url, but it is the same for every event but its id
+	 */
+	private static final String EVENT_PAGE_PREFIX =
+			"https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+	/**
+	 * Bytes looked through at once for a record boundary
+	 */
+	private static final int SCAN_BYTES = 64 * 1024;
+
+	private static final int CHUNKS_AHEAD_PER_THREAD = 2;
+
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	private final int mParallelism;
+
+	private final int mChunkBytes;
+
+	private final ExecutorService mExecutor;
+
+	EarthquakeImporter() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_BYTES);
+	}
+
+	EarthquakeImporter(int parallelism, int chunkBytes) {
+		mParallelism = parallelism;
+		mChunkBytes = chunkBytes;
+		// A plain pool rather than a ForkJoinPool, which Android only has from API 21. The
+		// chunks are independent and of similar size, so there is no work worth stealing.
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+				IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+		mExecutor = executor;
+	}
+
+	/**
+	 * Append every event in {@code file} to {@code store}, in file order, and return the
+	 * number appended. Deleted events and those missing a magnitude or time are left out.
+	 * {@code listener} may be null.
+	 */
+	int importFile(File file, EarthquakeStore store, Listener listener) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			long start = System.nanoTime();
+			long first = skipWhitespace(channel, 0);
+			if (first == size) {
+				return 0;
+			}
+
+			CsvColumns columns = null;
+			if (byteAt(channel, first) == '{') {
+				first = find(channel, first, FEATURE_START);
+				if (first == size) {
+					return importWholeJson(file, store, listener, start);
+				}
+			} else {
+				long dataStart = endOfLine(channel, first);
+				columns = CsvColumns.of(map(channel, first, dataStart));
+				first = dataStart;
+			}
+
+			int rows = 0;
+			long next = first;
+			ArrayDeque<Future<List<Earthquake>>> parsing = new ArrayDeque<>();
+			ArrayDeque<Long> ends = new ArrayDeque<>();
+			try {
+				while (next < size || !parsing.isEmpty()) {
+					while (next < size && parsing.size() < mParallelism * CHUNKS_AHEAD_PER_THREAD) {
+						long end = next + mChunkBytes >= size
+								? size
+								: boundaryAfter(channel, next + mChunkBytes, columns);
+						parsing.add(submit(channel, next, end, columns));
+						ends.add(end);
+						next = end;
+					}
+					List<Earthquake> batch = await(parsing.poll());
+					for (int i = 0; i < batch.size(); i++) {
+						store.add(batch.get(i));
+					}
+					rows += batch.size();
+					if (listener != null) {
+						listener.onProgress(ends.poll(), size, rows, rowsPerSecond(rows, start));
+					}
+				}
+			} finally {
+				for (Future<List<Earthquake>> future : parsing) {
+					future.cancel(true);
+				}
+			}
+			return rows;
+		} finally {
+			in.close();
+		}
+	}
+
+	private Future<List<Earthquake>> submit(final FileChannel channel, final long start,
+	                                        final long end, final CsvColumns columns) {
+		return mExecutor.submit(new Callable<List<Earthquake>>() {
+			@Override
+			public List<Earthquake> call() throws IOException {
+				ByteBuffer chunk = map(channel, start, end);
+				return columns != null ? columns.parse(chunk) : parseFeatures(chunk);
+			}
+		});
+	}
+
+	private static List<Earthquake> parseFeatures(ByteBuffer chunk) throws IOException {
+		final List<Earthquake> earthquakes = new ArrayList<>();
+		new EarthquakeJsonParser(new ByteBufferInputStream(chunk)).parseFeatures(
+				new EarthquakeJsonParser.Callback() {
+					@Override
+					public void onEarthquake(Earthquake earthquake) {
+						if (!earthquake.isDeleted()) {
+							earthquakes.add(earthquake);
+						}
+					}
+				});
+		return earthquakes;
+	}
+
+	private static int importWholeJson(File file, final EarthquakeStore store,
+	                                   Listener listener, long start) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		final int[] rows = new int[1];
+		try {
+			new EarthquakeJsonParser(in).parse(new EarthquakeJsonParser.Callback() {
+				@Override
+				public void onEarthquake(Earthquake earthquake) {
+					if (!earthquake.isDeleted()) {
+						store.add(earthquake);
+						rows[0]++;
+					}
+				}
+			});
+		} finally {
+			in.close();
+		}
+		if (listener != null) {
+			listener.onProgress(file.length(), file.length(), rows[0],
+					rowsPerSecond(rows[0], start));
+		}
+		return rows[0];
+	}
+
+	private static double rowsPerSecond(int rows, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0 : rows * 1e9 / elapsed;
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while importing earthquakes", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Unable to import earthquakes", cause);
+		}
+	}
+
+	/* Finding record boundaries */
+
+	/**
+	 * Return where the first record starting at or after {@code position} begins, or the
+	 * end of the file if none does.
+	 */
+	private static long boundaryAfter(FileChannel channel, long position, CsvColumns columns)
+			throws IOException {
+		return columns != null
+				? endOfLine(channel, position)
+				: find(channel, position, FEATURE_START);
+	}
+
+	/**
+	 * Return the position just past the next line feed at or after {@code position}, or the
+	 * end of the file.
+	 */
+	private static long endOfLine(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		while (position < size) {
+			ByteBuffer window = map(channel, position, Math.min(size, position + SCAN_BYTES));
+			for (int i = 0; i < window.limit(); i++) {
+				if (window.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += window.limit();
+		}
+		return size;
+	}
+
+	/**
+	 * Return the position of the next occurrence of {@code pattern} at or after
+	 * {@code position}, or the end of the file.
+	 */
+	private static long find(FileChannel channel, long position, byte[] pattern)
+			throws IOException {
+		long size = channel.size();
+		while (position + pattern.length <= size) {
+			ByteBuffer window = map(channel, position, Math.min(size, position + SCAN_BYTES));
+			int last = window.limit() - pattern.length;
+			for (int i = 0; i <= last; i++) {
+				if (matches(window, i, pattern)) {
+					return position + i;
+				}
+			}
+			if (position + window.limit() == size) {
+				break;
+			}
+			// Overlap the windows so a pattern across their border is still seen
+			position += last + 1;
+		}
+		return size;
+	}
+
+	private static boolean matches(ByteBuffer buffer, int index, byte[] pattern) {
+		for (int i = 0; i < pattern.length; i++) {
+			if (buffer.get(index + i) != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long skipWhitespace(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		while (position < size) {
+			byte b = byteAt(channel, position);
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	private static byte byteAt(FileChannel channel, long position) throws IOException {
+		ByteBuffer one = ByteBuffer.allocate(1);
+		if (channel.read(one, position) != 1) {
+			throw new IOException("Unexpected end of file at " + position);
+		}
+		return one.get(0);
+	}
+
+	private static ByteBuffer map(FileChannel channel, long start, long end)
+			throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+	}
+
+	/* CSV */
+
+	/**
+	 * Positions of the columns used in a USGS CSV export, and parsing of its lines
+	 */
+	private static final class CsvColumns {
+		final int count;
+
+		final int time;
+
+		final int latitude;
+
+		final int longitude;
+
+		final int depth;
+
+		final int magnitude;
+
+		final int id;
+
+		final int updated;
+
+		final int place;
+
+		private CsvColumns(List<String> names) throws IOException {
+			count = names.size();
+			time = required(names, "time");
+			latitude = names.indexOf("latitude");
+			longitude = names.indexOf("longitude");
+			depth = names.indexOf("depth");
+			magnitude = required(names, "mag");
+			id = required(names, "id");
+			updated = names.indexOf("updated");
+			place = required(names, "place");
+		}
+
+		/**
+		 * Return the columns named by the header line in {@code header}.
+		 */
+		static CsvColumns of(ByteBuffer header) throws IOException {
+			List<String> names = new ArrayList<>();
+			CsvLineReader reader = new CsvLineReader(header);
+			reader.nextLine();
+			while (reader.nextField()) {
+				names.add(reader.string());
+			}
+			return new CsvColumns(names);
+		}
+
+		private static int required(List<String> names, String name) throws IOException {
+			int index = names.indexOf(name);
+			if (index < 0) {
+				throw new IOException("Not a USGS catalog: no " + name + " column");
+			}
+			return index;
+		}
+
+		List<Earthquake> parse(ByteBuffer chunk) throws IOException {
+			List<Earthquake> earthquakes = new ArrayList<>();
+			CsvLineReader reader = new CsvLineReader(chunk);
+			while (reader.nextLine()) {
+				String eventId = null;
+				String eventPlace = null;
+				double eventMagnitude = Double.NaN;
+				long eventTime = Long.MIN_VALUE;
+				long eventUpdated = Long.MIN_VALUE;
+				double eventLatitude = Double.NaN;
+				double eventLongitude = Double.NaN;
+				double eventDepth = Double.NaN;
+				for (int column = 0; reader.nextField(); column++) {
+					if (reader.isEmpty()) {
+						continue;
+					}
+					if (column == time) {
+						eventTime = reader.isoTime();
+					} else if (column == magnitude) {
+						eventMagnitude = reader.number();
+					} else if (column == id) {
+						eventId = reader.string();
+					} else if (column == place) {
+						eventPlace = reader.string();
+					} else if (column == updated) {
+						eventUpdated = reader.isoTime();
+					} else if (column == latitude) {
+						eventLatitude = reader.number();
+					} else if (column == longitude) {
+						eventLongitude = reader.number();
+					} else if (column == depth) {
+						eventDepth = reader.number();
+					}
+				}
+				if (eventId == null || Double.isNaN(eventMagnitude)
+						|| eventTime == Long.MIN_VALUE) {
+					continue;
+				}
+				earthquakes.add(new Earthquake(eventId, eventMagnitude,
+						eventPlace == null ? "" : eventPlace, eventTime,
+						EVENT_PAGE_PREFIX + eventId, eventLongitude, eventLatitude, eventDepth,
+						eventUpdated == Long.MIN_VALUE ? eventTime : eventUpdated));
+			}
+			return earthquakes;
+		}
+	}
+
+	/**
+	 * Reads the lines of a CSV chunk field by field, straight off the mapped bytes. Only the
+	 * fields asked for are decoded.
+	 */
+	private static final class CsvLineReader {
+		private final ByteBuffer mBuffer;
+
+		private final int mLimit;
+
+		private int mPos;
+
+		private boolean mLineEnded = true;
+
+		/**
+		 * The last field read, with any quotes removed
+		 */
+		private byte[] mField = new byte[256];
+
+		private int mFieldLength;
+
+		CsvLineReader(ByteBuffer buffer) {
+			mBuffer = buffer;
+			mLimit = buffer.limit();
+		}
+
+		/**
+		 * Move to the start of the next line that has any content, skipping whatever is
+		 * left of the current one. Return false at the end of the chunk.
+		 */
+		boolean nextLine() {
+			while (!mLineEnded) {
+				nextField();
+			}
+			while (mPos < mLimit && (mBuffer.get(mPos) == '\n' || mBuffer.get(mPos) == '\r')) {
+				mPos++;
+			}
+			if (mPos == mLimit) {
+				return false;
+			}
+			mLineEnded = false;
+			return true;
+		}
+
+		/**
+		 * Read the next field of the current line. Return false once the line is used up.
+		 */
+		boolean nextField() {
+			if (mLineEnded) {
+				return false;
+			}
+			mFieldLength = 0;
+			boolean quoted = mPos < mLimit && mBuffer.get(mPos) == '"';
+			if (quoted) {
+				mPos++;
+			}
+			while (mPos < mLimit) {
+				byte b = mBuffer.get(mPos++);
+				if (quoted) {
+					if (b == '"') {
+						if (mPos < mLimit && mBuffer.get(mPos) == '"') {
+							// A doubled quote stands for one
+							mPos++;
+						} else {
+							quoted = false;
+							continue;
+						}
+					}
+				} else if (b == ',') {
+					return true;
+				} else if (b == '\n') {
+					mLineEnded = true;
+					return true;
+				} else if (b == '\r') {
+					continue;
+				}
+				append(b);
+			}
+			mLineEnded = true;
+			return true;
+		}
+
+		boolean isEmpty() {
+			return mFieldLength == 0;
+		}
+
+		String string() {
+			return new String(mField, 0, mFieldLength, UTF_8);
+		}
+
+		double number() throws IOException {
+			try {
+				return Double.parseDouble(new String(mField, 0, mFieldLength, UTF_8));
+			} catch (NumberFormatException e) {
+				throw malformed("a number");
+			}
+		}
+
+		/**
+		 * Return the field as a UTC time of the form 2017-06-01T12:34:56.789Z, in
+		 * milliseconds since the epoch. The fraction of a second is optional.
+		 */
+		long isoTime() throws IOException {
+			if (mFieldLength < 20 || mField[4] != '-' || mField[7] != '-' || mField[10] != 'T'
+					|| mField[13] != ':' || mField[16] != ':'
+					|| mField[mFieldLength - 1] != 'Z') {
+				throw malformed("a UTC time");
+			}
+			int year = digits(0, 4);
+			int month = digits(5, 2);
+			int day = digits(8, 2);
+			long millis = daysFromCivil(year, month, day) * EarthquakeRollups.DAY_MILLIS
+					+ digits(11, 2) * EarthquakeRollups.HOUR_MILLIS
+					+ digits(14, 2) * 60_000L
+					+ digits(17, 2) * 1000L;
+			if (mFieldLength > 20) {
+				if (mField[19] != '.') {
+					throw malformed("a UTC time");
+				}
+				// Only milliseconds are kept, however many digits there are
+				int fractionDigits = mFieldLength - 21;
+				int fraction = digits(20, Math.min(fractionDigits, 3));
+				for (int i = fractionDigits; i < 3; i++) {
+					fraction *= 10;
+				}
+				millis += fraction;
+			}
+			return millis;
+		}
+
+		private int digits(int from, int count) throws IOException {
+			int value = 0;
+			for (int i = from; i < from + count; i++) {
+				int digit = mField[i] - '0';
+				if (digit < 0 || digit > 9) {
+					throw malformed("a UTC time");
+				}
+				value = value * 10 + digit;
+			}
+			return value;
+		}
+
+		private IOException malformed(String expected) {
+			return new IOException("Malformed earthquake CSV: expected " + expected
+					+ " but was \"" + string() + "\"");
+		}
+
+		private void append(byte b) {
+			if (mFieldLength == mField.length) {
+				mField = Arrays.copyOf(mField, mFieldLength * 2);
+			}
+			mField[mFieldLength++] = b;
+		}
+
+		/**
+		 * Return the days from 1970-01-01 to the given date of the proleptic Gregorian
+		 * calendar.
+		 */
+		private static long daysFromCivil(int year, int month, int day) {
+			year -= month <= 2 ? 1 : 0;
+			long era = (year >= 0 ? year : year - 399) / 400;
+			long yearOfEra = year - era * 400;
+			long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+			long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+			return era * 146097 + dayOfEra - 719468;
+		}
+	}
+
+	/**
+	 * Reads a mapped chunk as a stream, for the JSON parser
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, mBuffer.remaining());
+			mBuffer.get(buffer, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Pull parser for the USGS GeoJSON feed which reads straight from the response stream.
+ * Each feature is handed to a {@link Callback} as soon as its closing brace is read, and
+ * everything the app does not use (metadata, unused properties) is skipped
+ * token by token without being materialized.
+ */
+final class EarthquakeJsonParser {
+
+	/**
+	 * Receives the earthquakes in the order they appear in the feed
+	 */
+	interface Callback {
+		void onEarthquake(Earthquake earthquake);
+	}
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final Reader mReader;
+
+	private final char[] mBuffer = new char[BUFFER_SIZE];
+
+	private int mPos;
+
+	private int mLimit;
+
+	/**
+	 * Holds the characters of the last name or number read, so that keys can be compared
+	 * without allocating a String for each one
+	 */
+	private final StringBuilder mScratch = new StringBuilder();
+
+	/*
+	 * Properties of the feature being read, which may come before or after its id
+	 */
+
+	private double mMagnitude;
+
+	private String mPlace;
+
+	private long mTime;
+
+	private String mUrl;
+
+	private double mLongitude;
+
+	private double mLatitude;
+
+	private double mDepth;
+
+	private long mUpdated;
+
+	private boolean mDeleted;
+
+	EarthquakeJsonParser(InputStream inputStream) {
+		this(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+	}
+
+	EarthquakeJsonParser(Reader reader) {
+		mReader = reader;
+	}
+
+	/**
+	 * Read the whole response and return the number of earthquakes handed to the callback.
+	 */
+	int parse(Callback callback) throws IOException {
+		int count = 0;
+		beginObject();
+		while (hasNext()) {
+			readName();
+			if (nameIs("features") && !nextIsNull()) {
+				beginArray();
+				while (hasNext()) {
+					Earthquake earthquake = readFeature();
+					if (earthquake != null) {
+						callback.onEarthquake(earthquake);
+						count++;
+					}
+				}
+				endArray();
+			} else {
+				skipValue();
+			}
+		}
+		endObject();
+		return count;
+	}
+
+	/**
+	 * Read a run of comma separated features cut out of a response's features array, up to
+	 * the end of input or the array's closing bracket, and return the number of earthquakes
+	 * handed to the callback.
+	 */
+	int parseFeatures(Callback callback) throws IOException {
+		int count = 0;
+		while (hasNext()) {
+			Earthquake earthquake = readFeature();
+			if (earthquake != null) {
+				callback.onEarthquake(earthquake);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Read one feature object, returning null if it lacks any of the displayed properties.
+	 * A deleted event only needs its id.
+	 */
+	private Earthquake readFeature() throws IOException {
+		String id = null;
+		mMagnitude = Double.NaN;
+		mPlace = null;
+		mTime = Long.MIN_VALUE;
+		mUrl = null;
+		mLongitude = Double.NaN;
+		mLatitude = Double.NaN;
+		mDepth = Double.NaN;
+		mUpdated = Long.MIN_VALUE;
+		mDeleted = false;
+
+		beginObject();
+		while (hasNext()) {
+			readName();
+			if (nextIsNull()) {
+				skipValue();
+			} else if (nameIs("id")) {
+				id = nextString();
+			} else if (nameIs("properties")) {
+				readProperties();
+			} else if (nameIs("geometry")) {
+				readGeometry();
+			} else {
+				skipValue();
+			}
+		}
+		endObject();
+
+		if (mDeleted && id != null) {
+			return Earthquake.deleted(id, mUpdated);
+		}
+		if (Double.isNaN(mMagnitude) || mPlace == null || mTime == Long.MIN_VALUE
+				|| mUrl == null) {
+			return null;
+		}
+		// USGS event page urls are unique per event, so they do as an id when none is given
+		return new Earthquake(id == null ? mUrl : id, mMagnitude, mPlace, mTime, mUrl,
+				mLongitude, mLatitude, mDepth, mUpdated == Long.MIN_VALUE ? mTime : mUpdated);
+	}
+
+	/**
+	 * Read a Point geometry, whose coordinates are longitude, latitude and depth in that
+	 * order. Anything else leaves the location unknown.
+	 */
+	private void readGeometry() throws IOException {
+		beginObject();
+		while (hasNext()) {
+			readName();
+			if (nameIs("coordinates") && peek() == '[') {
+				beginArray();
+				for (int i = 0; hasNext(); i++) {
+					if (i < 3 && !nextIsNull() && peek() != '[') {
+						double value = nextDouble();
+						if (i == 0) {
+							mLongitude = value;
+						} else if (i == 1) {
+							mLatitude = value;
+						} else {
+							mDepth = value;
+						}
+					} else {
+						skipValue();
+					}
+				}
+				endArray();
+			} else {
+				skipValue();
+			}
+		}
+		endObject();
+	}
+
+	private void readProperties() throws IOException {
+		beginObject();
+		while (hasNext()) {
+			readName();
+			if (nextIsNull()) {
+				skipValue();
+			} else if (nameIs("mag")) {
+				mMagnitude = nextDouble();
+			} else if (nameIs("place")) {
+				mPlace = nextString();
+			} else if (nameIs("time")) {
+				mTime = nextLong();
+			} else if (nameIs("url")) {
+				mUrl = nextString();
+			} else if (nameIs("updated")) {
+				mUpdated = nextLong();
+			} else if (nameIs("status")) {
+				mDeleted = "deleted".equals(nextString());
+			} else {
+				skipValue();
+			}
+		}
+		endObject();
+	}
+
+	/* Structural tokens */
+
+	private void beginObject() throws IOException {
+		expect('{');
+	}
+
+	private void endObject() throws IOException {
+		expect('}');
+	}
+
+	private void beginArray() throws IOException {
+		expect('[');
+	}
+
+	private void endArray() throws IOException {
+		expect(']');
+	}
+
+	/**
+	 * Return true if the current object or array has another element, consuming the
+	 * separating comma if there is one.
+	 */
+	private boolean hasNext() throws IOException {
+		int c = peek();
+		if (c == ',') {
+			mPos++;
+			c = peek();
+		}
+		return c != '}' && c != ']' && c != -1;
+	}
+
+	/**
+	 * Read an object key into the scratch buffer, along with the colon that follows it.
+	 */
+	private void readName() throws IOException {
+		expect('"');
+		mScratch.setLength(0);
+		readStringBody(mScratch);
+		expect(':');
+	}
+
+	private boolean nameIs(String name) {
+		return name.contentEquals(mScratch);
+	}
+
+	private boolean nextIsNull() throws IOException {
+		return peek() == 'n';
+	}
+
+	/* Values */
+
+	private String nextString() throws IOException {
+		expect('"');
+		StringBuilder value = new StringBuilder();
+		readStringBody(value);
+		return value.toString();
+	}
+
+	private double nextDouble() throws IOException {
+		readNumber();
+		return parseScratchAsDouble();
+	}
+
+	private long nextLong() throws IOException {
+		readNumber();
+		int length = mScratch.length();
+		boolean negative = length > 0 && mScratch.charAt(0) == '-';
+		long value = 0;
+		for (int i = negative ? 1 : 0; i < length; i++) {
+			char c = mScratch.charAt(i);
+			if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10) {
+				// Fractions, exponents and overflow are rare enough to take the slow path
+				return (long) parseScratchAsDouble();
+			}
+			value = value * 10 + (c - '0');
+		}
+		if (length == 0 || (negative && length == 1)) {
+			throw syntaxError("Expected a number");
+		}
+		return negative ? -value : value;
+	}
+
+	private double parseScratchAsDouble() throws IOException {
+		try {
+			return Double.parseDouble(mScratch.toString());
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a number but was " + mScratch);
+		}
+	}
+
+	/**
+	 * Skip over the next value, including any nested objects or arrays, without building it.
+	 */
+	private void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			int c = peek();
+			switch (c) {
+				case '{':
+				case '[':
+					mPos++;
+					depth++;
+					break;
+				case '}':
+				case ']':
+					mPos++;
+					depth--;
+					break;
+				case ',':
+				case ':':
+					mPos++;
+					break;
+				case '"':
+					mPos++;
+					readStringBody(null);
+					break;
+				case -1:
+					throw syntaxError("Unexpected end of input");
+				default:
+					skipLiteral();
+					break;
+			}
+		} while (depth > 0);
+	}
+
+	/* Character level */
+
+	/**
+	 * Read the characters of a string up to and including its closing quote. Escapes are
+	 * decoded into {@code out}, or simply stepped over when {@code out} is null.
+	 */
+	private void readStringBody(StringBuilder out) throws IOException {
+		while (true) {
+			if (mPos == mLimit && !fill()) {
+				throw syntaxError("Unterminated string");
+			}
+			char c = mBuffer[mPos++];
+			if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				char escaped = readEscape();
+				if (out != null) {
+					out.append(escaped);
+				}
+			} else if (out != null) {
+				out.append(c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		if (mPos == mLimit && !fill()) {
+			throw syntaxError("Unterminated escape sequence");
+		}
+		char c = mBuffer[mPos++];
+		switch (c) {
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					if (mPos == mLimit && !fill()) {
+						throw syntaxError("Unterminated escape sequence");
+					}
+					int digit = Character.digit(mBuffer[mPos++], 16);
+					if (digit < 0) {
+						throw syntaxError("Malformed unicode escape");
+					}
+					value = (value << 4) | digit;
+				}
+				return (char) value;
+			default:
+				// Covers \" \\ and \/
+				return c;
+		}
+	}
+
+	private void readNumber() throws IOException {
+		peek();
+		mScratch.setLength(0);
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos];
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+				mScratch.append(c);
+				mPos++;
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Step over a number, true, false or null.
+	 */
+	private void skipLiteral() throws IOException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos];
+			if (c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+				return;
+			}
+			mPos++;
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = peek();
+		if (c != expected) {
+			throw syntaxError("Expected '" + expected + "' but was "
+					+ (c == -1 ? "end of input" : "'" + (char) c + "'"));
+		}
+		mPos++;
+	}
+
+	/**
+	 * Return the next non-whitespace character without consuming it, or -1 at end of input.
+	 */
+	private int peek() throws IOException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos];
+			if (!isWhitespace(c)) {
+				return c;
+			}
+			mPos++;
+		}
+		return -1;
+	}
+
+	private boolean fill() throws IOException {
+		int read = mReader.read(mBuffer, 0, mBuffer.length);
+		if (read <= 0) {
+			mPos = 0;
+			mLimit = 0;
+			return false;
+		}
+		mPos = 0;
+		mLimit = read;
+		return true;
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed earthquake JSON: " + message);
+	}
+}
@@ -0,0 +1,158 @@
+package com.example.android.quakereport;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows delivered by {@link EarthquakeLoader}, together with how they differ from the rows it
+ * delivered before. The difference is worked out on the loader thread so the adapter only has
+ * to dispatch it.
+ */
+final class EarthquakeListUpdate {
+
+	/**
+	 * Most events added or dropped between two lists that are still diffed. Diffing takes
+	 * time in proportion to the lists' length times the number of changes, so past this the
+	 * rows are shown as new.
+	 */
+	private static final int MAX_DIFF_CHANGES = 500;
+
+	/**
+	 * The rows to show
+	 */
+	final WindowedRows rows;
+
+	/**
+	 * The rows the difference was worked out against, or null if there is none
+	 */
+	final WindowedRows previousRows;
+
+	private final DiffUtil.DiffResult mDiff;
+
+	/**
+	 * Positions of {@link #previousRows} replaced when rows were appended
+	 */
+	private final List<Integer> mReplaced;
+
+	private EarthquakeListUpdate(WindowedRows rows, WindowedRows previousRows,
+	                             DiffUtil.DiffResult diff, List<Integer> replaced) {
+		this.rows = rows;
+		this.previousRows = previousRows;
+		mDiff = diff;
+		mReplaced = replaced;
+	}
+
+	/**
+	 * Return the update from {@code previousRows} to {@code rows}, matching rows by event id.
+	 * Only the rows' keys are compared, so lists of any length are diffed without reading
+	 * their rows back from disk. The rows are shown as new if too many events were added or
+	 * dropped, or the keys can't be read.
+	 */
+	static EarthquakeListUpdate between(WindowedRows previousRows, WindowedRows rows) {
+		if (previousRows == null) {
+			return new EarthquakeListUpdate(rows, null, null, null);
+		}
+		final long[] oldIds = new long[previousRows.size()];
+		final int[] oldContents = new int[previousRows.size()];
+		final long[] newIds = new long[rows.size()];
+		final int[] newContents = new int[rows.size()];
+		try {
+			previousRows.readKeys(oldIds, oldContents);
+			rows.readKeys(newIds, newContents);
+		} catch (IOException e) {
+			return new EarthquakeListUpdate(rows, null, null, null);
+		}
+		if (countAddedAndDropped(oldIds, newIds) > MAX_DIFF_CHANGES) {
+			return new EarthquakeListUpdate(rows, null, null, null);
+		}
+
+		// Moves are reported as a removal and an insertion, which is cheaper to work out and
+		// only costs an animation
+		DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+			@Override
+			public int getOldListSize() {
+				return oldIds.length;
+			}
+
+			@Override
+			public int getNewListSize() {
+				return newIds.length;
+			}
+
+			@Override
+			public boolean areItemsTheSame(int oldPosition, int newPosition) {
+				return oldIds[oldPosition] == newIds[newPosition];
+			}
+
+			@Override
+			public boolean areContentsTheSame(int oldPosition, int newPosition) {
+				return oldContents[oldPosition] == newContents[newPosition];
+			}
+		}, false);
+		return new EarthquakeListUpdate(rows, previousRows, diff, null);
+	}
+
+	/**
+	 * Return how many of {@code oldIds} are not among {@code newIds} and the other way round,
+	 * the fewest changes a diff of the two can come to.
+	 */
+	private static int countAddedAndDropped(long[] oldIds, long[] newIds) {
+		long[] older = oldIds.clone();
+		long[] newer = newIds.clone();
+		Arrays.sort(older);
+		Arrays.sort(newer);
+		int common = 0;
+		int i = 0;
+		int j = 0;
+		while (i < older.length && j < newer.length) {
+			if (older[i] < newer[j]) {
+				i++;
+			} else if (older[i] > newer[j]) {
+				j++;
+			} else {
+				common++;
+				i++;
+				j++;
+			}
+		}
+		return older.length + newer.length - 2 * common;
+	}
+
+	/**
+	 * Return the update from {@code previousRows} to {@code rows} made by
+	 * {@link WindowedRows#append}, which only replaces and adds rows, so nothing needs diffing.
+	 */
+	static EarthquakeListUpdate appended(WindowedRows previousRows, WindowedRows rows,
+	                                     List<Integer> replaced) {
+		return new EarthquakeListUpdate(rows, previousRows, null, replaced);
+	}
+
+	/**
+	 * Return whether the difference from {@link #previousRows} is known, rather than only the
+	 * new rows.
+	 */
+	boolean isIncremental() {
+		return mDiff != null || mReplaced != null;
+	}
+
+	/**
+	 * Tell {@code adapter}, which shows {@link #previousRows}, which of its rows changed.
+	 */
+	void dispatchUpdatesTo(RecyclerView.Adapter<?> adapter) {
+		if (mDiff != null) {
+			mDiff.dispatchUpdatesTo(adapter);
+			return;
+		}
+		for (int position : mReplaced) {
+			adapter.notifyItemChanged(position);
+		}
+		if (rows.size() > previousRows.size()) {
+			adapter.notifyItemRangeInserted(previousRows.size(),
+					rows.size() - previousRows.size());
+		}
+	}
+}
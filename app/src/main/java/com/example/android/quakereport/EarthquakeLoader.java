@@ -1,9 +1,40 @@
 package com.example.android.quakereport;
 
-import android.content.AsyncTaskLoader;
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.Loader;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
 
-class EarthquakeLoader extends AsyncTaskLoader {
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Loads the result set of a USGS query one page at a time. Each delivered list holds every
+ * page fetched so far, along with its difference from the previous delivery. Pages are answered
+ * by the {@link EarthquakeQueryEngine} whenever it covers the query, and from the network
+ * otherwise, and are formatted for display before they leave the background threads. On a cold
+ * start the first page comes from the last saved snapshot, if there is one, and is refreshed
+ * from the network straight after.
+ * <p>
+ * Loads run on the {@link BackgroundScheduler} ahead of prefetches and syncs: the page is
+ * fetched on the I/O pool and formatted on the CPU pool, and while that happens the page after
+ * it is already being downloaded. The loader's own state is only touched on the main thread.
+ * <p>
+ * Rows are kept in an {@link EarthquakeRowFile} and delivered as {@link WindowedRows}, so only
+ * the rows around those on screen take up memory however many pages are loaded. Each refresh
+ * fetches the pages again one at a time into a new file, so it never holds more than a page of
+ * events either, and the file it replaces is deleted once the refreshed rows are delivered.
+ * Every page is also merged into the {@link EarthquakeDensityTiles} of the query, except that
+ * the pages of a refresh build a grid of their own, which replaces the shown one along with
+ * the rows, so events no longer in the result set drop off the map.
+ */
+class EarthquakeLoader extends Loader<EarthquakeListUpdate> {
 
 	/**
 	 * Tag for log messages
@@ -11,26 +42,595 @@ class EarthquakeLoader extends AsyncTaskLoader {
 	private static final String LOG_TAG = EarthquakeLoader.class.getSimpleName();
 
 	/**
-	 * Query url
+	 * Number of earthquakes requested per page
+	 */
+	static final int PAGE_SIZE = 50;
+
+	/**
+	 * USGS refuses to return more than this many events for a single search
+	 */
+	private static final int MAX_RESULTS = 20_000;
+
+	/**
+	 * Wait before asking again for a next page that failed, doubled on each failure in a row
+	 */
+	private static final long MIN_PAGE_RETRY_MILLIS = 2_000;
+
+	private static final long MAX_PAGE_RETRY_MILLIS = 60_000;
+
+	/**
+	 * Default heap for the rows held in memory, a few hundred screens' worth
+	 */
+	static final long DEFAULT_ROW_MEMORY_BYTES = 2 * 1024 * 1024;
+
+	/**
+	 * Magnitude circle colours, indexed by {@link EarthquakeFormatter#getMagnitudeBucket}
+	 */
+	private static final int[] MAGNITUDE_COLOR_RESOURCE_IDS = {
+			R.color.magnitude1,
+			R.color.magnitude2,
+			R.color.magnitude3,
+			R.color.magnitude4,
+			R.color.magnitude5,
+			R.color.magnitude6,
+			R.color.magnitude7,
+			R.color.magnitude8,
+			R.color.magnitude9,
+			R.color.magnitude10plus
+	};
+
+	/**
+	 * USGS query endpoint
+	 */
+	private String mBaseUrl;
+
+	private EarthquakeQuery mQuery;
+
+	private final BackgroundScheduler mScheduler = BackgroundScheduler.getInstance();
+
+	/**
+	 * Shared by the loads, which hold its lock while formatting
+	 */
+	private final EarthquakeFormatter mFormatter;
+
+	private final long mRowMemoryBytes;
+
+	/**
+	 * Where the events loaded for the query are, for the density map
+	 */
+	private final EarthquakeDensityTiles mDensityTiles;
+
+	/**
+	 * File holding the rows last delivered, or null
+	 */
+	private EarthquakeRowFile mRowFile;
+
+	/**
+	 * Last update delivered
+	 */
+	private EarthquakeListUpdate mUpdate;
+
+	/**
+	 * 0-based position of the next page in the result set
+	 */
+	private int mNextOffset;
+
+	private boolean mEndReached;
+
+	/**
+	 * Wait after the last failed next page, or 0 if the last one succeeded
+	 */
+	private long mPageRetryMillis;
+
+	/**
+	 * {@link SystemClock#uptimeMillis} before which a failed next page isn't asked for again
+	 */
+	private long mPageRetryAt;
+
+	/**
+	 * The load in progress, or null. Loads abandoned since are not delivered.
+	 */
+	private PageLoad mLoad;
+
+	/**
+	 * Set when the next load should re-fetch the pages already delivered
 	 */
-	private String mUrl;
+	private boolean mRefreshRequested;
+
+	EarthquakeLoader(Context context, String baseUrl, EarthquakeQuery query) {
+		this(context, baseUrl, query, DEFAULT_ROW_MEMORY_BYTES);
+	}
 
-	EarthquakeLoader(Context context, String url) {
+	/**
+	 * @param rowMemoryBytes heap the rows held in memory may take, however many are loaded
+	 */
+	EarthquakeLoader(Context context, String baseUrl, EarthquakeQuery query,
+	                 long rowMemoryBytes) {
 		super(context);
-		mUrl = url;
+		mBaseUrl = baseUrl;
+		mQuery = query;
+		int[] magnitudeColors = getMagnitudeColors(getContext());
+		mFormatter = new EarthquakeFormatter(magnitudeColors,
+				getContext().getString(R.string.near_the));
+		mDensityTiles = new EarthquakeDensityTiles(magnitudeColors);
+		mRowMemoryBytes = rowMemoryBytes;
+	}
+
+	EarthquakeDensityTiles getDensityTiles() {
+		return mDensityTiles;
+	}
+
+	/**
+	 * Fetch the page following the last one delivered, unless one is already on its way, the
+	 * result set is exhausted, or the last try failed only moments ago.
+	 */
+	void loadNextPage() {
+		if (mLoad == null && !mEndReached && isStarted()
+				&& SystemClock.uptimeMillis() >= mPageRetryAt) {
+			forceLoad();
+		}
+	}
+
+	/**
+	 * Fetch every page delivered so far again, so the shown rows pick up new and revised
+	 * events.
+	 */
+	void refresh() {
+		mRefreshRequested = true;
+		if (mLoad == null && isStarted()) {
+			forceLoad();
+		}
 	}
 
 	@Override
 	protected void onStartLoading() {
-		forceLoad();
+		if (mUpdate != null) {
+			// Already have pages, so hand them back rather than advancing to the next one
+			deliverResult(mUpdate);
+		}
+		if (mUpdate == null || mRefreshRequested) {
+			forceLoad();
+		}
+	}
+
+	/**
+	 * Start loading the next page, or all of them again if a refresh was asked for. Does
+	 * nothing while a load is in progress; a refresh asked for meanwhile follows it.
+	 */
+	@Override
+	protected void onForceLoad() {
+		if (mLoad != null) {
+			return;
+		}
+		WindowedRows previousRows = mUpdate == null ? null : mUpdate.rows;
+
+		// A refresh replaces everything shown so far, otherwise the next page is appended
+		boolean refreshing = mRefreshRequested && previousRows != null;
+		mRefreshRequested = false;
+		final PageLoad load = new PageLoad(mUpdate, refreshing,
+				refreshing ? 0 : mNextOffset,
+				refreshing ? Math.max(mNextOffset, PAGE_SIZE) : PAGE_SIZE);
+		mLoad = load;
+		fetchInBackground(load);
+	}
+
+	private void fetchInBackground(final PageLoad load) {
+		mScheduler.submitIo(BackgroundScheduler.PRIORITY_VISIBLE, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					fetchPage(load);
+				} catch (RuntimeException e) {
+					fail(load, e);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The I/O stage of a load: find its next page, then hand it to the CPU stage.
+	 */
+	private void fetchPage(final PageLoad load) {
+		if (mBaseUrl == null || mQuery == null) {
+			complete(load);
+			return;
+		}
+		if (load.cancellation.isCanceled()) {
+			abandon(load);
+			return;
+		}
+		int offset = load.offset + load.fetched;
+		load.pageLimit = Math.min(PAGE_SIZE, load.limit - load.fetched);
+
+		// Settings changes usually narrow or re-sort data already held locally
+		EarthquakeQueryEngine engine = EarthquakeQueryEngine.getInstance();
+		engine.attachSnapshot(new File(getContext().getFilesDir(), EarthquakeSnapshot.FILE_NAME));
+		List<Earthquake> page = engine.query(mQuery, offset, load.pageLimit);
+
+		if (page == null && load.previous == null) {
+			// Nothing on screen yet, so show the last known earthquakes straight away and
+			// replace them with current ones right after
+			page = engine.queryLastKnown(mQuery, offset, load.pageLimit);
+			load.lastKnown = page != null;
+		}
+
+		if (page == null) {
+			// Perform the network request, parse the response, and extract a page of
+			// earthquakes. Unchanged pages are revalidated against the response cache, and
+			// identical requests in flight or just answered are shared rather than repeated.
+			QueryCache cache = QueryCache.getInstance(getContext().getCacheDir());
+			page = QueryUtils.fetchEarthquakeData(mQuery.toUrl(mBaseUrl, offset, load.pageLimit),
+					cache, load.cancellation);
+			if (load.cancellation.isCanceled()) {
+				abandon(load);
+				return;
+			}
+			if (page != null && page.size() == load.pageLimit) {
+				prefetchPage(offset + load.pageLimit, cache);
+			}
+
+			// Meanwhile fetch enough to answer the next settings change locally
+			engine.prefetch(mQuery, mBaseUrl);
+		}
+
+		if (page == null) {
+			// Keep showing what we have; a failed page is not an empty result set
+			load.failed = true;
+			load.update = load.previous;
+			complete(load);
+			return;
+		}
+
+		load.page = page;
+		mScheduler.submitCpu(BackgroundScheduler.PRIORITY_VISIBLE, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					formatPage(load);
+				} catch (RuntimeException e) {
+					fail(load, e);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Start downloading the page at {@code offset}, if the I/O pool has room, so that asking
+	 * for it shares the request or its fresh result in the {@link RequestCoalescer}.
+	 */
+	private void prefetchPage(int offset, final QueryCache cache) {
+		if (offset >= MAX_RESULTS) {
+			return;
+		}
+		final String url = mQuery.toUrl(mBaseUrl, offset, PAGE_SIZE);
+		mScheduler.trySubmitIo(BackgroundScheduler.PRIORITY_PREFETCH, new Callable<Void>() {
+			@Override
+			public Void call() {
+				QueryUtils.fetchEarthquakeData(url, cache);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The CPU stage of a load: turn the page into rows and store them, then either fetch the
+	 * next page of a refresh or work out how the rows differ from those shown.
+	 */
+	private void formatPage(PageLoad load) {
+		WindowedRows previousRows = load.previous == null ? null : load.previous.rows;
+		if (load.rows == null && (load.refreshing || previousRows == null)) {
+			load.densityGrid = mDensityTiles.newGrid();
+		}
+		if (load.densityGrid != null) {
+			load.densityGrid.merge(load.page);
+		} else {
+			if (load.appended == null) {
+				load.appended = new ArrayList<>(load.page.size());
+			}
+			load.appended.addAll(load.page);
+		}
+		try {
+			if (load.rows == null && load.densityGrid != null) {
+				load.rowFile = EarthquakeRowFile.create(getContext().getCacheDir(),
+						mRowMemoryBytes);
+				load.rows = WindowedRows.empty(load.rowFile);
+			} else if (load.rows == null) {
+				load.rows = previousRows;
+			}
+
+			for (int start = 0; start < load.page.size(); start += EarthquakeRowFile.BLOCK_ROWS) {
+				List<Earthquake> earthquakes = load.page.subList(start,
+						Math.min(start + EarthquakeRowFile.BLOCK_ROWS, load.page.size()));
+				List<EarthquakeDisplayRow> formatted;
+				synchronized (mFormatter) {
+					formatted = mFormatter.format(earthquakes);
+				}
+				load.rows = load.rows.append(formatted, load.replaced);
+			}
+		} catch (IOException | IllegalStateException e) {
+			Log.e(LOG_TAG, "Problem storing the rows.", e);
+			load.failed = true;
+			load.update = load.previous;
+			complete(load);
+			return;
+		}
+		load.fetched += load.page.size();
+
+		if (load.page.size() == load.pageLimit && load.fetched < load.limit) {
+			// More of a refresh to come; its rows so far wait in its file rather than memory
+			fetchInBackground(load);
+			return;
+		}
+
+		WindowedRows rows = load.rows;
+		if (rows.getFile() != load.rowFile) {
+			// Rows replaced after being appended by this load are simply inserted
+			List<Integer> replacedShown = new ArrayList<>(load.replaced.size());
+			for (int position : load.replaced) {
+				if (position < previousRows.size()) {
+					replacedShown.add(position);
+				}
+			}
+			load.update = EarthquakeListUpdate.appended(previousRows, rows, replacedShown);
+		} else {
+			load.update = EarthquakeListUpdate.between(previousRows, rows);
+		}
+		complete(load);
+	}
+
+	/**
+	 * Drop {@code load} after it was cancelled between stages. Nothing from it will be
+	 * delivered, so the file it started has no other chance to be deleted.
+	 */
+	private void abandon(PageLoad load) {
+		if (load.rowFile != null) {
+			load.rowFile.close();
+		}
+	}
+
+	/**
+	 * Finish {@code load} as failed after a stage threw, unless it already finished. Nobody
+	 * reads the stages' futures, so otherwise the load would never end and the loader would
+	 * wait on it for good.
+	 */
+	private void fail(PageLoad load, RuntimeException e) {
+		Log.e(LOG_TAG, "Problem loading a page.", e);
+		if (load.completed) {
+			return;
+		}
+		load.failed = true;
+		load.update = load.previous;
+		complete(load);
+	}
+
+	/**
+	 * Record the finished load and pass it to the main thread.
+	 */
+	private void complete(final PageLoad load) {
+		load.completed = true;
+		Metrics.stop(Metrics.LOAD, load.start);
+		Metrics.recordAllocated(Metrics.LOAD_ALLOCATED, load.heapUsed);
+		Metrics.record(Metrics.LOAD_ROWS, load.update == null ? 0 : load.update.rows.size());
+		mScheduler.postToMain(new Runnable() {
+			@Override
+			public void run() {
+				finish(load);
+			}
+		});
+	}
+
+	/**
+	 * Take on the paging state of {@code load} and deliver it, unless it was abandoned.
+	 */
+	private void finish(PageLoad load) {
+		if (mLoad != load) {
+			if (load.rowFile != null) {
+				load.rowFile.close();
+			}
+			return;
+		}
+		mLoad = null;
+		if (!load.failed && load.page != null) {
+			mNextOffset = load.offset + load.fetched;
+
+			// A short page means there is nothing more worth asking for
+			mEndReached = load.page.size() < load.pageLimit || mNextOffset >= MAX_RESULTS;
+			mPageRetryMillis = 0;
+		} else if (load.failed && !load.refreshing) {
+			// Not the end of the result set; scrolling to the end asks again after a pause
+			mPageRetryMillis = Math.min(MAX_PAGE_RETRY_MILLIS,
+					Math.max(MIN_PAGE_RETRY_MILLIS, mPageRetryMillis * 2));
+			mPageRetryAt = SystemClock.uptimeMillis() + mPageRetryMillis;
+		}
+		if (load.lastKnown) {
+			mRefreshRequested = true;
+		}
+		EarthquakeRowFile replacedFile = null;
+		if (load.update != null && load.update.rows.getFile() != mRowFile) {
+			replacedFile = mRowFile;
+			mRowFile = load.update.rows.getFile();
+			if (load.densityGrid != null) {
+				mDensityTiles.setGrid(load.densityGrid);
+			}
+		} else if (load.rowFile != null) {
+			// Failed after starting a file of its own
+			load.rowFile.close();
+		}
+		deliverResult(load.update);
+		if (load.appended != null && !load.failed) {
+			// Only now are the appended rows shown, so the map can show their events too
+			mDensityTiles.merge(load.appended);
+		}
+		if (replacedFile != null) {
+			// The adapter has moved on to the new file
+			replacedFile.close();
+		}
+	}
+
+	private static int[] getMagnitudeColors(Context context) {
+		int[] magnitudeColors = new int[MAGNITUDE_COLOR_RESOURCE_IDS.length];
+		for (int i = 0; i < magnitudeColors.length; i++) {
+			magnitudeColors[i] = ContextCompat.getColor(context, MAGNITUDE_COLOR_RESOURCE_IDS[i]);
+		}
+		return magnitudeColors;
+	}
+
+	@Override
+	public void deliverResult(EarthquakeListUpdate update) {
+		if (isReset()) {
+			return;
+		}
+		mUpdate = update;
+		if (isStarted()) {
+			super.deliverResult(update);
+			if (mRefreshRequested) {
+				// Asked for while this load was running, or the rows just shown were stale
+				forceLoad();
+			}
+		}
+	}
+
+	/**
+	 * Abort the fetch in progress mid-stream, closing its connection, rather than letting it
+	 * run to the end only to be thrown away. A fetch shared with another loader carries on for
+	 * that one. Only called from API 16.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	@Override
+	protected boolean onCancelLoad() {
+		if (mLoad == null) {
+			return false;
+		}
+		abandonLoad();
+		mScheduler.postToMain(new Runnable() {
+			@Override
+			public void run() {
+				deliverCancellation();
+			}
+		});
+		return true;
 	}
 
 	@Override
-	public Object loadInBackground() {
-		if (mUrl == null) {
-			return null;
+	protected void onReset() {
+		super.onReset();
+		abandonLoad();
+		mUpdate = null;
+		if (mRowFile != null) {
+			mRowFile.close();
+			mRowFile = null;
+		}
+		mDensityTiles.clear();
+		mNextOffset = 0;
+		mEndReached = false;
+		mPageRetryMillis = 0;
+		mPageRetryAt = 0;
+		mRefreshRequested = false;
+	}
+
+	/**
+	 * Stop the load in progress, if any, and drop whatever it still delivers.
+	 */
+	private void abandonLoad() {
+		PageLoad load = mLoad;
+		if (load == null) {
+			return;
+		}
+		mLoad = null;
+		load.cancellation.cancel();
+		if (load.refreshing) {
+			// Leave the paging as it was
+			mRefreshRequested = true;
+		}
+	}
+
+	/**
+	 * One load, passed from stage to stage. Its inputs are taken on the main thread, and its
+	 * results read there once the last stage has posted it back.
+	 */
+	private static final class PageLoad {
+		/**
+		 * Update delivered before this load started
+		 */
+		final EarthquakeListUpdate previous;
+
+		final boolean refreshing;
+
+		final int offset;
+
+		/**
+		 * Events to fetch in all, a page at a time
+		 */
+		final int limit;
+
+		final FetchCancellation cancellation = new FetchCancellation();
+
+		final long start = Metrics.start();
+
+		final long heapUsed = Metrics.heapUsed();
+
+		/**
+		 * Events fetched by the pages so far
+		 */
+		int fetched;
+
+		/**
+		 * Events asked for by the latest page
+		 */
+		int pageLimit;
+
+		/**
+		 * The latest page
+		 */
+		List<Earthquake> page;
+
+		/**
+		 * Rows stored by the pages so far, or null before the first
+		 */
+		WindowedRows rows;
+
+		/**
+		 * Positions of {@link #rows} replaced by later pages
+		 */
+		final List<Integer> replaced = new ArrayList<>();
+
+		/**
+		 * Whether {@link #page} came from the saved snapshot
+		 */
+		boolean lastKnown;
+
+		boolean failed;
+
+		/**
+		 * Whether the load has been passed back to the main thread
+		 */
+		boolean completed;
+
+		/**
+		 * File started by this load for its rows, or null if they were appended to those shown
+		 */
+		EarthquakeRowFile rowFile;
+
+		/**
+		 * Grid started by this load for its events along with {@link #rowFile}, or null
+		 */
+		EarthquakeDensityGrid densityGrid;
+
+		/**
+		 * Events appended to the rows shown by this load, kept for the grid shown until the
+		 * rows are delivered; null if the load started a grid of its own
+		 */
+		List<Earthquake> appended;
+
+		EarthquakeListUpdate update;
+
+		PageLoad(EarthquakeListUpdate previous, boolean refreshing, int offset, int limit) {
+			this.previous = previous;
+			this.refreshing = refreshing;
+			this.offset = offset;
+			this.limit = limit;
 		}
-		// Perform the network request, parse the response, and extract a list of earthquakes.
-		return QueryUtils.fetchEarthquakeData(mUrl);
 	}
 }
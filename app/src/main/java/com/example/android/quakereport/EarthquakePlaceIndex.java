@@ -0,0 +1,307 @@
+package com.example.android.quakereport;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Word index over the places in an {@link EarthquakeStore}, for as-you-type searches such as
+ * "alas" or "of tonga" without comparing every place.
+ * <p>
+ * Places are indexed by their parts, the distance part ("12km SSW of") and the region
+ * ("Volcano, Hawaii"), since a few thousand distinct parts make up every place. Each part is
+ * cut into words, which are lower cased and stripped of accents, and every word lists the
+ * parts it occurs in; the words are also kept sorted, so a prefix narrows them by binary
+ * search. Rows are listed per part, part after part, in one array with a second array of
+ * where each part starts.
+ * <p>
+ * Words and parts are kept from store to store: re-pointing the index at a changed store
+ * only cuts up the parts it has not seen before, and rebuilds the row lists in one pass
+ * over the store's dictionary codes, without touching any strings. Not thread safe.
+ */
+final class EarthquakePlaceIndex {
+
+	private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+
+	/**
+	 * Every distinct place part seen, whether or not the current store uses it
+	 */
+	private final StringDictionary mParts = new StringDictionary();
+
+	/**
+	 * Code of each distinct word
+	 */
+	private final Map<String, Integer> mWordCodes = new HashMap<>();
+
+	/**
+	 * Codes of the parts each word occurs in, by word code
+	 */
+	private int[][] mWordParts = new int[16][];
+
+	private int[] mWordPartCounts = new int[16];
+
+	/**
+	 * Every word, ascending, and the code of each, redone whenever words are added
+	 */
+	private String[] mSortedWords = new String[0];
+
+	private int[] mSortedWordCodes = new int[0];
+
+	private EarthquakeStore mStore;
+
+	/**
+	 * Position in {@link #mPartRows} where each part's rows start, plus the total at the end
+	 */
+	private int[] mPartStarts = new int[1];
+
+	private int[] mPartRows = new int[0];
+
+	/**
+	 * The distance part and region part of each row, one after the other
+	 */
+	private int[] mRowParts = new int[0];
+
+	/**
+	 * One bit per row, set for the rows the current search has accepted
+	 */
+	private long[] mAccepted = new long[0];
+
+	/**
+	 * Index the rows of {@code store}, replacing the store indexed before.
+	 */
+	void index(EarthquakeStore store) {
+		int size = store.size();
+		// Parts repeat, so each is looked up once per store code rather than per row
+		int[] offsetParts = new int[16];
+		int[] regionParts = new int[16];
+		Arrays.fill(offsetParts, -1);
+		Arrays.fill(regionParts, -1);
+		int[] rowParts = new int[size * 2];
+		for (int row = 0; row < size; row++) {
+			int offsetCode = store.getLocationOffsetCode(row);
+			if (offsetCode >= offsetParts.length) {
+				offsetParts = grow(offsetParts, offsetCode);
+			}
+			if (offsetParts[offsetCode] < 0) {
+				offsetParts[offsetCode] = part(store.getLocationOffset(row));
+			}
+			int regionCode = store.getRegionCode(row);
+			if (regionCode >= regionParts.length) {
+				regionParts = grow(regionParts, regionCode);
+			}
+			if (regionParts[regionCode] < 0) {
+				regionParts[regionCode] = part(store.getRegion(row));
+			}
+			rowParts[row * 2] = offsetParts[offsetCode];
+			rowParts[row * 2 + 1] = regionParts[regionCode];
+		}
+
+		if (mSortedWords.length != mWordCodes.size()) {
+			sortWords();
+		}
+
+		// Counting sort by part keeps each part's rows ascending
+		int[] starts = new int[mParts.size() + 1];
+		for (int part : rowParts) {
+			starts[part + 1]++;
+		}
+		for (int part = 0; part < mParts.size(); part++) {
+			starts[part + 1] += starts[part];
+		}
+		int[] next = Arrays.copyOf(starts, mParts.size());
+		int[] rows = new int[rowParts.length];
+		for (int i = 0; i < rowParts.length; i++) {
+			rows[next[rowParts[i]]++] = i / 2;
+		}
+
+		mStore = store;
+		mRowParts = rowParts;
+		mPartStarts = starts;
+		mPartRows = rows;
+		mAccepted = new long[(size + 63) >>> 6];
+	}
+
+	/**
+	 * Return the rows, ascending, whose place has a word starting with each word of
+	 * {@code text}, ignoring case and accents. Text without any words matches every row.
+	 */
+	int[] search(String text) {
+		List<String> words = words(text);
+		int size = mStore == null ? 0 : mStore.size();
+		if (words.isEmpty()) {
+			int[] all = new int[size];
+			for (int row = 0; row < size; row++) {
+				all[row] = row;
+			}
+			return all;
+		}
+
+		// The parts each word of the text matches, and which word matches the fewest rows
+		int parts = mPartStarts.length - 1;
+		boolean[][] matchingParts = new boolean[words.size()][];
+		int narrowest = 0;
+		int narrowestRows = Integer.MAX_VALUE;
+		for (int i = 0; i < words.size(); i++) {
+			boolean[] matching = new boolean[parts];
+			int rows = 0;
+			String prefix = words.get(i);
+			for (int w = firstWordAtLeast(prefix); w < mSortedWords.length
+					&& mSortedWords[w].startsWith(prefix); w++) {
+				int word = mSortedWordCodes[w];
+				for (int p = 0; p < mWordPartCounts[word]; p++) {
+					int part = mWordParts[word][p];
+					// Parts first seen after the last index() aren't used by the store
+					if (part < parts && !matching[part]) {
+						matching[part] = true;
+						rows += mPartStarts[part + 1] - mPartStarts[part];
+					}
+				}
+			}
+			if (rows == 0) {
+				return new int[0];
+			}
+			matchingParts[i] = matching;
+			if (rows < narrowestRows) {
+				narrowest = i;
+				narrowestRows = rows;
+			}
+		}
+
+		// Walk the rows of the narrowest word only, checking the parts of each against the
+		// other words. A row whose two parts both match is simply seen twice.
+		long[] accepted = mAccepted;
+		Arrays.fill(accepted, 0);
+		boolean[] narrowestParts = matchingParts[narrowest];
+		for (int part = 0; part < parts; part++) {
+			if (!narrowestParts[part]) {
+				continue;
+			}
+			for (int r = mPartStarts[part]; r < mPartStarts[part + 1]; r++) {
+				int row = mPartRows[r];
+				if (matchingParts.length == 1 || matchesAll(row, matchingParts, narrowest)) {
+					accepted[row >>> 6] |= 1L << row;
+				}
+			}
+		}
+
+		// Reading the rows off a bit set puts them in order without sorting them
+		int matched = 0;
+		for (long bits : accepted) {
+			matched += Long.bitCount(bits);
+		}
+		int[] result = new int[matched];
+		int count = 0;
+		for (int i = 0; i < accepted.length; i++) {
+			for (long bits = accepted[i]; bits != 0; bits &= bits - 1) {
+				result[count++] = (i << 6) + Long.numberOfTrailingZeros(bits);
+			}
+		}
+		return result;
+	}
+
+	private boolean matchesAll(int row, boolean[][] matchingParts, int skip) {
+		int offsetPart = mRowParts[row * 2];
+		int regionPart = mRowParts[row * 2 + 1];
+		for (int i = 0; i < matchingParts.length; i++) {
+			if (i != skip && !matchingParts[i][offsetPart] && !matchingParts[i][regionPart]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the code of {@code part}, indexing its words if it is new.
+	 */
+	private int part(String part) {
+		int code = mParts.find(part);
+		if (code >= 0) {
+			return code;
+		}
+		code = mParts.encode(part);
+		for (String word : words(part)) {
+			addWordPart(word, code);
+		}
+		return code;
+	}
+
+	private void addWordPart(String word, int part) {
+		Integer code = mWordCodes.get(word);
+		if (code == null) {
+			code = mWordCodes.size();
+			mWordCodes.put(word, code);
+			if (code == mWordParts.length) {
+				mWordParts = Arrays.copyOf(mWordParts, code * 2);
+				mWordPartCounts = Arrays.copyOf(mWordPartCounts, code * 2);
+			}
+			mWordParts[code] = new int[2];
+		}
+		int[] parts = mWordParts[code];
+		int count = mWordPartCounts[code];
+		if (count > 0 && parts[count - 1] == part) {
+			// The word appears twice in the part
+			return;
+		}
+		if (count == parts.length) {
+			parts = Arrays.copyOf(parts, count * 2);
+			mWordParts[code] = parts;
+		}
+		parts[count] = part;
+		mWordPartCounts[code] = count + 1;
+	}
+
+	private void sortWords() {
+		String[] words = mWordCodes.keySet().toArray(new String[mWordCodes.size()]);
+		Arrays.sort(words);
+		int[] codes = new int[words.length];
+		for (int w = 0; w < words.length; w++) {
+			codes[w] = mWordCodes.get(words[w]);
+		}
+		mSortedWords = words;
+		mSortedWordCodes = codes;
+	}
+
+	private int firstWordAtLeast(String prefix) {
+		int w = Arrays.binarySearch(mSortedWords, prefix);
+		return w < 0 ? -w - 1 : w;
+	}
+
+	/**
+	 * Return the words of {@code text}, lower cased and with accents dropped, so that typing
+	 * without them still finds accented places.
+	 */
+	static List<String> words(String text) {
+		String folded = text.toLowerCase(Locale.ROOT);
+		for (int i = 0; i < folded.length(); i++) {
+			if (folded.charAt(i) >= 0x80) {
+				folded = ACCENTS.matcher(Normalizer.normalize(folded, Normalizer.Form.NFD))
+						.replaceAll("");
+				break;
+			}
+		}
+		List<String> words = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= folded.length(); i++) {
+			boolean letter = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				words.add(folded.substring(start, i));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	private static int[] grow(int[] codes, int code) {
+		int length = codes.length;
+		codes = Arrays.copyOf(codes, Math.max(length * 2, code + 1));
+		Arrays.fill(codes, length, codes.length, -1);
+		return codes;
+	}
+}
@@ -0,0 +1,131 @@
+package com.example.android.quakereport;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The filter and sort order the user picked in settings, independent of how the results
+ * are obtained.
+ */
+final class EarthquakeQuery {
+
+	static final String ORDER_BY_MAGNITUDE = "magnitude";
+
+	static final String ORDER_BY_TIME = "time";
+
+	final double minMagnitude;
+
+	final String orderBy;
+
+	EarthquakeQuery(double minMagnitude, String orderBy) {
+		this.minMagnitude = minMagnitude;
+		this.orderBy = ORDER_BY_TIME.equals(orderBy) ? ORDER_BY_TIME : ORDER_BY_MAGNITUDE;
+	}
+
+	/**
+	 * Build a query from the raw preference values, falling back to {@code defaultMagnitude}
+	 * when the stored minimum magnitude isn't a number.
+	 */
+	static EarthquakeQuery fromPreferences(String minMagnitude, String orderBy,
+	                                       double defaultMagnitude) {
+		double magnitude;
+		try {
+			magnitude = Double.parseDouble(minMagnitude.trim());
+		} catch (NumberFormatException e) {
+			magnitude = defaultMagnitude;
+		}
+		return new EarthquakeQuery(magnitude, orderBy);
+	}
+
+	boolean isOrderedByTime() {
+		return ORDER_BY_TIME.equals(orderBy);
+	}
+
+	/**
+	 * Return true if an earthquake with these attributes passes the filter.
+	 */
+	boolean includes(double magnitude) {
+		return magnitude >= minMagnitude;
+	}
+
+	/**
+	 * Return the USGS url for one page of this query. {@code offset} is 0-based.
+	 */
+	String toUrl(String baseUrl, int offset, int limit) {
+		return baseUrl
+				+ "?format=geojson"
+				+ "&minmag=" + minMagnitude
+				+ "&orderby=" + orderBy
+				+ "&offset=" + (offset + 1)
+				+ "&limit=" + limit;
+	}
+
+	/**
+	 * Return the USGS url for every result of this query with a time in
+	 * [{@code startMillis}, {@code endMillis}), up to {@code limit} of them.
+	 */
+	String toWindowUrl(String baseUrl, long startMillis, long endMillis, int limit) {
+		return toWindowUrl(baseUrl, startMillis, endMillis, 0, limit);
+	}
+
+	/**
+	 * Return the USGS url for one page of {@link #toWindowUrl(String, long, long, int)}.
+	 * {@code offset} is 0-based.
+	 */
+	String toWindowUrl(String baseUrl, long startMillis, long endMillis, int offset,
+	                   int limit) {
+		return baseUrl
+				+ "?format=geojson"
+				+ "&minmag=" + minMagnitude
+				+ "&orderby=" + orderBy
+				+ timeRange(startMillis, endMillis)
+				+ (offset > 0 ? "&offset=" + (offset + 1) : "")
+				+ "&limit=" + limit;
+	}
+
+	/**
+	 * Return the url of the USGS count method for the same window as
+	 * {@link #toWindowUrl(String, long, long, int)}. The count method lives next to the
+	 * query method, so {@code baseUrl} is expected to end in "/query".
+	 */
+	String toCountUrl(String baseUrl, long startMillis, long endMillis) {
+		String countUrl = baseUrl.endsWith("/query")
+				? baseUrl.substring(0, baseUrl.length() - "query".length()) + "count"
+				: baseUrl;
+		return countUrl
+				+ "?minmag=" + minMagnitude
+				+ timeRange(startMillis, endMillis);
+	}
+
+	/**
+	 * Return the USGS url for the results of this query from {@code startMillis} on that were
+	 * added, revised or deleted after {@code updatedAfterMillis}, up to {@code limit} of them.
+	 * Deleted events come back with a status of "deleted".
+	 */
+	String toChangesUrl(String baseUrl, long startMillis, long updatedAfterMillis, int limit) {
+		SimpleDateFormat format = timeFormat();
+		return baseUrl
+				+ "?format=geojson"
+				+ "&minmag=" + minMagnitude
+				+ "&orderby=" + orderBy
+				+ "&starttime=" + format.format(new Date(startMillis))
+				+ "&updatedafter=" + format.format(new Date(updatedAfterMillis))
+				+ "&includedeleted=true"
+				+ "&limit=" + limit;
+	}
+
+	private static String timeRange(long startMillis, long endMillis) {
+		SimpleDateFormat format = timeFormat();
+		// USGS includes the end time, so stop a millisecond short of the next window
+		return "&starttime=" + format.format(new Date(startMillis))
+				+ "&endtime=" + format.format(new Date(endMillis - 1));
+	}
+
+	private static SimpleDateFormat timeFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+}
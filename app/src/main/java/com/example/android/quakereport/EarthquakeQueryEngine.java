@@ -0,0 +1,930 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Answers {@link EarthquakeQuery}s from a locally held superset of the USGS feed, so that
+ * raising the minimum magnitude or switching the sort order doesn't need the network.
+ * <p>
+ * The superset is every event of the default USGS time window at or above a loose magnitude
+ * floor, fetched through an {@link EarthquakeWindowFetcher} so it may hold more than one
+ * USGS search returns. Two index arrays hold its row numbers sorted by magnitude and by
+ * time; a magnitude filter is a binary search over the first and a filtered scan over the
+ * second. {@link EarthquakeRollups} over the superset are kept alongside, and are adjusted
+ * by each sync's changes rather than recounted. Places are searched through an
+ * {@link EarthquakePlaceIndex}.
+ * <p>
+ * All of it lives on the heap, so the superset is held to
+ * {@link #MAX_SUPERSET_EARTHQUAKES} events: when the window holds more at the floor asked
+ * for, the floor is raised until it doesn't, and queries below it go to the network.
+ */
+final class EarthquakeQueryEngine {
+
+	private static final String LOG_TAG = EarthquakeQueryEngine.class.getSimpleName();
+
+	/**
+	 * The superset is fetched at this magnitude, or lower if the user asks for less
+	 */
+	private static final double SUPERSET_MIN_MAGNITUDE = 4.5;
+
+	/**
+	 * Most events held in the superset, which with its indexes and rollups takes a few
+	 * megabytes of heap
+	 */
+	private static final int MAX_SUPERSET_EARTHQUAKES = 20_000;
+
+	/**
+	 * How far the superset's floor is raised at a time while it would hold too many events
+	 */
+	private static final double FLOOR_STEP = 0.5;
+
+	/**
+	 * Time range USGS searches when none is given, which the superset has to match
+	 */
+	private static final long WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * How long a superset is used before the network is consulted again
+	 */
+	private static final long MAX_AGE_MILLIS = 15 * 60 * 1000;
+
+	/**
+	 * A sync receiving this many changes may have been cut off, so fetches everything instead
+	 */
+	private static final int MAX_CHANGES = 20_000;
+
+	/**
+	 * How far below the superset's floor changes are asked for, see {@link #syncNow}
+	 */
+	private static final double CHANGES_MAGNITUDE_MARGIN = 1.0;
+
+	private static EarthquakeQueryEngine sInstance;
+
+	/**
+	 * Runs prefetches and syncs, one at a time
+	 */
+	private final BackgroundScheduler.Serial mExecutor =
+			BackgroundScheduler.getInstance().newSerial();
+
+	private EarthquakeWindowFetcher mFetcher;
+
+	private EarthquakeStore mSuperset;
+
+	/**
+	 * Row numbers ordered by descending magnitude, then descending time
+	 */
+	private int[] mByMagnitude;
+
+	/**
+	 * Magnitudes in {@link #mByMagnitude} order, for binary searching
+	 */
+	private double[] mSortedMagnitudes;
+
+	/**
+	 * Row numbers ordered by descending time
+	 */
+	private int[] mByTime;
+
+	/**
+	 * Summary counts of the superset
+	 */
+	private EarthquakeRollups mRollups;
+
+	/**
+	 * Epicenters of the superset, for nearby and region lookups
+	 */
+	private EarthquakeGridIndex mSpatialIndex;
+
+	/**
+	 * Words of the superset's places. Kept from superset to superset, so a new one only has
+	 * its new places cut up.
+	 */
+	private final EarthquakePlaceIndex mPlaceIndex = new EarthquakePlaceIndex();
+
+	/**
+	 * Superset {@link #mPlaceIndex} currently indexes
+	 */
+	private EarthquakeStore mPlaceIndexed;
+
+	/**
+	 * Lowest magnitude for which the superset holds every event
+	 */
+	private double mCoveredMinMagnitude = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Lowest floor a superset was found to fit {@link #MAX_SUPERSET_EARTHQUAKES} at, so
+	 * queries below it aren't fetched for again
+	 */
+	private double mMinFloor = Double.NEGATIVE_INFINITY;
+
+	private long mFetchedAtMillis;
+
+	/**
+	 * Latest USGS update time in the superset; later changes are what a sync asks for
+	 */
+	private long mWatermark;
+
+	private EarthquakeSyncStats mSyncStats = EarthquakeSyncStats.NONE;
+
+	/**
+	 * Where the superset is saved, see {@link #attachSnapshot(File)}
+	 */
+	private File mSnapshotFile;
+
+	/**
+	 * Magnitude of the superset fetch in progress, if any
+	 */
+	private double mPendingMinMagnitude = Double.POSITIVE_INFINITY;
+
+	private EarthquakeQueryEngine() {
+	}
+
+	static synchronized EarthquakeQueryEngine getInstance() {
+		if (sInstance == null) {
+			sInstance = new EarthquakeQueryEngine();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Return true if {@code query} can be answered without the network.
+	 */
+	synchronized boolean covers(EarthquakeQuery query) {
+		return mSuperset != null
+				&& query.minMagnitude >= mCoveredMinMagnitude
+				&& System.currentTimeMillis() - mFetchedAtMillis < MAX_AGE_MILLIS;
+	}
+
+	/**
+	 * Return up to {@code limit} results of {@code query} starting at the 0-based
+	 * {@code offset}, or null if the local superset doesn't cover the query.
+	 */
+	synchronized List<Earthquake> query(EarthquakeQuery query, int offset, int limit) {
+		if (!covers(query)) {
+			return null;
+		}
+		return answer(query, offset, limit);
+	}
+
+	/**
+	 * Like {@link #query(EarthquakeQuery, int, int)}, but also answers from a superset too old
+	 * to be trusted, such as one just restored from a snapshot, so there is something to
+	 * show while current data is fetched.
+	 */
+	synchronized List<Earthquake> queryLastKnown(EarthquakeQuery query, int offset, int limit) {
+		if (mSuperset == null || query.minMagnitude < mCoveredMinMagnitude) {
+			return null;
+		}
+		return answer(query, offset, limit);
+	}
+
+	/**
+	 * Load the superset saved in {@code file} if none is held yet, and save the superset
+	 * there whenever it changes from now on.
+	 */
+	synchronized void attachSnapshot(File file) {
+		if (file.equals(mSnapshotFile)) {
+			return;
+		}
+		mSnapshotFile = file;
+		if (mSuperset != null) {
+			return;
+		}
+
+		// Only takes milliseconds, so callers may as well wait for it
+		long start = System.nanoTime();
+		EarthquakeSnapshot snapshot = EarthquakeSnapshot.read(file);
+		if (snapshot != null) {
+			// An imported catalog can hold far more than a fetch would
+			double floor = floorWithinLimit(snapshot.store, snapshot.minMagnitude);
+			EarthquakeStore store = atOrAbove(snapshot.store, floor);
+			setSuperset(store, EarthquakeRollups.of(store), floor, snapshot.watermark,
+					snapshot.fetchedAtMillis);
+			Log.v(LOG_TAG, "Restored " + store.size() + " earthquakes in "
+					+ (System.nanoTime() - start) / 1000 + "us");
+		}
+	}
+
+	private List<Earthquake> answer(EarthquakeQuery query, int offset, int limit) {
+		if (query.isOrderedByTime()) {
+			int[] rows = new int[limit];
+			int count = 0;
+			int skipped = 0;
+			for (int i = 0; i < mByTime.length && count < limit; i++) {
+				int row = mByTime[i];
+				if (query.includes(mSuperset.getMagnitude(row))) {
+					if (skipped < offset) {
+						skipped++;
+					} else {
+						rows[count++] = row;
+					}
+				}
+			}
+			return mSuperset.asList(rows, 0, count);
+		} else {
+			int matching = countAtLeast(query.minMagnitude);
+			int from = Math.min(offset, matching);
+			return mSuperset.asList(mByMagnitude, from, Math.min(from + limit, matching));
+		}
+	}
+
+	/**
+	 * Return the results of {@code query} within {@code radiusKm} of the given point, newest
+	 * first, or null if the local superset doesn't cover the query.
+	 */
+	synchronized List<Earthquake> nearby(EarthquakeQuery query, double latitude,
+	                                     double longitude, double radiusKm) {
+		if (!covers(query)) {
+			return null;
+		}
+		return filter(query, getSpatialIndex().withinRadius(latitude, longitude, radiusKm));
+	}
+
+	/**
+	 * Return the results of {@code query} inside the given box, newest first, or null if the
+	 * local superset doesn't cover the query. See
+	 * {@link EarthquakeGridIndex#inBoundingBox(double, double, double, double)}.
+	 */
+	synchronized List<Earthquake> inBoundingBox(EarthquakeQuery query, double south,
+	                                            double west, double north, double east) {
+		if (!covers(query)) {
+			return null;
+		}
+		return filter(query, getSpatialIndex().inBoundingBox(south, west, north, east));
+	}
+
+	/**
+	 * Return the results of {@code query} whose place has a word starting with each word of
+	 * {@code text}, such as "alas" or "of tonga", newest first, or null if the local superset
+	 * doesn't cover the query. See {@link EarthquakePlaceIndex#search(String)}.
+	 */
+	synchronized List<Earthquake> searchPlaces(EarthquakeQuery query, String text) {
+		if (!covers(query)) {
+			return null;
+		}
+		return filter(query, getPlaceIndex().search(text));
+	}
+
+	/**
+	 * Return the number of held events in each magnitude band of
+	 * {@link EarthquakeFormatter#getMagnitudeBucket(double)}, or null if none are held.
+	 */
+	synchronized int[] countByMagnitudeBand() {
+		return mRollups == null ? null : mRollups.countByMagnitudeBand();
+	}
+
+	/**
+	 * Return the number of held events in each of the {@code hours} hours up to and including
+	 * the one {@code endMillis} falls in, oldest first, or null if none are held.
+	 */
+	synchronized int[] countPerHour(long endMillis, int hours) {
+		return mRollups == null ? null : mRollups.countPerHour(endMillis, hours);
+	}
+
+	/**
+	 * Return the number of held events in each of the {@code days} UTC days up to and
+	 * including the one {@code endMillis} falls in, oldest first, or null if none are held.
+	 */
+	synchronized int[] countPerDay(long endMillis, int days) {
+		return mRollups == null ? null : mRollups.countPerDay(endMillis, days);
+	}
+
+	/**
+	 * Return the largest held magnitude of each region, or null if no events are held.
+	 */
+	synchronized Map<String, Double> maxMagnitudeByRegion() {
+		return mRollups == null ? null : mRollups.maxMagnitudeByRegion();
+	}
+
+	private EarthquakeGridIndex getSpatialIndex() {
+		if (mSpatialIndex == null) {
+			mSpatialIndex = new EarthquakeGridIndex(mSuperset);
+		}
+		return mSpatialIndex;
+	}
+
+	private EarthquakePlaceIndex getPlaceIndex() {
+		if (mPlaceIndexed != mSuperset) {
+			mPlaceIndex.index(mSuperset);
+			mPlaceIndexed = mSuperset;
+		}
+		return mPlaceIndex;
+	}
+
+	/**
+	 * Return the rows passing the magnitude filter as a list. The superset was fetched in time
+	 * order, so ascending rows are newest first.
+	 */
+	private List<Earthquake> filter(EarthquakeQuery query, int[] rows) {
+		int count = 0;
+		for (int row : rows) {
+			if (query.includes(mSuperset.getMagnitude(row))) {
+				rows[count++] = row;
+			}
+		}
+		return mSuperset.asList(rows, 0, count);
+	}
+
+	/**
+	 * Fetch a superset covering {@code query} in the background, unless one is already held
+	 * or on its way.
+	 */
+	void prefetch(final EarthquakeQuery query, final String baseUrl) {
+		final double minMagnitude;
+		synchronized (this) {
+			minMagnitude = Math.max(Math.min(query.minMagnitude, SUPERSET_MIN_MAGNITUDE),
+					mMinFloor);
+			if (covers(query) || covers(new EarthquakeQuery(minMagnitude, query.orderBy))
+					|| mPendingMinMagnitude <= minMagnitude) {
+				return;
+			}
+			mPendingMinMagnitude = minMagnitude;
+		}
+
+		mExecutor.submit(BackgroundScheduler.PRIORITY_PREFETCH, new Callable<Void>() {
+			@Override
+			public Void call() {
+				fetchSuperset(minMagnitude, baseUrl);
+				synchronized (EarthquakeQueryEngine.this) {
+					mPendingMinMagnitude = Double.POSITIVE_INFINITY;
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Bring the superset up to date with the events USGS added, revised or deleted since it
+	 * was last synced, or fetch it whole if none is held. Only the changes are downloaded,
+	 * and they are merged in one batch. Queued behind any prefetch, so the two never overlap,
+	 * and blocks until done. Return false if the sync failed.
+	 */
+	boolean sync(final String baseUrl) {
+		Future<Boolean> result = mExecutor.submit(BackgroundScheduler.PRIORITY_SYNC,
+				new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return syncNow(baseUrl);
+			}
+		});
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			Log.e(LOG_TAG, "Problem syncing the superset.", e.getCause());
+			return false;
+		}
+	}
+
+	/**
+	 * Return what the syncs have done so far.
+	 */
+	synchronized EarthquakeSyncStats getSyncStats() {
+		return mSyncStats;
+	}
+
+	private boolean syncNow(String baseUrl) {
+		long start = System.nanoTime();
+		EarthquakeStore base;
+		double minMagnitude;
+		long watermark;
+		synchronized (this) {
+			base = mSuperset;
+			minMagnitude = mCoveredMinMagnitude;
+			watermark = mWatermark;
+		}
+
+		List<Earthquake> changes = null;
+		long now = System.currentTimeMillis();
+		if (base != null) {
+			// Revisions can lower a magnitude past the floor, so ask for a little below it to
+			// hear about those too
+			EarthquakeQuery query = new EarthquakeQuery(minMagnitude - CHANGES_MAGNITUDE_MARGIN,
+					EarthquakeQuery.ORDER_BY_TIME);
+			try {
+				changes = QueryUtils.fetchEarthquakes(
+						query.toChangesUrl(baseUrl, now - WINDOW_MILLIS, watermark, MAX_CHANGES),
+						null);
+			} catch (IOException e) {
+				Log.e(LOG_TAG, "Problem fetching changes.", e);
+				recordSync(null, 0, 0);
+				return false;
+			}
+		}
+
+		if (changes == null || changes.size() >= MAX_CHANGES) {
+			// Nothing to apply changes to, or too many to be sure none were cut off
+			boolean fetched = fetchSuperset(base == null ? SUPERSET_MIN_MAGNITUDE : minMagnitude,
+					baseUrl);
+			recordSync(fetched ? ChangeMerge.FULL_FETCH : null, start, 0);
+			return fetched;
+		}
+
+		long mergeStart = System.nanoTime();
+		ChangeMerge merge = new ChangeMerge(base, changes, minMagnitude, now - WINDOW_MILLIS);
+		double floor = floorWithinLimit(merge.store, minMagnitude);
+		if (floor > minMagnitude) {
+			// Grown past the limit, so the floor goes up and the rollups are counted afresh
+			EarthquakeStore store = atOrAbove(merge.store, floor);
+			EarthquakeRollups rollups = EarthquakeRollups.of(store);
+			synchronized (this) {
+				mMinFloor = Math.max(mMinFloor, floor);
+				setSuperset(store, rollups, floor, Math.max(watermark, merge.watermark),
+						System.currentTimeMillis());
+			}
+		} else {
+			synchronized (this) {
+				// Only the rows that changed are taken out of and put into the rollups
+				for (int row : merge.removedRows) {
+					mRollups.remove(base, row);
+				}
+				for (Earthquake upsert : merge.upserts) {
+					mRollups.add(upsert);
+				}
+				setSuperset(merge.store, mRollups, minMagnitude,
+						Math.max(watermark, merge.watermark), System.currentTimeMillis());
+			}
+		}
+		saveSnapshot();
+		recordSync(merge, start, System.nanoTime() - mergeStart);
+		return true;
+	}
+
+	private synchronized void recordSync(ChangeMerge merge, long startNanos, long mergeNanos) {
+		if (merge == null) {
+			mSyncStats = mSyncStats.failed();
+		} else {
+			mSyncStats = mSyncStats.succeeded(System.currentTimeMillis(),
+					(System.nanoTime() - startNanos) / 1_000_000, merge == ChangeMerge.FULL_FETCH,
+					merge.changes, merge.inserted, merge.updated, merge.deleted, merge.expired,
+					mergeNanos, mSuperset == null ? 0 : mSuperset.size());
+		}
+		Log.i(LOG_TAG, "Sync: " + mSyncStats);
+	}
+
+	/**
+	 * Fetch every event of the time window at or above {@code minMagnitude} and make it the
+	 * superset. Return false if it could not be fetched completely, leaving the superset as
+	 * it was.
+	 */
+	private boolean fetchSuperset(double minMagnitude, String baseUrl) {
+		synchronized (this) {
+			minMagnitude = Math.max(minMagnitude, mMinFloor);
+		}
+		final EarthquakeStore store = new EarthquakeStore();
+		final long[] watermark = {Long.MIN_VALUE};
+		long now = System.currentTimeMillis();
+		EarthquakeJsonParser.Callback callback = new EarthquakeJsonParser.Callback() {
+			@Override
+			public void onEarthquake(Earthquake earthquake) {
+				store.add(earthquake);
+				watermark[0] = Math.max(watermark[0], earthquake.getUpdated());
+			}
+		};
+		while (true) {
+			EarthquakeQuery superset = new EarthquakeQuery(minMagnitude,
+					EarthquakeQuery.ORDER_BY_TIME);
+			try {
+				// Split up, so that the superset isn't held to what one search returns
+				getFetcher(baseUrl).fetch(superset, now - WINDOW_MILLIS, now,
+						MAX_SUPERSET_EARTHQUAKES, callback);
+				break;
+			} catch (EarthquakeWindowFetcher.TooManyException e) {
+				// Counted before anything was fetched, so ask for fewer
+				minMagnitude += FLOOR_STEP;
+				synchronized (this) {
+					mMinFloor = Math.max(mMinFloor, minMagnitude);
+				}
+				Log.v(LOG_TAG, e.getMessage() + ", raising the floor to " + minMagnitude);
+			} catch (IOException e) {
+				// A partial superset would silently leave out events, so none is kept
+				Log.e(LOG_TAG, "Problem fetching the superset.", e);
+				return false;
+			}
+		}
+
+		EarthquakeStore unique = withoutDuplicates(store);
+		EarthquakeRollups rollups = EarthquakeRollups.of(unique);
+		synchronized (this) {
+			Log.v(LOG_TAG, "Indexed superset of " + unique.size()
+					+ " earthquakes at magnitude " + minMagnitude);
+			setSuperset(unique, rollups, minMagnitude,
+					watermark[0] == Long.MIN_VALUE ? now : watermark[0],
+					System.currentTimeMillis());
+		}
+		saveSnapshot();
+		return true;
+	}
+
+	/**
+	 * Return {@code store} with only the latest version of each event, or {@code store}
+	 * itself if no event appears twice. Neighbouring windows both return an event on their
+	 * boundary, and one revised while the windows were fetched can be in either.
+	 */
+	private static EarthquakeStore withoutDuplicates(EarthquakeStore store) {
+		int size = store.size();
+		EarthquakeIdIndex ids = new EarthquakeIdIndex(size);
+		boolean[] superseded = null;
+		for (int row = 0; row < size; row++) {
+			int previous = ids.put(store, row, row);
+			if (previous < 0) {
+				continue;
+			}
+			if (superseded == null) {
+				superseded = new boolean[size];
+			}
+			if (store.getUpdated(row) >= store.getUpdated(previous)) {
+				superseded[previous] = true;
+			} else {
+				superseded[row] = true;
+				ids.put(store, row, previous);
+			}
+		}
+		if (superseded == null) {
+			return store;
+		}
+
+		EarthquakeStore unique = new EarthquakeStore(size);
+		for (int row = 0; row < size; row++) {
+			if (!superseded[row]) {
+				unique.add(store, row);
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Return the lowest floor from {@code minMagnitude} up, in {@link #FLOOR_STEP}s, at which
+	 * {@code store} holds no more than {@link #MAX_SUPERSET_EARTHQUAKES} events.
+	 */
+	private static double floorWithinLimit(EarthquakeStore store, double minMagnitude) {
+		int size = store.size();
+		if (size <= MAX_SUPERSET_EARTHQUAKES) {
+			return minMagnitude;
+		}
+		double[] magnitudes = new double[size];
+		for (int row = 0; row < size; row++) {
+			magnitudes[row] = store.getMagnitude(row);
+		}
+		Arrays.sort(magnitudes);
+		// The largest magnitude that has to be left out
+		double excluded = magnitudes[size - MAX_SUPERSET_EARTHQUAKES - 1];
+		double floor = minMagnitude;
+		while (floor <= excluded) {
+			floor += FLOOR_STEP;
+		}
+		return floor;
+	}
+
+	/**
+	 * Return the events of {@code store} at or above {@code floor}, or {@code store} itself if
+	 * that is all of them.
+	 */
+	private static EarthquakeStore atOrAbove(EarthquakeStore store, double floor) {
+		int size = store.size();
+		int count = 0;
+		for (int row = 0; row < size; row++) {
+			if (store.getMagnitude(row) >= floor) {
+				count++;
+			}
+		}
+		if (count == size) {
+			return store;
+		}
+		EarthquakeStore kept = new EarthquakeStore(count);
+		for (int row = 0; row < size; row++) {
+			if (store.getMagnitude(row) >= floor) {
+				kept.add(store, row);
+			}
+		}
+		return kept;
+	}
+
+	private synchronized EarthquakeWindowFetcher getFetcher(String baseUrl) {
+		if (mFetcher == null) {
+			mFetcher = new EarthquakeWindowFetcher(baseUrl);
+		}
+		return mFetcher;
+	}
+
+	/**
+	 * Write the current superset to the snapshot file, if one is attached.
+	 */
+	private void saveSnapshot() {
+		EarthquakeSnapshot snapshot;
+		File file;
+		synchronized (this) {
+			if (mSnapshotFile == null || mSuperset == null) {
+				return;
+			}
+			// The store is never modified once published, so it can be written unlocked
+			snapshot = new EarthquakeSnapshot(mSuperset, mCoveredMinMagnitude, mWatermark,
+					mFetchedAtMillis);
+			file = mSnapshotFile;
+		}
+		try {
+			snapshot.write(file);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Problem saving the snapshot.", e);
+		}
+	}
+
+	private void setSuperset(EarthquakeStore store, EarthquakeRollups rollups,
+	                         double minMagnitude, long watermark, long fetchedAtMillis) {
+		int size = store.size();
+		double[] magnitudes = new double[size];
+		long[] times = new long[size];
+		for (int i = 0; i < size; i++) {
+			magnitudes[i] = store.getMagnitude(i);
+			times[i] = store.getTime(i);
+		}
+
+		mSuperset = store;
+		mRollups = rollups;
+		mByTime = rowsByTime(times);
+		mByMagnitude = rowsByMagnitude(magnitudes, mByTime);
+		mSortedMagnitudes = new double[size];
+		for (int i = 0; i < size; i++) {
+			mSortedMagnitudes[i] = magnitudes[mByMagnitude[i]];
+		}
+		// Built on first use, which keeps restoring a snapshot quick; the place index follows
+		// the new superset then too
+		mSpatialIndex = null;
+		mCoveredMinMagnitude = minMagnitude;
+		mWatermark = watermark;
+		mFetchedAtMillis = fetchedAtMillis;
+	}
+
+	/**
+	 * Return the number of superset rows with a magnitude of at least {@code minMagnitude}.
+	 */
+	private int countAtLeast(double minMagnitude) {
+		// First index whose magnitude is below the cut off, in a descending array
+		int low = 0;
+		int high = mSortedMagnitudes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mSortedMagnitudes[mid] >= minMagnitude) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Return row numbers sorted by descending time. Supersets are kept newest first, so this
+	 * is normally just a check.
+	 */
+	private static int[] rowsByTime(long[] times) {
+		int size = times.length;
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = times[i - 1] >= times[i];
+		}
+		int[] byTime = new int[size];
+		if (sorted) {
+			for (int i = 0; i < size; i++) {
+				byTime[i] = i;
+			}
+			return byTime;
+		}
+
+		// Each sort key holds how far the row is behind the newest time above its row number,
+		// so that newer rows sort first and equal times keep their order, as rowsByMagnitude
+		// does for magnitudes
+		long newest = Long.MIN_VALUE;
+		long oldest = Long.MAX_VALUE;
+		for (long time : times) {
+			newest = Math.max(newest, time);
+			oldest = Math.min(oldest, time);
+		}
+		int rowBits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		long span = newest - oldest;
+		if (span < 0 || span >>> (63 - rowBits) != 0) {
+			// Times too far apart to share a key with the row, which real catalogs never are
+			return mergeSortByTime(times);
+		}
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = (newest - times[i]) << rowBits | i;
+		}
+		Arrays.sort(keys);
+		long rowMask = (1L << rowBits) - 1;
+		for (int i = 0; i < size; i++) {
+			byTime[i] = (int) (keys[i] & rowMask);
+		}
+		return byTime;
+	}
+
+	/**
+	 * Return row numbers sorted by descending time, equal times in row order, for times that
+	 * don't fit the keys of {@link #rowsByTime(long[])}.
+	 */
+	private static int[] mergeSortByTime(long[] times) {
+		int size = times.length;
+		int[] rows = new int[size];
+		for (int i = 0; i < size; i++) {
+			rows[i] = i;
+		}
+		int[] merged = new int[size];
+		for (int width = 1; width < size; width *= 2) {
+			for (int start = 0; start < size; start += 2 * width) {
+				int middle = Math.min(start + width, size);
+				int end = Math.min(start + 2 * width, size);
+				int left = start;
+				int right = middle;
+				for (int out = start; out < end; out++) {
+					if (right >= end || left < middle && times[rows[left]] >= times[rows[right]]) {
+						merged[out] = rows[left++];
+					} else {
+						merged[out] = rows[right++];
+					}
+				}
+			}
+			int[] swap = rows;
+			rows = merged;
+			merged = swap;
+		}
+		return rows;
+	}
+
+	/**
+	 * Return row numbers sorted by descending magnitude and then descending time, given
+	 * {@code byTime} from {@link #rowsByTime(long[])}.
+	 */
+	private static int[] rowsByMagnitude(double[] magnitudes, int[] byTime) {
+		// Each sort key holds the magnitude, as a float with its bits flipped so that larger
+		// magnitudes sort first, above the row's rank in time order. Sorting primitives this
+		// way is several times quicker than sorting boxed rows with a comparator.
+		int size = byTime.length;
+		long[] keys = new long[size];
+		for (int rank = 0; rank < size; rank++) {
+			int bits = Float.floatToIntBits((float) magnitudes[byTime[rank]]);
+			int ordered = bits ^ ((bits >> 31) & 0x7fffffff);
+			keys[rank] = (long) ~ordered << 32 | rank;
+		}
+		Arrays.sort(keys);
+		int[] byMagnitude = new int[size];
+		for (int i = 0; i < size; i++) {
+			byMagnitude[i] = byTime[(int) keys[i]];
+		}
+		return byMagnitude;
+	}
+
+	/**
+	 * Applies a batch of changes to a superset, producing a new one; the old one is left
+	 * untouched, as queries may still be reading it. Changes are matched to rows by event id,
+	 * and the most recently updated version of an event wins, whether it is a row or a
+	 * change. Rows stay ordered by descending time.
+	 */
+	private static final class ChangeMerge {
+
+		/**
+		 * Stands in for a sync that fetched the whole superset
+		 */
+		static final ChangeMerge FULL_FETCH = new ChangeMerge();
+
+		final EarthquakeStore store;
+
+		/**
+		 * Rows of the base superset left out of {@link #store}, ascending
+		 */
+		final int[] removedRows;
+
+		/**
+		 * Changes added to {@link #store}, whether new events or new versions of held ones
+		 */
+		final List<Earthquake> upserts;
+
+		/**
+		 * Latest update time among the changes
+		 */
+		final long watermark;
+
+		final int changes;
+
+		int inserted;
+
+		int updated;
+
+		int deleted;
+
+		int expired;
+
+		private ChangeMerge() {
+			store = null;
+			removedRows = null;
+			upserts = null;
+			watermark = Long.MIN_VALUE;
+			changes = 0;
+		}
+
+		ChangeMerge(EarthquakeStore base, List<Earthquake> changes, double minMagnitude,
+		            long oldestTime) {
+			this.changes = changes.size();
+
+			// An event may appear more than once in a batch; only its latest version counts
+			EarthquakeIdIndex latest = new EarthquakeIdIndex(changes.size());
+			boolean[] current = new boolean[changes.size()];
+			long watermark = Long.MIN_VALUE;
+			for (int i = 0; i < changes.size(); i++) {
+				Earthquake change = changes.get(i);
+				int previous = latest.get(change.getId());
+				if (previous < 0 || change.getUpdated() >= changes.get(previous).getUpdated()) {
+					latest.put(change.getId(), i);
+					current[i] = true;
+					if (previous >= 0) {
+						current[previous] = false;
+					}
+				}
+				watermark = Math.max(watermark, change.getUpdated());
+			}
+			this.watermark = watermark;
+
+			// Keep the rows that no newer change replaces or deletes
+			int size = base.size();
+			boolean[] keep = new boolean[size];
+			for (int row = 0; row < size; row++) {
+				keep[row] = base.getTime(row) >= oldestTime;
+				int i = latest.size() == 0 ? -1 : latest.get(base, row);
+				Earthquake change = i < 0 ? null : changes.get(i);
+				if (change == null) {
+					if (!keep[row]) {
+						expired++;
+					}
+				} else if (change.getUpdated() < base.getUpdated(row)) {
+					// Already hold something newer
+					current[i] = false;
+					if (!keep[row]) {
+						expired++;
+					}
+				} else if (change.isDeleted() || !includes(change, minMagnitude, oldestTime)) {
+					keep[row] = false;
+					deleted++;
+				} else {
+					keep[row] = false;
+					updated++;
+				}
+			}
+
+			upserts = new ArrayList<>(latest.size());
+			for (int i = 0; i < changes.size(); i++) {
+				Earthquake change = changes.get(i);
+				if (current[i] && !change.isDeleted()
+						&& includes(change, minMagnitude, oldestTime)) {
+					upserts.add(change);
+				}
+			}
+			inserted = upserts.size() - updated;
+			Collections.sort(upserts, new Comparator<Earthquake>() {
+				@Override
+				public int compare(Earthquake a, Earthquake b) {
+					long timeA = a.getDateAndTime();
+					long timeB = b.getDateAndTime();
+					return timeB < timeA ? -1 : (timeB > timeA ? 1 : 0);
+				}
+			});
+
+			// Both runs are newest first, so one merging pass keeps the order
+			store = new EarthquakeStore(size + upserts.size());
+			removedRows = new int[expired + deleted + updated];
+			int removed = 0;
+			int next = 0;
+			for (int row = 0; row < size; row++) {
+				if (!keep[row]) {
+					removedRows[removed++] = row;
+					continue;
+				}
+				while (next < upserts.size()
+						&& upserts.get(next).getDateAndTime() > base.getTime(row)) {
+					store.add(upserts.get(next++));
+				}
+				store.add(base, row);
+			}
+			while (next < upserts.size()) {
+				store.add(upserts.get(next++));
+			}
+		}
+
+		private static boolean includes(Earthquake earthquake, double minMagnitude,
+		                                long oldestTime) {
+			return earthquake.getMag() >= minMagnitude && earthquake.getDateAndTime() >= oldestTime;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Summary counts over a set of earthquakes, kept up to date as events are added and removed
+ * so that reading them never scans the events themselves:
+ * <ul>
+ * <li>events per magnitude band, in the bands of
+ * {@link EarthquakeFormatter#getMagnitudeBucket(double)}</li>
+ * <li>events per hour and per UTC day, in fixed rings of buckets reused as time moves on, so
+ * only the most recent {@link #HOURS} hours and {@link #DAYS} days are counted</li>
+ * <li>the largest magnitude of each region, the part of the place after "of"</li>
+ * </ul>
+ * Removing an event takes the same values it was added with. Not thread safe.
+ */
+final class EarthquakeRollups {
+
+	static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+	static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	/**
+	 * Hours counted, enough for the engine's 30 day window and a day of slack
+	 */
+	static final int HOURS = 31 * 24;
+
+	static final int DAYS = 31;
+
+	private final int[] mMagnitudeBands = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+
+	private final TimeBuckets mHours = new TimeBuckets(HOURS, HOUR_MILLIS);
+
+	private final TimeBuckets mDays = new TimeBuckets(DAYS, DAY_MILLIS);
+
+	private final StringDictionary mRegions = new StringDictionary();
+
+	/**
+	 * Magnitudes of each region's events in hundredths, ascending, so the largest is last
+	 */
+	private int[][] mRegionMagnitudes = new int[16][];
+
+	private int[] mRegionSizes = new int[16];
+
+	private int mSize;
+
+	/**
+	 * Return the rollups of every row of {@code store}.
+	 */
+	static EarthquakeRollups of(EarthquakeStore store) {
+		EarthquakeRollups rollups = new EarthquakeRollups();
+		// Regions repeat, so each is looked up once by the store's code rather than per row
+		int[] regionCodes = new int[16];
+		Arrays.fill(regionCodes, -1);
+		for (int row = 0; row < store.size(); row++) {
+			int storeCode = store.getRegionCode(row);
+			if (storeCode >= regionCodes.length) {
+				int length = regionCodes.length;
+				regionCodes = Arrays.copyOf(regionCodes, Math.max(length * 2, storeCode + 1));
+				Arrays.fill(regionCodes, length, regionCodes.length, -1);
+			}
+			if (regionCodes[storeCode] < 0) {
+				regionCodes[storeCode] = rollups.mRegions.encode(store.getRegion(row));
+			}
+			rollups.add(store.getMagnitude(row), store.getTime(row), regionCodes[storeCode], 1);
+		}
+		return rollups;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	void add(Earthquake earthquake) {
+		add(earthquake.getMag(), earthquake.getDateAndTime(),
+				mRegions.encode(EarthquakeStore.regionOf(earthquake.getPlace())), 1);
+	}
+
+	void remove(EarthquakeStore store, int row) {
+		// A region never added has nothing to remove, and must not be added now
+		add(store.getMagnitude(row), store.getTime(row), mRegions.find(store.getRegion(row)),
+				-1);
+	}
+
+	/**
+	 * Count {@code delta} events, leaving the per-region magnitudes alone if {@code region}
+	 * is -1.
+	 */
+	private void add(double magnitude, long time, int region, int delta) {
+		mSize += delta;
+		mMagnitudeBands[EarthquakeFormatter.getMagnitudeBucket(magnitude)] += delta;
+		mHours.add(time, delta);
+		mDays.add(time, delta);
+		if (region < 0) {
+			return;
+		}
+
+		if (region >= mRegionSizes.length) {
+			int length = Math.max(mRegionSizes.length * 2, region + 1);
+			mRegionMagnitudes = Arrays.copyOf(mRegionMagnitudes, length);
+			mRegionSizes = Arrays.copyOf(mRegionSizes, length);
+		}
+		int[] magnitudes = mRegionMagnitudes[region];
+		int size = mRegionSizes[region];
+		int hundredths = (int) Math.round(magnitude * 100);
+		int position = magnitudes == null
+				? -1
+				: Arrays.binarySearch(magnitudes, 0, size, hundredths);
+		if (delta > 0) {
+			if (magnitudes == null || size == magnitudes.length) {
+				magnitudes = magnitudes == null ? new int[4] : Arrays.copyOf(magnitudes, size * 2);
+				mRegionMagnitudes[region] = magnitudes;
+			}
+			int insertAt = position >= 0 ? position : -position - 1;
+			System.arraycopy(magnitudes, insertAt, magnitudes, insertAt + 1, size - insertAt);
+			magnitudes[insertAt] = hundredths;
+			mRegionSizes[region] = size + 1;
+		} else if (position >= 0) {
+			System.arraycopy(magnitudes, position + 1, magnitudes, position, size - position - 1);
+			mRegionSizes[region] = size - 1;
+		}
+	}
+
+	/**
+	 * Return the number of events in each magnitude band.
+	 */
+	int[] countByMagnitudeBand() {
+		return mMagnitudeBands.clone();
+	}
+
+	/**
+	 * Return the number of events in each of the {@code hours} hours up to and including the
+	 * one {@code endMillis} falls in, oldest first.
+	 */
+	int[] countPerHour(long endMillis, int hours) {
+		return mHours.counts(endMillis, hours);
+	}
+
+	/**
+	 * Return the number of events in each of the {@code days} UTC days up to and including
+	 * the one {@code endMillis} falls in, oldest first.
+	 */
+	int[] countPerDay(long endMillis, int days) {
+		return mDays.counts(endMillis, days);
+	}
+
+	/**
+	 * Return the largest magnitude in {@code region}, or NaN if it has no events.
+	 */
+	double maxMagnitude(String region) {
+		int code = mRegions.find(region);
+		return code < 0 || code >= mRegionSizes.length ? Double.NaN : maxMagnitude(code);
+	}
+
+	/**
+	 * Return the largest magnitude of every region with events.
+	 */
+	Map<String, Double> maxMagnitudeByRegion() {
+		Map<String, Double> maxima = new HashMap<>();
+		for (int code = 0; code < mRegions.size() && code < mRegionSizes.length; code++) {
+			if (mRegionSizes[code] > 0) {
+				maxima.put(mRegions.decode(code), maxMagnitude(code));
+			}
+		}
+		return maxima;
+	}
+
+	private double maxMagnitude(int region) {
+		int size = mRegionSizes[region];
+		return size == 0 ? Double.NaN : mRegionMagnitudes[region][size - 1] / 100.0;
+	}
+
+	/**
+	 * Counts per fixed length period in a ring. Each slot remembers which period it counts,
+	 * and is taken over by a later period that maps to it; earlier periods are no longer
+	 * counted once that happens.
+	 */
+	private static final class TimeBuckets {
+		private final long mPeriodMillis;
+
+		private final int[] mCounts;
+
+		private final long[] mPeriods;
+
+		TimeBuckets(int slots, long periodMillis) {
+			mPeriodMillis = periodMillis;
+			mCounts = new int[slots];
+			mPeriods = new long[slots];
+			Arrays.fill(mPeriods, Long.MIN_VALUE);
+		}
+
+		void add(long time, int delta) {
+			long period = floorDiv(time, mPeriodMillis);
+			int slot = slot(period);
+			if (mPeriods[slot] == period) {
+				mCounts[slot] += delta;
+			} else if (mPeriods[slot] < period && delta > 0) {
+				mPeriods[slot] = period;
+				mCounts[slot] = delta;
+			}
+			// Otherwise the period is older than the ring reaches
+		}
+
+		int[] counts(long endMillis, int periods) {
+			if (periods > mCounts.length) {
+				throw new IllegalArgumentException(
+						"Only the last " + mCounts.length + " periods are counted");
+			}
+			int[] counts = new int[periods];
+			long first = floorDiv(endMillis, mPeriodMillis) - periods + 1;
+			for (int i = 0; i < periods; i++) {
+				int slot = slot(first + i);
+				if (mPeriods[slot] == first + i) {
+					counts[i] = mCounts[slot];
+				}
+			}
+			return counts;
+		}
+
+		private int slot(long period) {
+			int slot = (int) (period % mCounts.length);
+			return slot < 0 ? slot + mCounts.length : slot;
+		}
+
+		private static long floorDiv(long x, long y) {
+			long quotient = x / y;
+			return (x % y != 0 && (x ^ y) < 0) ? quotient - 1 : quotient;
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatted rows kept on disk in blocks of {@link #BLOCK_ROWS}, so a list of any length costs
+ * about the same heap. The file is only ever appended to: a block is never changed once
+ * written, and a changed block is written again at the end. A block is known by its offset in
+ * the file, so lists built from the file stay valid while later lists are appended after them,
+ * see {@link WindowedRows}. Each block starts with the {@link EarthquakeDisplayRow#idKey} and
+ * {@link EarthquakeDisplayRow#contentKey} of its rows, which can be read on their own.
+ * <p>
+ * Blocks read or written recently are kept in memory, least recently used first out, for as
+ * long as their estimated size fits the memory budget.
+ */
+final class EarthquakeRowFile {
+
+	/**
+	 * Tag for log messages
+	 */
+	private static final String LOG_TAG = EarthquakeRowFile.class.getSimpleName();
+
+	static final int BLOCK_ROWS = 64;
+
+	private static final String DIRECTORY_NAME = "earthquake-rows";
+
+	/**
+	 * Files older than this were left behind by a process that died before closing them
+	 */
+	private static final long ABANDONED_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Approximate heap taken by a row object and by a String object, before their contents
+	 */
+	private static final int ROW_OVERHEAD_BYTES = 48;
+
+	private static final int STRING_OVERHEAD_BYTES = 40;
+
+	/**
+	 * Id and content key of one row
+	 */
+	private static final int KEY_BYTES = 8 + 4;
+
+	private final File mFile;
+
+	private final RandomAccessFile mAccess;
+
+	private final FileChannel mChannel;
+
+	private final long mBudgetBytes;
+
+	/**
+	 * Offset the next block is written at
+	 */
+	private long mLength;
+
+	private final LinkedHashMap<Long, Block> mCache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long mCachedBytes;
+
+	/**
+	 * Offsets of the blocks being read in the background
+	 */
+	private final Set<Long> mReading = new HashSet<>();
+
+	private boolean mClosed;
+
+	private static final class Block {
+		final EarthquakeDisplayRow[] rows;
+
+		final long bytes;
+
+		Block(EarthquakeDisplayRow[] rows) {
+			this.rows = rows;
+			long bytes = 0;
+			for (EarthquakeDisplayRow row : rows) {
+				bytes += estimateBytes(row);
+			}
+			this.bytes = bytes;
+		}
+	}
+
+	private EarthquakeRowFile(File file, long budgetBytes) throws IOException {
+		mFile = file;
+		mAccess = new RandomAccessFile(file, "rw");
+		mChannel = mAccess.getChannel();
+		mBudgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Create an empty file under {@code cacheDir}, whose blocks may take {@code budgetBytes}
+	 * of heap. Files abandoned by earlier processes are deleted first.
+	 */
+	static EarthquakeRowFile create(File cacheDir, long budgetBytes) throws IOException {
+		File directory = new File(cacheDir, DIRECTORY_NAME);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			long now = System.currentTimeMillis();
+			for (File file : files) {
+				if (now - file.lastModified() > ABANDONED_MILLIS) {
+					file.delete();
+				}
+			}
+		}
+		return new EarthquakeRowFile(File.createTempFile("rows", ".blocks", directory),
+				budgetBytes);
+	}
+
+	/**
+	 * Write {@code rows}, at most {@link #BLOCK_ROWS} of them, as a new block and return its
+	 * offset. The block stays in memory, as it is usually about to be shown.
+	 */
+	long write(List<EarthquakeDisplayRow> rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(rows.size());
+		for (EarthquakeDisplayRow row : rows) {
+			out.writeLong(row.idKey());
+			out.writeInt(row.contentKey());
+		}
+		for (EarthquakeDisplayRow row : rows) {
+			out.writeUTF(row.id);
+			out.writeUTF(row.magnitude);
+			out.writeInt(row.magnitudeColor);
+			out.writeUTF(row.primaryLocation);
+			out.writeUTF(row.secondaryLocation);
+			out.writeUTF(row.date);
+			out.writeUTF(row.time);
+			out.writeUTF(row.url);
+		}
+		out.close();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		buffer.putInt(0, buffer.remaining() - 4);
+
+		long offset;
+		synchronized (this) {
+			if (mClosed) {
+				throw new IOException("Closed " + mFile);
+			}
+			offset = mLength;
+			mLength += buffer.remaining();
+		}
+		while (buffer.hasRemaining()) {
+			mChannel.write(buffer, offset + buffer.position());
+		}
+		cache(offset, rows.toArray(new EarthquakeDisplayRow[rows.size()]));
+		return offset;
+	}
+
+	/**
+	 * Return the rows of the block at {@code offset} if they are in memory, or null.
+	 */
+	synchronized EarthquakeDisplayRow[] getCached(long offset) {
+		Block block = mCache.get(offset);
+		return block == null ? null : block.rows;
+	}
+
+	/**
+	 * Return the rows of the block at {@code offset}, reading them from disk if they aren't in
+	 * memory. Not for the main thread.
+	 */
+	EarthquakeDisplayRow[] read(long offset) throws IOException {
+		EarthquakeDisplayRow[] rows = getCached(offset);
+		if (rows != null) {
+			return rows;
+		}
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(length, offset);
+		ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+		readFully(body, offset + 4);
+
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(body.array(), 0, body.limit()));
+		rows = new EarthquakeDisplayRow[in.readInt()];
+		in.skipBytes(rows.length * KEY_BYTES);
+		for (int i = 0; i < rows.length; i++) {
+			String id = in.readUTF();
+			String magnitude = in.readUTF();
+			int magnitudeColor = in.readInt();
+			String primaryLocation = in.readUTF();
+			String secondaryLocation = in.readUTF();
+			String date = in.readUTF();
+			String time = in.readUTF();
+			String url = in.readUTF();
+			rows[i] = new EarthquakeDisplayRow(id, magnitude, magnitudeColor, primaryLocation,
+					secondaryLocation, date, time, url);
+		}
+		cache(offset, rows);
+		return rows;
+	}
+
+	/**
+	 * Store the id and content keys of the rows of the block at {@code offset} in
+	 * {@code idKeys} and {@code contentKeys}, from {@code start} on, and return how many rows
+	 * it holds. Only the keys are read from disk, not the rows. Not for the main thread.
+	 */
+	int readKeys(long offset, long[] idKeys, int[] contentKeys, int start) throws IOException {
+		EarthquakeDisplayRow[] rows = getCached(offset);
+		if (rows != null) {
+			for (int i = 0; i < rows.length; i++) {
+				idKeys[start + i] = rows[i].idKey();
+				contentKeys[start + i] = rows[i].contentKey();
+			}
+			return rows.length;
+		}
+		ByteBuffer count = ByteBuffer.allocate(4);
+		readFully(count, offset + 4);
+		ByteBuffer keys = ByteBuffer.allocate(count.getInt(0) * KEY_BYTES);
+		readFully(keys, offset + 8);
+		keys.flip();
+		for (int i = 0; keys.hasRemaining(); i++) {
+			idKeys[start + i] = keys.getLong();
+			contentKeys[start + i] = keys.getInt();
+		}
+		return count.getInt(0);
+	}
+
+	/**
+	 * Read the block at {@code offset} on the disk pool unless it is in memory or already being
+	 * read, then run {@code onRead} on the main thread. Blocks that are not about to be shown
+	 * are only read if the pool has room.
+	 */
+	void readInBackground(final long offset, int priority, final Runnable onRead) {
+		synchronized (this) {
+			if (mClosed || mCache.containsKey(offset) || !mReading.add(offset)) {
+				return;
+			}
+		}
+		Callable<Void> task = new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					read(offset);
+				} catch (IOException e) {
+					Log.e(LOG_TAG, "Problem reading rows.", e);
+					return null;
+				} finally {
+					synchronized (EarthquakeRowFile.this) {
+						mReading.remove(offset);
+					}
+				}
+				BackgroundScheduler.getInstance().postToMain(onRead);
+				return null;
+			}
+		};
+		BackgroundScheduler scheduler = BackgroundScheduler.getInstance();
+		boolean submitted = priority == BackgroundScheduler.PRIORITY_VISIBLE
+				? scheduler.submitDisk(priority, task) != null
+				: scheduler.trySubmitDisk(priority, task) != null;
+		if (!submitted) {
+			synchronized (this) {
+				mReading.remove(offset);
+			}
+		}
+	}
+
+	/**
+	 * Drop the blocks from memory and delete the file. Lists still using it show their rows
+	 * as missing.
+	 */
+	void close() {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			mCache.clear();
+			mCachedBytes = 0;
+		}
+		try {
+			mAccess.close();
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Problem closing " + mFile, e);
+		}
+		mFile.delete();
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (mChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Block at " + position + " ends early");
+			}
+		}
+	}
+
+	private synchronized void cache(long offset, EarthquakeDisplayRow[] rows) {
+		if (mClosed) {
+			return;
+		}
+		Block block = new Block(rows);
+		Block replaced = mCache.put(offset, block);
+		if (replaced != null) {
+			mCachedBytes -= replaced.bytes;
+		}
+		mCachedBytes += block.bytes;
+
+		// The block just cached is the most recently used, and is kept even if over budget
+		Iterator<Map.Entry<Long, Block>> eldest = mCache.entrySet().iterator();
+		while (mCachedBytes > mBudgetBytes && mCache.size() > 1) {
+			mCachedBytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+		}
+	}
+
+	private static long estimateBytes(EarthquakeDisplayRow row) {
+		return ROW_OVERHEAD_BYTES + 7 * STRING_OVERHEAD_BYTES
+				+ 2 * (row.id.length() + row.magnitude.length() + row.primaryLocation.length()
+				+ row.secondaryLocation.length() + row.date.length() + row.time.length()
+				+ row.url.length());
+	}
+}
@@ -0,0 +1,332 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * One earthquake list row, drawn straight onto the canvas instead of being laid out from
+ * nested TextViews: the magnitude in its coloured circle, the distance above the region,
+ * and the date above the time at the far end, looking just as the old layout did.
+ * <p>
+ * Lines are broken, ellipsized and measured once per bound row and width, not on every
+ * draw, so drawing only positions text. Paints are held by a {@link Style} shared by every
+ * row of a list, including one circle paint per magnitude colour.
+ */
+final class EarthquakeRowView extends View {
+
+	/**
+	 * Lines the region may wrap onto before it is ellipsized
+	 */
+	private static final int PRIMARY_MAX_LINES = 2;
+
+	/**
+	 * Dimensions and paints shared by the rows of one list
+	 */
+	static final class Style {
+		final int height;
+		final int padding;
+		final int circleSize;
+		final int gap;
+		final TextPaint magnitudePaint;
+		final TextPaint secondaryPaint;
+		final TextPaint primaryPaint;
+		final TextPaint detailsPaint;
+		final Paint.FontMetricsInt magnitudeMetrics;
+		final Paint.FontMetricsInt secondaryMetrics;
+		final Paint.FontMetricsInt primaryMetrics;
+		final Paint.FontMetricsInt detailsMetrics;
+
+		/**
+		 * Resource id of the touch feedback drawn behind each row
+		 */
+		final int background;
+
+		/**
+		 * Locale the distance is upper cased in, as a TextView with textAllCaps does
+		 */
+		final Locale locale;
+
+		private int[] mCircleColors = new int[0];
+
+		private Paint[] mCirclePaints = new Paint[0];
+
+		Style(Context context) {
+			Resources resources = context.getResources();
+			TypedValue value = new TypedValue();
+			context.getTheme().resolveAttribute(android.R.attr.listPreferredItemHeight, value,
+					true);
+			height = (int) value.getDimension(resources.getDisplayMetrics());
+			context.getTheme().resolveAttribute(android.R.attr.selectableItemBackground, value,
+					true);
+			background = value.resourceId;
+			padding = resources.getDimensionPixelSize(R.dimen.earthquake_row_padding);
+			circleSize = resources.getDimensionPixelSize(R.dimen.magnitude_circle_size);
+			gap = resources.getDimensionPixelSize(R.dimen.earthquake_row_gap);
+			locale = resources.getConfiguration().locale;
+
+			Typeface medium = Typeface.create("sans-serif-medium", Typeface.NORMAL);
+			int detailsColor = ContextCompat.getColor(context, R.color.textColorEarthquakeDetails);
+			magnitudePaint = newTextPaint(medium, 0xFFFFFFFF,
+					resources.getDimension(R.dimen.magnitude_text_size));
+			secondaryPaint = newTextPaint(medium, detailsColor,
+					resources.getDimension(R.dimen.earthquake_detail_text_size));
+			primaryPaint = newTextPaint(Typeface.DEFAULT,
+					ContextCompat.getColor(context, R.color.textColorEarthquakeLocation),
+					resources.getDimension(R.dimen.earthquake_location_text_size));
+			detailsPaint = newTextPaint(Typeface.DEFAULT, detailsColor,
+					resources.getDimension(R.dimen.earthquake_detail_text_size));
+			magnitudeMetrics = magnitudePaint.getFontMetricsInt();
+			secondaryMetrics = secondaryPaint.getFontMetricsInt();
+			primaryMetrics = primaryPaint.getFontMetricsInt();
+			detailsMetrics = detailsPaint.getFontMetricsInt();
+		}
+
+		/**
+		 * Return the paint for magnitude circles of {@code color}. There are only as many
+		 * colours as magnitude buckets, so they are simply searched.
+		 */
+		Paint getCirclePaint(int color) {
+			for (int i = 0; i < mCircleColors.length; i++) {
+				if (mCircleColors[i] == color) {
+					return mCirclePaints[i];
+				}
+			}
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+			paint.setColor(color);
+			int count = mCircleColors.length;
+			mCircleColors = Arrays.copyOf(mCircleColors, count + 1);
+			mCirclePaints = Arrays.copyOf(mCirclePaints, count + 1);
+			mCircleColors[count] = color;
+			mCirclePaints[count] = paint;
+			return paint;
+		}
+
+		private static TextPaint newTextPaint(Typeface typeface, int color, float size) {
+			TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+			paint.setTypeface(typeface);
+			paint.setColor(color);
+			paint.setTextSize(size);
+			return paint;
+		}
+	}
+
+	private final Style mStyle;
+
+	private EarthquakeDisplayRow mRow;
+
+	private Paint mCirclePaint;
+
+	/**
+	 * Width the lines below were laid out for, or -1 if they need laying out
+	 */
+	private int mLaidOutWidth = -1;
+
+	private CharSequence mSecondaryLine;
+
+	private final CharSequence[] mPrimaryLines = new CharSequence[PRIMARY_MAX_LINES];
+
+	private int mPrimaryLineCount;
+
+	/*
+	 * Where each piece of text starts and where its baseline is
+	 */
+
+	private float mCircleX;
+
+	private float mMagnitudeX;
+
+	private float mMagnitudeY;
+
+	private float mSecondaryX;
+
+	private float mSecondaryY;
+
+	private final float[] mPrimaryX = new float[PRIMARY_MAX_LINES];
+
+	private final float[] mPrimaryY = new float[PRIMARY_MAX_LINES];
+
+	private float mDateX;
+
+	private float mDateY;
+
+	private float mTimeX;
+
+	private float mTimeY;
+
+	EarthquakeRowView(Context context, Style style) {
+		super(context);
+		mStyle = style;
+		setBackgroundResource(style.background);
+		setClickable(true);
+	}
+
+	/**
+	 * Show {@code row}, laying out its text straight away if the width is already known, or
+	 * an empty row of the same height if null.
+	 */
+	void bind(EarthquakeDisplayRow row) {
+		if (row == mRow) {
+			return;
+		}
+		mRow = row;
+		if (row == null) {
+			invalidate();
+			return;
+		}
+		mCirclePaint = mStyle.getCirclePaint(row.magnitudeColor);
+		mLaidOutWidth = -1;
+		if (getWidth() > 0) {
+			layoutText(getWidth(), getHeight());
+		}
+		invalidate();
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+				resolveSize(mStyle.height, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		mLaidOutWidth = -1;
+		if (mRow != null) {
+			layoutText(width, height);
+		}
+	}
+
+	/**
+	 * Break, ellipsize and place every line of the bound row for a row of the given size.
+	 * Positions are worked out left to right and mirrored for right-to-left locales.
+	 */
+	private void layoutText(int width, int height) {
+		Style style = mStyle;
+		EarthquakeDisplayRow row = mRow;
+		boolean rtl = ViewCompat.getLayoutDirection(this) == ViewCompat.LAYOUT_DIRECTION_RTL;
+
+		// Magnitude circle, centred vertically at the start
+		float circleLeft = style.padding;
+		mCircleX = circleLeft + style.circleSize / 2f;
+		float magnitudeWidth = style.magnitudePaint.measureText(row.magnitude);
+		mMagnitudeX = mCircleX - magnitudeWidth / 2;
+		mMagnitudeY = height / 2f
+				- (style.magnitudeMetrics.top + style.magnitudeMetrics.bottom) / 2f;
+
+		// Date over time at the end, each flush with the end edge, from the top
+		float dateWidth = style.detailsPaint.measureText(row.date);
+		float timeWidth = style.detailsPaint.measureText(row.time);
+		float detailsRight = width - style.padding;
+		float detailsLeft = detailsRight - Math.max(dateWidth, timeWidth);
+		mDateX = detailsRight - dateWidth;
+		mTimeX = detailsRight - timeWidth;
+		Paint.FontMetricsInt details = style.detailsMetrics;
+		mDateY = -details.top;
+		mTimeY = mDateY + details.bottom - details.top;
+
+		// The distance over the region in between, the two centred vertically as a block
+		float textLeft = circleLeft + style.circleSize + style.gap;
+		int available = Math.max(0, (int) (detailsLeft - style.gap - textLeft));
+		mSecondaryLine = TextUtils.ellipsize(row.secondaryLocation.toUpperCase(style.locale),
+				style.secondaryPaint, available, TextUtils.TruncateAt.END);
+		breakPrimary(row.primaryLocation, available);
+
+		Paint.FontMetricsInt secondary = style.secondaryMetrics;
+		Paint.FontMetricsInt primary = style.primaryMetrics;
+		int secondaryHeight = secondary.bottom - secondary.top;
+		int primaryHeight = primary.bottom - primary.top
+				+ (mPrimaryLineCount - 1) * (primary.descent - primary.ascent);
+		float top = (height - secondaryHeight - primaryHeight) / 2f;
+		mSecondaryX = textLeft;
+		mSecondaryY = top - secondary.top;
+		for (int i = 0; i < mPrimaryLineCount; i++) {
+			mPrimaryX[i] = textLeft;
+			mPrimaryY[i] = top + secondaryHeight - primary.top
+					+ i * (primary.descent - primary.ascent);
+		}
+
+		if (rtl) {
+			mCircleX = width - mCircleX;
+			mMagnitudeX = width - mMagnitudeX - magnitudeWidth;
+			mDateX = width - mDateX - dateWidth;
+			mTimeX = width - mTimeX - timeWidth;
+			mSecondaryX = width - mSecondaryX
+					- style.secondaryPaint.measureText(mSecondaryLine, 0, mSecondaryLine.length());
+			for (int i = 0; i < mPrimaryLineCount; i++) {
+				mPrimaryX[i] = width - mPrimaryX[i] - style.primaryPaint.measureText(
+						mPrimaryLines[i], 0, mPrimaryLines[i].length());
+			}
+		}
+		mLaidOutWidth = width;
+	}
+
+	/**
+	 * Split the region into at most {@link #PRIMARY_MAX_LINES} lines of {@code width},
+	 * ellipsizing the last. Most regions fit on one line, which needs no line breaking.
+	 */
+	private void breakPrimary(String text, int width) {
+		TextPaint paint = mStyle.primaryPaint;
+		if (paint.measureText(text) <= width) {
+			mPrimaryLines[0] = text;
+			mPrimaryLineCount = 1;
+			return;
+		}
+		StaticLayout layout = new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL,
+				1, 0, true);
+		int lines = Math.min(layout.getLineCount(), PRIMARY_MAX_LINES);
+		for (int i = 0; i < lines - 1; i++) {
+			mPrimaryLines[i] = text.substring(layout.getLineStart(i), layout.getLineEnd(i)).trim();
+		}
+		mPrimaryLines[lines - 1] = TextUtils.ellipsize(
+				text.substring(layout.getLineStart(lines - 1)).trim(), paint, width,
+				TextUtils.TruncateAt.END);
+		mPrimaryLineCount = lines;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mRow == null) {
+			return;
+		}
+		if (mLaidOutWidth != getWidth()) {
+			layoutText(getWidth(), getHeight());
+		}
+		Style style = mStyle;
+		canvas.drawCircle(mCircleX, getHeight() / 2f, style.circleSize / 2f, mCirclePaint);
+		canvas.drawText(mRow.magnitude, mMagnitudeX, mMagnitudeY, style.magnitudePaint);
+		canvas.drawText(mSecondaryLine, 0, mSecondaryLine.length(), mSecondaryX, mSecondaryY,
+				style.secondaryPaint);
+		for (int i = 0; i < mPrimaryLineCount; i++) {
+			canvas.drawText(mPrimaryLines[i], 0, mPrimaryLines[i].length(), mPrimaryX[i],
+					mPrimaryY[i], style.primaryPaint);
+		}
+		canvas.drawText(mRow.date, mDateX, mDateY, style.detailsPaint);
+		canvas.drawText(mRow.time, mTimeX, mTimeY, style.detailsPaint);
+	}
+
+	/**
+	 * Describe the row as the separate TextViews it replaces would have been read out.
+	 */
+	@Override
+	public void onInitializeAccessibilityNodeInfo(AccessibilityNodeInfo info) {
+		super.onInitializeAccessibilityNodeInfo(info);
+		if (mRow != null) {
+			info.setContentDescription(mRow.magnitude + ", " + mRow.secondaryLocation + " "
+					+ mRow.primaryLocation + ", " + mRow.date + " " + mRow.time);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the engine's superset, so a cold start can show the last known earthquakes
+ * without parsing JSON. The file holds the {@link EarthquakeStore} columns as they are in
+ * memory, fixed width primitives followed by the string dictionaries, and is read back through
+ * a memory map with bulk copies into the column arrays.
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * int    magic "QKSN"
+ * int    version
+ * double lowest magnitude held
+ * long   latest USGS update time held
+ * long   wall clock time the data was fetched
+ * ...    the store, see {@link EarthquakeStore#writeTo}
+ * long   CRC-32 of everything above
+ * </pre>
+ * A file with another version or a bad checksum is deleted and ignored, leaving the data to
+ * come from the JSON feed as before.
+ */
+final class EarthquakeSnapshot {
+
+	private static final String LOG_TAG = EarthquakeSnapshot.class.getSimpleName();
+
+	/**
+	 * Name of the snapshot in the app's files directory
+	 */
+	static final String FILE_NAME = "superset.snapshot";
+
+	private static final int MAGIC = 0x514b534e;
+
+	/**
+	 * Bumped whenever the layout changes
+	 */
+	static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+
+	private static final int CHECKSUM_BYTES = 8;
+
+	final EarthquakeStore store;
+
+	final double minMagnitude;
+
+	final long watermark;
+
+	final long fetchedAtMillis;
+
+	EarthquakeSnapshot(EarthquakeStore store, double minMagnitude, long watermark,
+	                   long fetchedAtMillis) {
+		this.store = store;
+		this.minMagnitude = minMagnitude;
+		this.watermark = watermark;
+		this.fetchedAtMillis = fetchedAtMillis;
+	}
+
+	/**
+	 * Replace {@code file} with this snapshot. The file is written under another name first,
+	 * so a crash midway leaves the previous snapshot in place.
+	 */
+	void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new CheckedOutputStream(fileOut, crc), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(minMagnitude);
+			out.writeLong(watermark);
+			out.writeLong(fetchedAtMillis);
+			store.writeTo(out);
+			out.flush();
+			// The checksum itself isn't checksummed
+			new DataOutputStream(fileOut).writeLong(crc.getValue());
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to replace snapshot " + file);
+		}
+	}
+
+	/**
+	 * Return the snapshot in {@code file}, or null if there is none or it can't be used.
+	 */
+	static EarthquakeSnapshot read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < HEADER_BYTES + CHECKSUM_BYTES || size > Integer.MAX_VALUE) {
+				return discard(file, "truncated");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt() != MAGIC) {
+				return discard(file, "not a snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				return discard(file, "version " + version);
+			}
+			int contentBytes = (int) size - CHECKSUM_BYTES;
+			if (checksum(buffer, contentBytes) != buffer.getLong(contentBytes)) {
+				return discard(file, "checksum mismatch");
+			}
+
+			buffer.position(8);
+			double minMagnitude = buffer.getDouble();
+			long watermark = buffer.getLong();
+			long fetchedAtMillis = buffer.getLong();
+			EarthquakeStore store = EarthquakeStore.readFrom(buffer);
+			if (buffer.position() != contentBytes) {
+				return discard(file, "unexpected length");
+			}
+			return new EarthquakeSnapshot(store, minMagnitude, watermark, fetchedAtMillis);
+		} catch (IOException | RuntimeException e) {
+			// Runtime exceptions cover columns that don't fit the file
+			Log.e(LOG_TAG, "Problem reading the snapshot.", e);
+			return discard(file, e.toString());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+					// Only read from
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the CRC-32 of the first {@code length} bytes of {@code buffer}.
+	 */
+	private static long checksum(ByteBuffer buffer, int length) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		ByteBuffer view = buffer.duplicate();
+		view.position(0);
+		while (length > 0) {
+			int count = Math.min(length, chunk.length);
+			view.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+			length -= count;
+		}
+		return crc.getValue();
+	}
+
+	private static EarthquakeSnapshot discard(File file, String reason) {
+		Log.w(LOG_TAG, "Ignoring snapshot " + file + ": " + reason);
+		file.delete();
+		return null;
+	}
+}
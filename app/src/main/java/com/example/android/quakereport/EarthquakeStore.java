@@ -0,0 +1,465 @@
+package com.example.android.quakereport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Column oriented store for large earthquake catalogs. Instead of one {@link Earthquake}
+ * object per event, each attribute lives in its own primitive array:
+ * <ul>
+ * <li>magnitudes, times and last update times as {@code double[]} and {@code long[]}s</li>
+ * <li>longitude, latitude and depth as {@code double[]}s, NaN where unknown</li>
+ * <li>the place split into its distance part ("12km SSW of") and its region ("Volcano,
+ * Hawaii"), each dictionary encoded since both repeat heavily</li>
+ * <li>the USGS event id, whose characters are packed into one shared {@code char[]}</li>
+ * <li>the url as a dictionary encoded prefix which the event id completes</li>
+ * </ul>
+ * Rows are read back through the column getters, or as {@link Earthquake}s created on
+ * demand by the read-only list views. The columns can be written out as they are and read
+ * back with bulk copies, see {@link EarthquakeSnapshot}.
+ */
+final class EarthquakeStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final String PLACE_SEPARATOR = " of ";
+
+	private int mSize;
+
+	private double[] mMagnitudes;
+
+	private long[] mTimes;
+
+	private long[] mUpdates;
+
+	private double[] mLongitudes;
+
+	private double[] mLatitudes;
+
+	private double[] mDepths;
+
+	private int[] mOffsetCodes;
+
+	private int[] mRegionCodes;
+
+	/**
+	 * Code of the url prefix that the event id completes, or the complement of the code of
+	 * the whole url for the rare url that doesn't end with its event id
+	 */
+	private int[] mUrlPrefixCodes;
+
+	private int[] mIdStarts;
+
+	private int[] mIdLengths;
+
+	private char[] mIdChars;
+
+	private int mIdCharsUsed;
+
+	private final StringDictionary mOffsets = new StringDictionary();
+
+	private final StringDictionary mRegions = new StringDictionary();
+
+	private final StringDictionary mUrlPrefixes = new StringDictionary();
+
+	EarthquakeStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	EarthquakeStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		mMagnitudes = new double[capacity];
+		mTimes = new long[capacity];
+		mUpdates = new long[capacity];
+		mLongitudes = new double[capacity];
+		mLatitudes = new double[capacity];
+		mDepths = new double[capacity];
+		mOffsetCodes = new int[capacity];
+		mRegionCodes = new int[capacity];
+		mUrlPrefixCodes = new int[capacity];
+		mIdStarts = new int[capacity];
+		mIdLengths = new int[capacity];
+		mIdChars = new char[capacity * 12];
+	}
+
+	/**
+	 * Return a store holding {@code earthquakes}, in the same order.
+	 */
+	static EarthquakeStore of(List<Earthquake> earthquakes) {
+		EarthquakeStore store = new EarthquakeStore(earthquakes.size());
+		for (int i = 0; i < earthquakes.size(); i++) {
+			store.add(earthquakes.get(i));
+		}
+		return store;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Append an earthquake and return its row number.
+	 */
+	int add(Earthquake earthquake) {
+		return add(earthquake.getId(), earthquake.getMag(), earthquake.getPlace(),
+				earthquake.getDateAndTime(), earthquake.getUrl(), earthquake.getLongitude(),
+				earthquake.getLatitude(), earthquake.getDepth(), earthquake.getUpdated());
+	}
+
+	int add(String id, double magnitude, String place, long time, String url,
+	        double longitude, double latitude, double depth, long updated) {
+		ensureCapacity(mSize + 1);
+		int row = mSize++;
+		mMagnitudes[row] = magnitude;
+		mTimes[row] = time;
+		mUpdates[row] = updated;
+		mLongitudes[row] = longitude;
+		mLatitudes[row] = latitude;
+		mDepths[row] = depth;
+
+		// Keep the separator with the distance part so the place can be rebuilt exactly
+		int split = place.indexOf(PLACE_SEPARATOR);
+		if (split >= 0) {
+			split += PLACE_SEPARATOR.length();
+			mOffsetCodes[row] = mOffsets.encode(place.substring(0, split));
+			mRegionCodes[row] = mRegions.encode(place.substring(split));
+		} else {
+			mOffsetCodes[row] = mOffsets.encode("");
+			mRegionCodes[row] = mRegions.encode(place);
+		}
+
+		int idLength = id.length();
+		if (mIdCharsUsed + idLength > mIdChars.length) {
+			mIdChars = Arrays.copyOf(mIdChars,
+					Math.max(mIdChars.length * 2, mIdCharsUsed + idLength));
+		}
+		id.getChars(0, idLength, mIdChars, mIdCharsUsed);
+		mIdStarts[row] = mIdCharsUsed;
+		mIdLengths[row] = idLength;
+		mIdCharsUsed += idLength;
+
+		if (url.endsWith(id)) {
+			mUrlPrefixCodes[row] = mUrlPrefixes.encode(url.substring(0, url.length() - idLength));
+		} else {
+			mUrlPrefixCodes[row] = ~mUrlPrefixes.encode(url);
+		}
+		return row;
+	}
+
+	/**
+	 * Append row {@code sourceRow} of {@code source} and return its row number here. The
+	 * columns are copied as they are, without the place and url being put back together
+	 * and split again.
+	 */
+	int add(EarthquakeStore source, int sourceRow) {
+		ensureCapacity(mSize + 1);
+		int row = mSize++;
+		mMagnitudes[row] = source.mMagnitudes[sourceRow];
+		mTimes[row] = source.mTimes[sourceRow];
+		mUpdates[row] = source.mUpdates[sourceRow];
+		mLongitudes[row] = source.mLongitudes[sourceRow];
+		mLatitudes[row] = source.mLatitudes[sourceRow];
+		mDepths[row] = source.mDepths[sourceRow];
+		mOffsetCodes[row] = mOffsets.encode(source.getLocationOffset(sourceRow));
+		mRegionCodes[row] = mRegions.encode(source.getRegion(sourceRow));
+
+		int idLength = source.mIdLengths[sourceRow];
+		if (mIdCharsUsed + idLength > mIdChars.length) {
+			mIdChars = Arrays.copyOf(mIdChars,
+					Math.max(mIdChars.length * 2, mIdCharsUsed + idLength));
+		}
+		source.getIdChars(sourceRow, mIdChars, mIdCharsUsed);
+		mIdStarts[row] = mIdCharsUsed;
+		mIdLengths[row] = idLength;
+		mIdCharsUsed += idLength;
+
+		int urlCode = source.mUrlPrefixCodes[sourceRow];
+		mUrlPrefixCodes[row] = urlCode < 0
+				? ~mUrlPrefixes.encode(source.mUrlPrefixes.decode(~urlCode))
+				: mUrlPrefixes.encode(source.mUrlPrefixes.decode(urlCode));
+		return row;
+	}
+
+	double getMagnitude(int row) {
+		return mMagnitudes[row];
+	}
+
+	long getTime(int row) {
+		return mTimes[row];
+	}
+
+	long getUpdated(int row) {
+		return mUpdates[row];
+	}
+
+	double getLongitude(int row) {
+		return mLongitudes[row];
+	}
+
+	double getLatitude(int row) {
+		return mLatitudes[row];
+	}
+
+	double getDepth(int row) {
+		return mDepths[row];
+	}
+
+	/**
+	 * Return the distance part of the place, such as "12km SSW of", or "" if there is none.
+	 */
+	String getLocationOffset(int row) {
+		return mOffsets.decode(mOffsetCodes[row]);
+	}
+
+	/**
+	 * Return the region part of the place, such as "Volcano, Hawaii".
+	 */
+	String getRegion(int row) {
+		return mRegions.decode(mRegionCodes[row]);
+	}
+
+	/**
+	 * Return the region part of {@code place}, as {@link #getRegion(int)} would for a row
+	 * added with it.
+	 */
+	static String regionOf(String place) {
+		int split = place.indexOf(PLACE_SEPARATOR);
+		return split < 0 ? place : place.substring(split + PLACE_SEPARATOR.length());
+	}
+
+	int getRegionCode(int row) {
+		return mRegionCodes[row];
+	}
+
+	/**
+	 * Return the dictionary code of the distance part of the place, shared by every row with
+	 * the same distance part.
+	 */
+	int getLocationOffsetCode(int row) {
+		return mOffsetCodes[row];
+	}
+
+	String getPlace(int row) {
+		String offset = getLocationOffset(row);
+		return offset.isEmpty() ? getRegion(row) : offset + getRegion(row);
+	}
+
+	String getId(int row) {
+		return new String(mIdChars, mIdStarts[row], mIdLengths[row]);
+	}
+
+	/**
+	 * Return what {@link String#hashCode()} of the event id would, without creating it.
+	 */
+	int getIdHash(int row) {
+		int hash = 0;
+		int end = mIdStarts[row] + mIdLengths[row];
+		for (int i = mIdStarts[row]; i < end; i++) {
+			hash = 31 * hash + mIdChars[i];
+		}
+		return hash;
+	}
+
+	int getIdLength(int row) {
+		return mIdLengths[row];
+	}
+
+	/**
+	 * Copy the characters of the event id into {@code dst} from {@code dstStart} on.
+	 */
+	void getIdChars(int row, char[] dst, int dstStart) {
+		System.arraycopy(mIdChars, mIdStarts[row], dst, dstStart, mIdLengths[row]);
+	}
+
+	/**
+	 * Return true if the event id is the {@code length} characters of {@code chars} from
+	 * {@code start} on.
+	 */
+	boolean idEquals(int row, char[] chars, int start, int length) {
+		if (mIdLengths[row] != length) {
+			return false;
+		}
+		int idStart = mIdStarts[row];
+		for (int i = 0; i < length; i++) {
+			if (mIdChars[idStart + i] != chars[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String getUrl(int row) {
+		int code = mUrlPrefixCodes[row];
+		if (code < 0) {
+			return mUrlPrefixes.decode(~code);
+		}
+		String prefix = mUrlPrefixes.decode(code);
+		return new StringBuilder(prefix.length() + mIdLengths[row])
+				.append(prefix)
+				.append(mIdChars, mIdStarts[row], mIdLengths[row])
+				.toString();
+	}
+
+	/**
+	 * Return a new {@link Earthquake} holding the given row.
+	 */
+	Earthquake get(int row) {
+		if (row < 0 || row >= mSize) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + mSize);
+		}
+		return new Earthquake(getId(row), mMagnitudes[row], getPlace(row), mTimes[row],
+				getUrl(row), mLongitudes[row], mLatitudes[row], mDepths[row], mUpdates[row]);
+	}
+
+	/**
+	 * Return a read-only view of every row. Earthquakes are created as they are read and are
+	 * not retained by the view.
+	 */
+	List<Earthquake> asList() {
+		return new RowView(null, 0, mSize);
+	}
+
+	/**
+	 * Return a read-only view of {@code rows[from, to)}, for serving a page of an index.
+	 */
+	List<Earthquake> asList(int[] rows, int from, int to) {
+		return new RowView(rows, from, to);
+	}
+
+	/**
+	 * Write every column, followed by the dictionaries.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(mSize);
+		out.writeInt(mIdCharsUsed);
+		for (int row = 0; row < mSize; row++) {
+			out.writeDouble(mMagnitudes[row]);
+		}
+		for (int row = 0; row < mSize; row++) {
+			out.writeLong(mTimes[row]);
+		}
+		for (int row = 0; row < mSize; row++) {
+			out.writeLong(mUpdates[row]);
+		}
+		for (int row = 0; row < mSize; row++) {
+			out.writeDouble(mLongitudes[row]);
+		}
+		for (int row = 0; row < mSize; row++) {
+			out.writeDouble(mLatitudes[row]);
+		}
+		for (int row = 0; row < mSize; row++) {
+			out.writeDouble(mDepths[row]);
+		}
+		writeInts(out, mOffsetCodes, mSize);
+		writeInts(out, mRegionCodes, mSize);
+		writeInts(out, mUrlPrefixCodes, mSize);
+		writeInts(out, mIdStarts, mSize);
+		writeInts(out, mIdLengths, mSize);
+		for (int i = 0; i < mIdCharsUsed; i++) {
+			out.writeChar(mIdChars[i]);
+		}
+		mOffsets.writeTo(out);
+		mRegions.writeTo(out);
+		mUrlPrefixes.writeTo(out);
+	}
+
+	/**
+	 * Return the store written by {@link #writeTo(DataOutputStream)}, whose columns start at
+	 * the position of {@code in}. Leaves {@code in} positioned after them.
+	 */
+	static EarthquakeStore readFrom(ByteBuffer in) {
+		int size = in.getInt();
+		int idCharsUsed = in.getInt();
+		EarthquakeStore store = new EarthquakeStore(size);
+		in.asDoubleBuffer().get(store.mMagnitudes, 0, size);
+		in.position(in.position() + size * 8);
+		in.asLongBuffer().get(store.mTimes, 0, size);
+		in.position(in.position() + size * 8);
+		in.asLongBuffer().get(store.mUpdates, 0, size);
+		in.position(in.position() + size * 8);
+		in.asDoubleBuffer().get(store.mLongitudes, 0, size);
+		in.position(in.position() + size * 8);
+		in.asDoubleBuffer().get(store.mLatitudes, 0, size);
+		in.position(in.position() + size * 8);
+		in.asDoubleBuffer().get(store.mDepths, 0, size);
+		in.position(in.position() + size * 8);
+		readInts(in, store.mOffsetCodes, size);
+		readInts(in, store.mRegionCodes, size);
+		readInts(in, store.mUrlPrefixCodes, size);
+		readInts(in, store.mIdStarts, size);
+		readInts(in, store.mIdLengths, size);
+		store.mIdChars = new char[Math.max(idCharsUsed, 1)];
+		in.asCharBuffer().get(store.mIdChars, 0, idCharsUsed);
+		in.position(in.position() + idCharsUsed * 2);
+		store.mIdCharsUsed = idCharsUsed;
+		store.mOffsets.readFrom(in);
+		store.mRegions.readFrom(in);
+		store.mUrlPrefixes.readFrom(in);
+		store.mSize = size;
+		return store;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] column, int size)
+			throws IOException {
+		for (int row = 0; row < size; row++) {
+			out.writeInt(column[row]);
+		}
+	}
+
+	private static void readInts(ByteBuffer in, int[] column, int size) {
+		in.asIntBuffer().get(column, 0, size);
+		in.position(in.position() + size * 4);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= mMagnitudes.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, mMagnitudes.length * 2);
+		mMagnitudes = Arrays.copyOf(mMagnitudes, newCapacity);
+		mTimes = Arrays.copyOf(mTimes, newCapacity);
+		mUpdates = Arrays.copyOf(mUpdates, newCapacity);
+		mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+		mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+		mDepths = Arrays.copyOf(mDepths, newCapacity);
+		mOffsetCodes = Arrays.copyOf(mOffsetCodes, newCapacity);
+		mRegionCodes = Arrays.copyOf(mRegionCodes, newCapacity);
+		mUrlPrefixCodes = Arrays.copyOf(mUrlPrefixCodes, newCapacity);
+		mIdStarts = Arrays.copyOf(mIdStarts, newCapacity);
+		mIdLengths = Arrays.copyOf(mIdLengths, newCapacity);
+	}
+
+	/**
+	 * List over a run of rows, either directly or through an index array
+	 */
+	private final class RowView extends AbstractList<Earthquake> implements RandomAccess {
+		private final int[] mRows;
+		private final int mFrom;
+		private final int mTo;
+
+		RowView(int[] rows, int from, int to) {
+			mRows = rows;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		public Earthquake get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+			}
+			int position = mFrom + index;
+			return EarthquakeStore.this.get(mRows == null ? position : mRows[position]);
+		}
+
+		@Override
+		public int size() {
+			return mTo - mFrom;
+		}
+	}
+}
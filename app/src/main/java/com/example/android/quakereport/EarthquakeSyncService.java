@@ -0,0 +1,59 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+
+import java.io.File;
+
+/**
+ * Keeps the {@link EarthquakeQueryEngine}'s superset current in the background by applying
+ * the changes USGS made since the last sync, so the list opens on up to date local data.
+ * Started periodically by an inexact alarm, which the system batches with other apps' alarms
+ * and which never wakes the device.
+ */
+public class EarthquakeSyncService extends IntentService {
+
+	/**
+	 * How often the superset is synced; also how long the engine trusts it
+	 */
+	static final long SYNC_INTERVAL_MILLIS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+	public EarthquakeSyncService() {
+		super(EarthquakeSyncService.class.getSimpleName());
+	}
+
+	/**
+	 * Start syncing every {@link #SYNC_INTERVAL_MILLIS}. Scheduling again replaces the
+	 * existing alarm, so this may be called every time the app starts.
+	 */
+	static void schedule(Context context) {
+		AlarmManager alarmManager =
+				(AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent sync = PendingIntent.getService(context, 0,
+				new Intent(context, EarthquakeSyncService.class),
+				PendingIntent.FLAG_UPDATE_CURRENT);
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+				SystemClock.elapsedRealtime() + SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, sync);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		ConnectivityManager connectivityManager =
+				(ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		if (networkInfo == null || !networkInfo.isConnected()) {
+			// Try again at the next alarm
+			return;
+		}
+		EarthquakeQueryEngine engine = EarthquakeQueryEngine.getInstance();
+		// Apply the changes to the saved superset rather than fetching it all again
+		engine.attachSnapshot(new File(getFilesDir(), EarthquakeSnapshot.FILE_NAME));
+		engine.sync(EarthquakeActivity.USGS_REQUEST_URL);
+	}
+}
@@ -0,0 +1,129 @@
+package com.example.android.quakereport;
+
+import java.util.Locale;
+
+/**
+ * What the background syncs of the {@link EarthquakeQueryEngine} have done so far: totals
+ * since the process started, and the details of the last sync. Immutable; each sync publishes
+ * a new instance.
+ */
+final class EarthquakeSyncStats {
+
+	static final EarthquakeSyncStats NONE = new EarthquakeSyncStats(0, 0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0);
+
+	/**
+	 * Syncs attempted, including failed ones and full fetches
+	 */
+	final int syncs;
+
+	final int failures;
+
+	/**
+	 * Syncs that fetched the whole superset because there was nothing to apply changes to
+	 */
+	final int fullFetches;
+
+	/**
+	 * Changes received over all syncs
+	 */
+	final long totalChanges;
+
+	/**
+	 * Wall clock time the last sync finished, or 0 if none has
+	 */
+	final long lastSyncMillis;
+
+	/**
+	 * Time between the last two syncs, or 0 before the second
+	 */
+	final long intervalMillis;
+
+	final long durationMillis;
+
+	/**
+	 * Changes received by the last sync, including deletions
+	 */
+	final int changes;
+
+	final int inserted;
+
+	final int updated;
+
+	final int deleted;
+
+	/**
+	 * Rows dropped by the last sync for having aged out of the time window
+	 */
+	final int expired;
+
+	/**
+	 * Time the last sync spent merging its changes, excluding the download
+	 */
+	final long mergeNanos;
+
+	/**
+	 * Rows held after the last sync
+	 */
+	final int size;
+
+	private EarthquakeSyncStats(int syncs, int failures, int fullFetches, long totalChanges,
+	                            long lastSyncMillis, long intervalMillis, long durationMillis,
+	                            int changes, int inserted, int updated, int deleted,
+	                            int expired, long mergeNanos, int size) {
+		this.syncs = syncs;
+		this.failures = failures;
+		this.fullFetches = fullFetches;
+		this.totalChanges = totalChanges;
+		this.lastSyncMillis = lastSyncMillis;
+		this.intervalMillis = intervalMillis;
+		this.durationMillis = durationMillis;
+		this.changes = changes;
+		this.inserted = inserted;
+		this.updated = updated;
+		this.deleted = deleted;
+		this.expired = expired;
+		this.mergeNanos = mergeNanos;
+		this.size = size;
+	}
+
+	/**
+	 * Return the stats after a failed sync.
+	 */
+	EarthquakeSyncStats failed() {
+		return new EarthquakeSyncStats(syncs + 1, failures + 1, fullFetches, totalChanges,
+				lastSyncMillis, intervalMillis, durationMillis, changes, inserted, updated,
+				deleted, expired, mergeNanos, size);
+	}
+
+	/**
+	 * Return the stats after a sync that finished at {@code nowMillis}.
+	 */
+	EarthquakeSyncStats succeeded(long nowMillis, long durationMillis, boolean fullFetch,
+	                              int changes, int inserted, int updated, int deleted,
+	                              int expired, long mergeNanos, int size) {
+		return new EarthquakeSyncStats(syncs + 1, failures, fullFetches + (fullFetch ? 1 : 0),
+				totalChanges + changes, nowMillis,
+				lastSyncMillis == 0 ? 0 : nowMillis - lastSyncMillis, durationMillis, changes,
+				inserted, updated, deleted, expired, mergeNanos, size);
+	}
+
+	/**
+	 * Rows merged per second by the last sync, counting both the rows held before it and the
+	 * changes it received
+	 */
+	double mergeRowsPerSecond() {
+		int previousSize = size - inserted + deleted + expired;
+		return mergeNanos == 0 ? 0 : (previousSize + changes) * 1e9 / mergeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+				"syncs=%d failures=%d full=%d totalChanges=%d interval=%ds duration=%dms "
+						+ "changes=%d (+%d ~%d -%d expired %d) merge=%.1fms (%.0f rows/s) size=%d",
+				syncs, failures, fullFetches, totalChanges, intervalMillis / 1000,
+				durationMillis, changes, inserted, updated, deleted, expired, mergeNanos / 1e6,
+				mergeRowsPerSecond(), size);
+	}
+}
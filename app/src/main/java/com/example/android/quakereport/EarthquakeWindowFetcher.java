@@ -0,0 +1,401 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches every result of a query over a long time range by splitting the range into windows
+ * small enough for one USGS search each, and requesting them concurrently.
+ * <p>
+ * Windows are sized with the USGS count method: one holding more than the target number of
+ * events is cut into proportionally many pieces and counted again, so busy periods such as an
+ * aftershock sequence end up in narrow windows and quiet ones in wide windows.
+ * <p>
+ * Results are handed over in the query's order. Windows do not overlap, so for time order
+ * they are passed on one after the other, newest first, and only a few windows beyond the one
+ * being passed on are fetched ahead; memory stays bounded by the parallelism, however many
+ * windows there are. Magnitude order interleaves every window, so windows are read a page at a
+ * time and combined with a k-way merge: each holds the page being merged and the one fetched
+ * after it, and memory grows with the number of windows only by those two pages each, rather
+ * than by every result of the window.
+ * <p>
+ * Windows are not cached, since their time ranges never repeat from one fetch to the next.
+ */
+final class EarthquakeWindowFetcher {
+
+	private static final String LOG_TAG = EarthquakeWindowFetcher.class.getSimpleName();
+
+	static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * Events aimed for per window; well below the USGS limit so windows parallelize well
+	 */
+	static final int DEFAULT_WINDOW_TARGET = 5_000;
+
+	/**
+	 * USGS refuses to return more than this many events for a single search
+	 */
+	private static final int MAX_RESULTS = 20_000;
+
+	/**
+	 * Windows are not split below this length, whatever they hold
+	 */
+	private static final long MIN_WINDOW_MILLIS = 60 * 1000;
+
+	/**
+	 * Most pieces a window is cut into in one step, before they are counted again
+	 */
+	private static final int MAX_SPLIT = 16;
+
+	/**
+	 * Results of a window fetched at a time while merging, a fifth of a full window
+	 */
+	private static final int MERGE_PAGE = 1_000;
+
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	/**
+	 * Thrown before anything is fetched when the windows hold more results than asked for
+	 */
+	static final class TooManyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TooManyException(long count, int maxResults) {
+			super(count + " earthquakes, more than " + maxResults);
+		}
+	}
+
+	private final String mBaseUrl;
+
+	private final int mParallelism;
+
+	private final int mWindowTarget;
+
+	private final ExecutorService mExecutor;
+
+	/**
+	 * A slice [start, end) of the requested range
+	 */
+	private static final class Window {
+		final long start;
+		final long end;
+		int count;
+
+		Window(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	EarthquakeWindowFetcher(String baseUrl) {
+		this(baseUrl, DEFAULT_PARALLELISM, DEFAULT_WINDOW_TARGET);
+	}
+
+	EarthquakeWindowFetcher(String baseUrl, int parallelism, int windowTarget) {
+		mBaseUrl = baseUrl;
+		mParallelism = parallelism;
+		mWindowTarget = Math.min(windowTarget, MAX_RESULTS);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism,
+				IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		// Nothing is kept running between fetches
+		executor.allowCoreThreadTimeOut(true);
+		mExecutor = executor;
+	}
+
+	/**
+	 * Pass every result of {@code query} with a time in [{@code startMillis},
+	 * {@code endMillis}) to {@code callback} in the query's order, on the calling thread.
+	 * Return the number passed on.
+	 *
+	 * @throws IOException if a window could not be counted or fetched, in which case the
+	 *                     results passed on so far are incomplete
+	 */
+	int fetch(EarthquakeQuery query, long startMillis, long endMillis,
+	          EarthquakeJsonParser.Callback callback) throws IOException {
+		return fetch(query, startMillis, endMillis, Integer.MAX_VALUE, callback);
+	}
+
+	/**
+	 * Like {@link #fetch(EarthquakeQuery, long, long, EarthquakeJsonParser.Callback)}, but
+	 * fetching nothing if the windows hold more than {@code maxResults} results.
+	 *
+	 * @throws TooManyException if they do
+	 */
+	int fetch(EarthquakeQuery query, long startMillis, long endMillis, int maxResults,
+	          EarthquakeJsonParser.Callback callback) throws IOException {
+		List<Window> windows = split(query, startMillis, endMillis);
+		long count = 0;
+		for (Window window : windows) {
+			count += window.count;
+		}
+		if (count > maxResults) {
+			throw new TooManyException(count, maxResults);
+		}
+		Log.v(LOG_TAG, "Fetching " + windows.size() + " windows");
+		if (query.isOrderedByTime()) {
+			return fetchInOrder(query, windows, callback);
+		} else {
+			return fetchAndMerge(query, windows, callback);
+		}
+	}
+
+	/**
+	 * Return windows covering [{@code startMillis}, {@code endMillis}) that each hold no more
+	 * than the target number of events, newest first. Empty windows are left out.
+	 */
+	private List<Window> split(final EarthquakeQuery query, long startMillis, long endMillis)
+			throws IOException {
+		List<Window> windows = new ArrayList<>();
+		List<Window> pending = Collections.singletonList(new Window(startMillis, endMillis));
+		while (!pending.isEmpty()) {
+			List<Future<Integer>> counts = new ArrayList<>(pending.size());
+			for (final Window window : pending) {
+				counts.add(mExecutor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return QueryUtils.fetchCount(
+								query.toCountUrl(mBaseUrl, window.start, window.end));
+					}
+				}));
+			}
+
+			List<Window> next = new ArrayList<>();
+			for (int i = 0; i < pending.size(); i++) {
+				Window window = pending.get(i);
+				window.count = await(counts, i);
+				if (window.count < 0) {
+					cancel(counts);
+					throw new IOException("Unable to count earthquakes for " + window.start
+							+ "-" + window.end);
+				}
+				long length = window.end - window.start;
+				if (window.count == 0) {
+					continue;
+				}
+				if (window.count <= mWindowTarget || length <= MIN_WINDOW_MILLIS) {
+					if (window.count > MAX_RESULTS) {
+						cancel(counts);
+						throw new IOException("Too many earthquakes in " + window.start
+								+ "-" + window.end + ": " + window.count);
+					}
+					windows.add(window);
+					continue;
+				}
+				int pieces = Math.min((window.count + mWindowTarget - 1) / mWindowTarget,
+						MAX_SPLIT);
+				pieces = (int) Math.max(2, Math.min(pieces, length / MIN_WINDOW_MILLIS));
+				for (int piece = 0; piece < pieces; piece++) {
+					next.add(new Window(window.start + length * piece / pieces,
+							window.start + length * (piece + 1) / pieces));
+				}
+			}
+			pending = next;
+		}
+
+		Collections.sort(windows, new Comparator<Window>() {
+			@Override
+			public int compare(Window a, Window b) {
+				return a.start > b.start ? -1 : (a.start < b.start ? 1 : 0);
+			}
+		});
+		return windows;
+	}
+
+	/**
+	 * Pass on the windows one after the other, keeping a bounded number of fetches ahead of
+	 * the one being passed on.
+	 */
+	private int fetchInOrder(EarthquakeQuery query, List<Window> windows,
+	                         EarthquakeJsonParser.Callback callback) throws IOException {
+		ArrayDeque<Future<EarthquakeStore>> ahead = new ArrayDeque<>();
+		int lookahead = mParallelism * 2;
+		int submitted = 0;
+		int passed = 0;
+		try {
+			while (submitted < windows.size() || !ahead.isEmpty()) {
+				while (submitted < windows.size() && ahead.size() < lookahead) {
+					ahead.add(submit(query, windows.get(submitted++)));
+				}
+				EarthquakeStore store = await(ahead.poll());
+				for (int row = 0; row < store.size(); row++) {
+					callback.onEarthquake(store.get(row));
+				}
+				passed += store.size();
+			}
+		} finally {
+			for (Future<EarthquakeStore> future : ahead) {
+				future.cancel(true);
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * Read every window a page at a time, and pass on their results with a k-way merge on
+	 * descending magnitude and time.
+	 */
+	private int fetchAndMerge(EarthquakeQuery query, List<Window> windows,
+	                          EarthquakeJsonParser.Callback callback) throws IOException {
+		final Cursor[] cursors = new Cursor[windows.size()];
+		// Each entry is the window index, its head being the current row of its cursor
+		PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, cursors.length),
+				new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						Cursor cursorA = cursors[a];
+						Cursor cursorB = cursors[b];
+						int byMagnitude = Double.compare(
+								cursorB.page.getMagnitude(cursorB.row),
+								cursorA.page.getMagnitude(cursorA.row));
+						if (byMagnitude != 0) {
+							return byMagnitude;
+						}
+						long timeA = cursorA.page.getTime(cursorA.row);
+						long timeB = cursorB.page.getTime(cursorB.row);
+						return timeB < timeA ? -1 : (timeB > timeA ? 1 : 0);
+					}
+				});
+
+		int passed = 0;
+		try {
+			for (int i = 0; i < cursors.length; i++) {
+				cursors[i] = new Cursor(query, windows.get(i));
+			}
+			for (int i = 0; i < cursors.length; i++) {
+				if (cursors[i].advance()) {
+					heads.add(i);
+				}
+			}
+			while (!heads.isEmpty()) {
+				int window = heads.poll();
+				Cursor cursor = cursors[window];
+				callback.onEarthquake(cursor.page.get(cursor.row++));
+				passed++;
+				if (cursor.row < cursor.page.size() || cursor.advance()) {
+					heads.add(window);
+				} else {
+					cursors[window] = null;
+				}
+			}
+		} finally {
+			for (Cursor cursor : cursors) {
+				if (cursor != null) {
+					cursor.cancel();
+				}
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * Reads one window a page at a time, fetching the next page while the current one is
+	 * merged
+	 */
+	private final class Cursor {
+		private final EarthquakeQuery mQuery;
+		private final Window mWindow;
+		private Future<EarthquakeStore> mNext;
+		private int mOffset;
+		EarthquakeStore page;
+		int row;
+
+		Cursor(EarthquakeQuery query, Window window) {
+			mQuery = query;
+			mWindow = window;
+			fetchNext();
+		}
+
+		/**
+		 * Move on to the next page, and return false if the window has no more results.
+		 */
+		boolean advance() throws IOException {
+			if (mNext == null) {
+				return false;
+			}
+			page = await(mNext);
+			row = 0;
+			mNext = null;
+			// A short page is the last one
+			if (page.size() == MERGE_PAGE) {
+				fetchNext();
+			}
+			return page.size() > 0;
+		}
+
+		void cancel() {
+			if (mNext != null) {
+				mNext.cancel(true);
+			}
+		}
+
+		private void fetchNext() {
+			if (mOffset >= MAX_RESULTS) {
+				return;
+			}
+			mNext = submit(mQuery.toWindowUrl(mBaseUrl, mWindow.start, mWindow.end, mOffset,
+					MERGE_PAGE));
+			mOffset += MERGE_PAGE;
+		}
+	}
+
+	private Future<EarthquakeStore> submit(EarthquakeQuery query, Window window) {
+		return submit(query.toWindowUrl(mBaseUrl, window.start, window.end, MAX_RESULTS));
+	}
+
+	private Future<EarthquakeStore> submit(final String url) {
+		return mExecutor.submit(new Callable<EarthquakeStore>() {
+			@Override
+			public EarthquakeStore call() throws IOException {
+				return EarthquakeStore.of(QueryUtils.fetchEarthquakes(url, null));
+			}
+		});
+	}
+
+	/**
+	 * Wait for element {@code index} of {@code futures}, cancelling them all if it failed.
+	 */
+	private static <T> T await(List<Future<T>> futures, int index) throws IOException {
+		try {
+			return await(futures.get(index));
+		} catch (IOException e) {
+			cancel(futures);
+			throw e;
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching earthquakes", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Unable to fetch earthquakes", cause);
+		}
+	}
+
+	private static void cancel(List<? extends Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.example.android.quakereport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Lets a fetch be abandoned from another thread. Cancelling runs the abort action the fetch
+ * registered, such as disconnecting its connection, so a read blocked on the socket fails at
+ * once; streams {@link #wrap wrapped} by it stop at the next read even when their data is
+ * already buffered, so parsing stops mid-stream too.
+ */
+final class FetchCancellation {
+
+	private volatile boolean mCanceled;
+
+	private Runnable mAbortAction;
+
+	/**
+	 * Cancel the fetch and run its abort action, if it has one. Only the first call has any
+	 * effect.
+	 */
+	void cancel() {
+		Runnable abortAction;
+		synchronized (this) {
+			if (mCanceled) {
+				return;
+			}
+			mCanceled = true;
+			abortAction = mAbortAction;
+			mAbortAction = null;
+		}
+		if (abortAction != null) {
+			abortAction.run();
+		}
+	}
+
+	boolean isCanceled() {
+		return mCanceled;
+	}
+
+	/**
+	 * Run {@code abortAction} when the fetch is cancelled, in place of any action set before.
+	 *
+	 * @throws InterruptedIOException if it has been cancelled already, without running it
+	 */
+	void setAbortAction(Runnable abortAction) throws InterruptedIOException {
+		synchronized (this) {
+			if (!mCanceled) {
+				mAbortAction = abortAction;
+				return;
+			}
+		}
+		throw new InterruptedIOException("Fetch canceled");
+	}
+
+	/**
+	 * Forget the abort action, once what it would abort has finished or been handed back for
+	 * reuse.
+	 */
+	synchronized void clearAbortAction() {
+		mAbortAction = null;
+	}
+
+	void throwIfCanceled() throws InterruptedIOException {
+		if (mCanceled) {
+			throw new InterruptedIOException("Fetch canceled");
+		}
+	}
+
+	/**
+	 * Return {@code in} failing every read with {@link InterruptedIOException} once the fetch
+	 * is cancelled.
+	 */
+	InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				throwIfCanceled();
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				throwIfCanceled();
+				return super.read(buffer, offset, length);
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throwIfCanceled();
+				return super.skip(n);
+			}
+		};
+	}
+}
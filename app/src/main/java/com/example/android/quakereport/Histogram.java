@@ -0,0 +1,137 @@
+package com.example.android.quakereport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, recorded from any thread without locking. Values are
+ * counted in log-linear buckets: exact below 16, then 16 buckets per power of two, so any
+ * percentile read back is within 6.25% of the true value while the histogram stays a fixed
+ * 8KB however much is recorded.
+ */
+final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Enough buckets for every positive long
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong mSum = new AtomicLong();
+
+	private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+
+	private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		mCounts.incrementAndGet(bucket(value));
+		mSum.addAndGet(value);
+		long min;
+		while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+			// Lost to another thread, try again
+		}
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			// Lost to another thread, try again
+		}
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts.set(i, 0);
+		}
+		mSum.set(0);
+		mMin.set(Long.MAX_VALUE);
+		mMax.set(Long.MIN_VALUE);
+	}
+
+	/**
+	 * Return a copy of the histogram. Values recorded while it is taken may be left out.
+	 */
+	Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mCounts.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, mSum.get(), mMin.get(), mMax.get());
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Return the smallest value counted in {@code bucket}.
+	 */
+	static long lowestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * Point in time copy of a {@link Histogram}
+	 */
+	static final class Snapshot {
+		private final long[] mCounts;
+
+		final long count;
+
+		final long sum;
+
+		final long min;
+
+		final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long min, long max) {
+			mCounts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = count == 0 ? 0 : min;
+			this.max = count == 0 ? 0 : max;
+		}
+
+		double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Return the value {@code quantile} of the recorded values are at or below, such as
+		 * 0.99 for the 99th percentile, as the middle of its bucket.
+		 */
+		long valueAt(double quantile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (int i = 0; i < mCounts.length; i++) {
+				seen += mCounts[i];
+				if (seen >= rank) {
+					long low = lowestValue(i);
+					long high = i + 1 < mCounts.length ? lowestValue(i + 1) - 1 : Long.MAX_VALUE;
+					long middle = low + (high - low) / 2;
+					return Math.max(min, Math.min(middle, max));
+				}
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Performs the HTTP GETs behind {@link QueryUtils}. Swapping the transport lets the connection
+ * handling be tuned, or pointed at a stub server, without touching the parsing code.
+ */
+interface HttpTransport {
+
+	/**
+	 * Send a GET for {@code url} with the extra request {@code headers}, which may be empty,
+	 * and return once the response headers have arrived. Cancelling {@code cancellation}, if
+	 * not null, aborts the request and the read of its body from any thread.
+	 */
+	Response get(URL url, Map<String, String> headers, FetchCancellation cancellation)
+			throws IOException;
+
+	/**
+	 * A response whose body has not been read yet. It must always be closed, which returns
+	 * the connection to the pool when the body was read to the end.
+	 */
+	interface Response {
+		int code();
+
+		/**
+		 * Return the value of the response header {@code name}, or null if it is absent.
+		 */
+		String header(String name);
+
+		/**
+		 * Return the decoded body; any content encoding has already been undone.
+		 */
+		InputStream body() throws IOException;
+
+		void close();
+	}
+
+	/**
+	 * Receives the timing of each request. Every callback is made on the requesting thread,
+	 * and times come from {@link System#nanoTime()}.
+	 */
+	abstract class Listener {
+
+		void requestStarted(URL url) {
+		}
+
+		/**
+		 * A connection to the server is open, whether new or reused from the pool.
+		 */
+		void connected(URL url, long elapsedNanos) {
+		}
+
+		/**
+		 * The status line and headers have been received.
+		 */
+		void responseHeaders(URL url, int code, long elapsedNanos) {
+		}
+
+		/**
+		 * The body has been read and closed. {@code wireBytes} counts what was transferred,
+		 * {@code bodyBytes} what it decoded to, and {@code readNanos} is the time spent
+		 * waiting for the transferred bytes rather than processing them.
+		 */
+		void responseEnded(URL url, long wireBytes, long bodyBytes, long readNanos,
+		                   long elapsedNanos) {
+		}
+
+		void requestFailed(URL url, IOException e, long elapsedNanos) {
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * How long the latest requests of one kind took USGS to answer, and the timeouts and hedging
+ * delay that follow from it, see {@link RequestLatencies}. Only the last {@link #WINDOW}
+ * answers are kept, so a slow spell ages out after a few minutes of use rather than skewing
+ * the timeouts for good.
+ * <p>
+ * Until {@link #MIN_SAMPLES} answers have been seen, the timeouts are the transport's fixed
+ * defaults and there is no hedging delay.
+ */
+final class LatencyTracker {
+
+	static final int WINDOW = 256;
+
+	static final int MIN_SAMPLES = 20;
+
+	/**
+	 * Multiple of the 99th percentile a request may take before it is timed out
+	 */
+	private static final int TIMEOUT_FACTOR = 4;
+
+	/**
+	 * Shortest timeout, so one fast spell doesn't make every response at its 99th
+	 * percentile fail
+	 */
+	private static final int MIN_TIMEOUT_MILLIS = 2_000;
+
+	private final long[] mSamples = new long[WINDOW];
+
+	private int mCount;
+
+	private int mNext;
+
+	/**
+	 * The samples sorted, or null once another has been recorded
+	 */
+	private long[] mSorted;
+
+	/**
+	 * Record that a request was answered {@code nanos} after it was sent.
+	 */
+	synchronized void record(long nanos) {
+		mSamples[mNext] = nanos;
+		mNext = (mNext + 1) % WINDOW;
+		if (mCount < WINDOW) {
+			mCount++;
+		}
+		mSorted = null;
+	}
+
+	/**
+	 * Return the {@code quantile} of the recent answer times in nanoseconds, or -1 if there
+	 * are too few of them to tell.
+	 */
+	synchronized long percentileNanos(double quantile) {
+		if (mCount < MIN_SAMPLES) {
+			return -1;
+		}
+		if (mSorted == null) {
+			mSorted = Arrays.copyOf(mSamples, mCount);
+			Arrays.sort(mSorted);
+		}
+		int rank = (int) Math.ceil(quantile * mCount);
+		return mSorted[Math.min(Math.max(rank, 1), mCount) - 1];
+	}
+
+	int connectTimeoutMillis() {
+		return timeoutMillis(UrlConnectionTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+	}
+
+	int readTimeoutMillis() {
+		return timeoutMillis(UrlConnectionTransport.DEFAULT_READ_TIMEOUT_MILLIS);
+	}
+
+	private int timeoutMillis(int maxMillis) {
+		long p99 = percentileNanos(0.99);
+		if (p99 < 0) {
+			return maxMillis;
+		}
+		long millis = p99 / 1_000_000 * TIMEOUT_FACTOR;
+		return (int) Math.min(Math.max(millis, MIN_TIMEOUT_MILLIS), maxMillis);
+	}
+}
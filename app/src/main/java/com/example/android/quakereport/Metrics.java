@@ -0,0 +1,250 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the time goes between asking USGS for earthquakes and showing them, phase by phase:
+ * connecting, waiting for the first byte, downloading, parsing, loading and binding, along
+ * with the bytes and features each request carried. Every phase is a {@link Histogram} fed
+ * from whichever thread does the work.
+ * <p>
+ * Recording is off unless {@link #setEnabled(boolean) enabled}. While it is off, timing a
+ * phase costs a volatile read and nothing is allocated or recorded.
+ */
+final class Metrics {
+
+	enum Unit {
+		NANOSECONDS, BYTES, COUNT
+	}
+
+	/**
+	 * One named phase or quantity
+	 */
+	static final class Metric {
+		final String name;
+
+		final Unit unit;
+
+		final Histogram histogram = new Histogram();
+
+		private Metric(String name, Unit unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+	}
+
+	/**
+	 * Returned by {@link #start()} while recording is off
+	 */
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	private static final List<Metric> sMetrics = new ArrayList<>();
+
+	/**
+	 * From sending a request until its connection is established, or taken from the pool
+	 */
+	static final Metric HTTP_CONNECT = register("http.connect", Unit.NANOSECONDS);
+
+	/**
+	 * From sending a request until its response headers arrive
+	 */
+	static final Metric HTTP_FIRST_BYTE = register("http.first_byte", Unit.NANOSECONDS);
+
+	/**
+	 * Time spent waiting on the network for body bytes, excluding what the reader did with them
+	 */
+	static final Metric HTTP_DOWNLOAD = register("http.download", Unit.NANOSECONDS);
+
+	/**
+	 * From sending a request until its response is closed
+	 */
+	static final Metric HTTP_REQUEST = register("http.request", Unit.NANOSECONDS);
+
+	static final Metric HTTP_WIRE_BYTES = register("http.wire_bytes", Unit.BYTES);
+
+	static final Metric HTTP_BODY_BYTES = register("http.body_bytes", Unit.BYTES);
+
+	/**
+	 * How long failed requests took to fail
+	 */
+	static final Metric HTTP_FAILED = register("http.failed", Unit.NANOSECONDS);
+
+	/**
+	 * Reading a response into earthquakes. The body is parsed as it arrives, so this covers
+	 * most of {@link #HTTP_DOWNLOAD} as well as the parser's own time.
+	 */
+	static final Metric PARSE = register("parse", Unit.NANOSECONDS);
+
+	static final Metric PARSE_FEATURES = register("parse.features", Unit.COUNT);
+
+	static final Metric LOAD = register("loader.load", Unit.NANOSECONDS);
+
+	static final Metric LOAD_ROWS = register("loader.rows", Unit.COUNT);
+
+	/**
+	 * Growth of the heap over a load. An estimate: it also counts what other threads allocate
+	 * meanwhile, and misses whatever a collection frees.
+	 */
+	static final Metric LOAD_ALLOCATED = register("loader.allocated", Unit.BYTES);
+
+	/**
+	 * Handing a delivered update to the list on the main thread
+	 */
+	static final Metric BIND = register("ui.bind", Unit.NANOSECONDS);
+
+	/**
+	 * Time between frames while the earthquake list scrolls; anything well over 16ms is a
+	 * dropped frame
+	 */
+	static final Metric FRAME = register("ui.frame", Unit.NANOSECONDS);
+
+	/**
+	 * Rendering one density map tile on the CPU pool
+	 */
+	static final Metric DENSITY_TILE = register("ui.density_tile", Unit.NANOSECONDS);
+
+	private static volatile boolean sEnabled;
+
+	private static volatile long sResetNanos = System.nanoTime();
+
+	private static final HttpTransport.Listener TRANSPORT_LISTENER = new HttpTransport.Listener() {
+		@Override
+		void connected(URL url, long elapsedNanos) {
+			record(HTTP_CONNECT, elapsedNanos);
+		}
+
+		@Override
+		void responseHeaders(URL url, int code, long elapsedNanos) {
+			record(HTTP_FIRST_BYTE, elapsedNanos);
+		}
+
+		@Override
+		void responseEnded(URL url, long wireBytes, long bodyBytes, long readNanos,
+		                   long elapsedNanos) {
+			if (sEnabled) {
+				HTTP_DOWNLOAD.histogram.record(readNanos);
+				HTTP_REQUEST.histogram.record(elapsedNanos);
+				HTTP_WIRE_BYTES.histogram.record(wireBytes);
+				HTTP_BODY_BYTES.histogram.record(bodyBytes);
+			}
+		}
+
+		@Override
+		void requestFailed(URL url, IOException e, long elapsedNanos) {
+			record(HTTP_FAILED, elapsedNanos);
+		}
+	};
+
+	private Metrics() {
+	}
+
+	private static Metric register(String name, Unit unit) {
+		Metric metric = new Metric(name, unit);
+		sMetrics.add(metric);
+		return metric;
+	}
+
+	static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * Listener that records the phases of every request made through a transport
+	 */
+	static HttpTransport.Listener transportListener() {
+		return TRANSPORT_LISTENER;
+	}
+
+	/**
+	 * Return the start time of a span to pass to {@link #stop}, or {@link #NOT_TIMED}.
+	 */
+	static long start() {
+		return sEnabled ? System.nanoTime() : NOT_TIMED;
+	}
+
+	/**
+	 * Record the time since {@code start}, unless recording was off when the span started.
+	 */
+	static void stop(Metric metric, long start) {
+		if (start != NOT_TIMED) {
+			metric.histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	static void record(Metric metric, long value) {
+		if (sEnabled) {
+			metric.histogram.record(value);
+		}
+	}
+
+	/**
+	 * Return the bytes of heap in use, to pass to {@link #recordAllocated}.
+	 */
+	static long heapUsed() {
+		if (!sEnabled) {
+			return NOT_TIMED;
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static void recordAllocated(Metric metric, long heapUsedBefore) {
+		if (heapUsedBefore != NOT_TIMED) {
+			metric.histogram.record(heapUsed() - heapUsedBefore);
+		}
+	}
+
+	static void reset() {
+		for (Metric metric : sMetrics) {
+			metric.histogram.reset();
+		}
+		sResetNanos = System.nanoTime();
+	}
+
+	/**
+	 * Return every metric as a table, one line each. Times are in milliseconds and sizes in
+	 * kilobytes.
+	 */
+	static String dump() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format(Locale.US, "metrics %s, %.1fs since reset%n",
+				sEnabled ? "on" : "off", (System.nanoTime() - sResetNanos) / 1e9));
+		out.append(String.format(Locale.US, "%-18s %-4s %7s %10s %10s %10s %10s %10s%n",
+				"name", "unit", "count", "p50", "p90", "p99", "max", "mean"));
+		for (Metric metric : sMetrics) {
+			Histogram.Snapshot snapshot = metric.histogram.snapshot();
+			double scale;
+			String unit;
+			switch (metric.unit) {
+				case NANOSECONDS:
+					scale = 1e6;
+					unit = "ms";
+					break;
+				case BYTES:
+					scale = 1024;
+					unit = "KB";
+					break;
+				default:
+					scale = 1;
+					unit = "";
+			}
+			out.append(String.format(Locale.US,
+					"%-18s %-4s %7d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+					metric.name, unit, snapshot.count,
+					snapshot.valueAt(0.5) / scale,
+					snapshot.valueAt(0.9) / scale,
+					snapshot.valueAt(0.99) / scale,
+					snapshot.max / scale,
+					snapshot.mean() / scale));
+		}
+		return out.toString();
+	}
+}
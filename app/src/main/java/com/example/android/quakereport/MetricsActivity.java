@@ -0,0 +1,89 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/**
+ * Debug screen showing the {@link Metrics} recorded so far and the state of the background
+ * sync. Recording can be switched on and off here, and the table shared as plain text.
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+	private TextView mMetricsView;
+
+	/**
+	 * Turn recording on or off as last chosen on this screen. Debug builds record unless
+	 * told not to.
+	 */
+	static void applyPreference(Context context) {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+		Metrics.setEnabled(preferences.getBoolean(
+				context.getString(R.string.metrics_enabled_key), BuildConfig.DEBUG));
+	}
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.metrics_activity);
+		mMetricsView = (TextView) findViewById(R.id.metrics_text_view);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mMetricsView.setText(report());
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		getMenuInflater().inflate(R.menu.metrics, menu);
+		menu.findItem(R.id.action_record_metrics).setChecked(Metrics.isEnabled());
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		int id = item.getItemId();
+		if (id == R.id.action_refresh_metrics) {
+			mMetricsView.setText(report());
+			return true;
+		} else if (id == R.id.action_record_metrics) {
+			boolean enabled = !item.isChecked();
+			item.setChecked(enabled);
+			Metrics.setEnabled(enabled);
+			PreferenceManager.getDefaultSharedPreferences(this).edit()
+					.putBoolean(getString(R.string.metrics_enabled_key), enabled)
+					.apply();
+			mMetricsView.setText(report());
+			return true;
+		} else if (id == R.id.action_reset_metrics) {
+			Metrics.reset();
+			mMetricsView.setText(report());
+			return true;
+		} else if (id == R.id.action_share_metrics) {
+			Intent shareIntent = new Intent(Intent.ACTION_SEND);
+			shareIntent.setType("text/plain");
+			shareIntent.putExtra(Intent.EXTRA_TEXT, report());
+			startActivity(Intent.createChooser(shareIntent, getString(R.string.metrics_share)));
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	/**
+	 * Return the metrics table followed by the sync totals and how many requests were shared
+	 * rather than sent, as also written by {@code adb shell dumpsys activity top} while the
+	 * list is showing.
+	 */
+	static String report() {
+		return Metrics.dump() + "sync " + EarthquakeQueryEngine.getInstance().getSyncStats()
+				+ "\nrequests sent/shared " + RequestCoalescer.getInstance().getStats() + "\n";
+	}
+}
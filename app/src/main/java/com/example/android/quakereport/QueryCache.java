@@ -0,0 +1,440 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk backed cache of USGS responses, keyed by the normalized query url. Each entry keeps
+ * the raw response body together with its {@code ETag} and {@code Last-Modified} validators
+ * so the request can be revalidated, and the earthquakes parsed from the most recently used
+ * entries are kept in memory so a {@code 304 Not Modified} needs neither a download nor a
+ * parse. Only page-sized results are kept parsed; a large one is parsed again from its file,
+ * rather than pinned on the heap after its caller has stored it elsewhere. Entries are
+ * evicted least recently used first once the directory grows past its size bound.
+ */
+final class QueryCache {
+
+	/**
+	 * Bumped whenever the layout of an entry file changes, so stale files are ignored
+	 */
+	private static final int ENTRY_VERSION = 1;
+
+	private static final String ENTRY_SUFFIX = ".entry";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+	/**
+	 * Earthquakes held in memory across all parsed results
+	 */
+	private static final int MAX_PARSED_EARTHQUAKES = 400;
+
+	private static QueryCache sInstance;
+
+	private final File mDirectory;
+
+	private final long mMaxBytes;
+
+	/**
+	 * Entries on disk, in access order
+	 */
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Parsed results, in access order
+	 */
+	private final LinkedHashMap<String, List<Earthquake>> mParsed =
+			new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Earthquakes in {@link #mParsed}
+	 */
+	private int mParsedCount;
+
+	private long mSize;
+
+	private boolean mIndexed;
+
+	/**
+	 * Validators and location of one cached response
+	 */
+	static final class Entry {
+		final String key;
+		final String eTag;
+		final String lastModified;
+		final File file;
+		final long length;
+
+		private Entry(String key, String eTag, String lastModified, File file) {
+			this.key = key;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.file = file;
+			this.length = file.length();
+		}
+	}
+
+	QueryCache(File directory, long maxBytes) {
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Return the process wide cache stored under {@code cacheDir}.
+	 */
+	static synchronized QueryCache getInstance(File cacheDir) {
+		if (sInstance == null) {
+			sInstance = new QueryCache(new File(cacheDir, "usgs-responses"), DEFAULT_MAX_BYTES);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Return the url with its query parameters sorted, so that urls which only differ in
+	 * parameter order share an entry.
+	 */
+	static String normalizeKey(String url) {
+		int queryStart = url.indexOf('?');
+		if (queryStart < 0) {
+			return url;
+		}
+		String[] parameters = url.substring(queryStart + 1).split("&");
+		Arrays.sort(parameters);
+		StringBuilder key = new StringBuilder(url.length()).append(url, 0, queryStart + 1);
+		for (int i = 0; i < parameters.length; i++) {
+			if (i > 0) {
+				key.append('&');
+			}
+			key.append(parameters[i]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Return the validators for {@code key}, or null if nothing usable is cached.
+	 */
+	synchronized Entry get(String key) {
+		ensureIndexed();
+		Entry entry = mEntries.get(key);
+		if (entry != null && !entry.file.exists()) {
+			remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Return the earthquakes cached for {@code entry}, parsing the stored body only if the
+	 * parsed list has already been dropped from memory.
+	 */
+	List<Earthquake> getEarthquakes(Entry entry) throws IOException {
+		synchronized (this) {
+			List<Earthquake> parsed = mParsed.get(entry.key);
+			if (parsed != null) {
+				touch(entry);
+				return parsed;
+			}
+		}
+
+		InputStream body = openBody(entry);
+		List<Earthquake> earthquakes;
+		try {
+			earthquakes = QueryUtils.extractFeaturesFromStream(body);
+		} finally {
+			body.close();
+		}
+
+		synchronized (this) {
+			if (earthquakes != null) {
+				keepParsed(entry.key, earthquakes);
+			}
+			touch(entry);
+		}
+		return earthquakes;
+	}
+
+	/**
+	 * Start storing a fresh response for {@code key}. Nothing replaces the current entry until
+	 * {@link Editor#commit(List)} is called.
+	 */
+	Editor edit(String key, String eTag, String lastModified) throws IOException {
+		synchronized (this) {
+			ensureIndexed();
+		}
+		File temp = File.createTempFile(fileName(key), TEMP_SUFFIX, mDirectory);
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(ENTRY_VERSION);
+			out.writeUTF(key);
+			out.writeUTF(eTag == null ? "" : eTag);
+			out.writeUTF(lastModified == null ? "" : lastModified);
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		return new Editor(key, temp, out);
+	}
+
+	/**
+	 * Writes one response body to a temporary file and publishes it on commit
+	 */
+	final class Editor {
+		private final String mKey;
+		private final File mTemp;
+		private final OutputStream mBody;
+		private boolean mDone;
+
+		private Editor(String key, File temp, OutputStream body) {
+			mKey = key;
+			mTemp = temp;
+			mBody = body;
+		}
+
+		/**
+		 * Wrap {@code source} so that everything read from it is also written to the entry.
+		 */
+		InputStream tee(InputStream source) {
+			return new FilterInputStream(source) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1) {
+						mBody.write(b);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					int read = super.read(buffer, offset, count);
+					if (read > 0) {
+						mBody.write(buffer, offset, read);
+					}
+					return read;
+				}
+			};
+		}
+
+		/**
+		 * Publish the entry along with the earthquakes parsed from it.
+		 */
+		void commit(List<Earthquake> earthquakes) throws IOException {
+			if (mDone) {
+				return;
+			}
+			mDone = true;
+			mBody.close();
+			synchronized (QueryCache.this) {
+				File file = new File(mDirectory, fileName(mKey) + ENTRY_SUFFIX);
+				remove(mKey);
+				if (!mTemp.renameTo(file)) {
+					mTemp.delete();
+					throw new IOException("Unable to publish cache entry " + file);
+				}
+				Entry entry = readHeader(file);
+				if (entry != null) {
+					mEntries.put(mKey, entry);
+					mSize += entry.length;
+					if (earthquakes != null) {
+						keepParsed(mKey, earthquakes);
+					}
+				}
+				trimToSize();
+			}
+		}
+
+		/**
+		 * Throw away a partially written entry.
+		 */
+		void abort() {
+			if (mDone) {
+				return;
+			}
+			mDone = true;
+			try {
+				mBody.close();
+			} catch (IOException ignored) {
+				// The file is deleted anyway
+			}
+			mTemp.delete();
+		}
+	}
+
+	private InputStream openBody(Entry entry) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(entry.file)));
+		try {
+			// Step over the header, which was validated when the entry was indexed
+			in.readInt();
+			in.readUTF();
+			in.readUTF();
+			in.readUTF();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	/**
+	 * Load the index from disk the first time the cache is used, oldest entries first.
+	 */
+	private void ensureIndexed() {
+		if (mIndexed) {
+			return;
+		}
+		mIndexed = true;
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			return;
+		}
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		List<File> entryFiles = new ArrayList<>();
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY_SUFFIX)) {
+				entryFiles.add(file);
+			} else {
+				// Leftovers from a write that never finished
+				file.delete();
+			}
+		}
+		Collections.sort(entryFiles, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+
+		for (File file : entryFiles) {
+			Entry entry = readHeader(file);
+			if (entry == null) {
+				file.delete();
+			} else {
+				mEntries.put(entry.key, entry);
+				mSize += entry.length;
+			}
+		}
+		trimToSize();
+	}
+
+	/**
+	 * Return the entry described by {@code file}, or null if it was written by another
+	 * version or is damaged.
+	 */
+	private static Entry readHeader(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != ENTRY_VERSION) {
+				return null;
+			}
+			String key = in.readUTF();
+			String eTag = in.readUTF();
+			String lastModified = in.readUTF();
+			return new Entry(key, eTag.isEmpty() ? null : eTag,
+					lastModified.isEmpty() ? null : lastModified, file);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+					// Nothing was written
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keep {@code earthquakes} parsed for {@code key} if they are few enough, dropping the
+	 * least recently used results to make room.
+	 */
+	private void keepParsed(String key, List<Earthquake> earthquakes) {
+		forgetParsed(key);
+		if (earthquakes.size() > MAX_PARSED_EARTHQUAKES) {
+			return;
+		}
+		mParsed.put(key, earthquakes);
+		mParsedCount += earthquakes.size();
+		Iterator<List<Earthquake>> eldest = mParsed.values().iterator();
+		while (mParsedCount > MAX_PARSED_EARTHQUAKES) {
+			mParsedCount -= eldest.next().size();
+			eldest.remove();
+		}
+	}
+
+	private void forgetParsed(String key) {
+		List<Earthquake> parsed = mParsed.remove(key);
+		if (parsed != null) {
+			mParsedCount -= parsed.size();
+		}
+	}
+
+	private void touch(Entry entry) {
+		// Keeps the access order across process restarts, see ensureIndexed()
+		entry.file.setLastModified(System.currentTimeMillis());
+	}
+
+	private void remove(String key) {
+		Entry entry = mEntries.remove(key);
+		forgetParsed(key);
+		if (entry != null) {
+			mSize -= entry.length;
+			entry.file.delete();
+		}
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Entry>> eldest = mEntries.entrySet().iterator();
+		while (mSize > mMaxBytes && eldest.hasNext()) {
+			Entry entry = eldest.next().getValue();
+			eldest.remove();
+			forgetParsed(entry.key);
+			mSize -= entry.length;
+			entry.file.delete();
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+			StringBuilder name = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				name.append(Character.forDigit((b >> 4) & 0xf, 16))
+						.append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+}
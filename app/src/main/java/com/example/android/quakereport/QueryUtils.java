@@ -1,29 +1,25 @@
 package com.example.android.quakereport;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Helper methods related to requesting and receiving earthquake data from USGS.
  */
 final class QueryUtils {
 
-	private static final String LOG_TAG = EarthquakeActivity.class.getSimpleName();
+	private static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
 	/**
 	 * Create a private constructor because no one should ever create a {@link QueryUtils} object.
@@ -34,24 +30,123 @@ final class QueryUtils {
 
 	}
 
+	private static HttpTransport sTransport;
+
+	/**
+	 * Replace the transport used for every request, for example to change its timeouts or
+	 * attach timing hooks. The default one times out, hedges and retries requests by how
+	 * USGS has been answering, see {@link ResilientTransport}.
+	 */
+	static synchronized void setTransport(HttpTransport transport) {
+		sTransport = transport;
+	}
+
+	static synchronized HttpTransport getTransport() {
+		if (sTransport == null) {
+			RequestLatencies latencies = new RequestLatencies();
+			sTransport = new ResilientTransport(
+					new UrlConnectionTransport(latencies, Metrics.transportListener()), latencies);
+		}
+		return sTransport;
+	}
+
 	/**
 	 * Query the USGS dataset and return a list of {@link Earthquake} objects.
 	 */
 	static List<Earthquake> fetchEarthquakeData(String requestUrl) {
-		// Create URL object
-		URL url = createUrl(requestUrl);
+		return fetchEarthquakeData(requestUrl, null);
+	}
+
+	/**
+	 * Query the USGS dataset, revalidating against {@code cache} when it holds a response
+	 * for the same query.
+	 */
+	static List<Earthquake> fetchEarthquakeData(String requestUrl, QueryCache cache) {
+		return fetchEarthquakeData(requestUrl, cache, null);
+	}
 
-		// Perform HTTP request to the URL and receive a JSON response back
-		String jsonResponse = null;
+	/**
+	 * Query the USGS dataset through the {@link RequestCoalescer}, so the same query asked for
+	 * again while in flight or just answered is not sent twice. Return null, as when the query
+	 * fails, if {@code cancellation} is cancelled first.
+	 */
+	static List<Earthquake> fetchEarthquakeData(String requestUrl, QueryCache cache,
+	                                            FetchCancellation cancellation) {
+		// Perform HTTP request to the URL and parse the JSON response as it arrives
+		List<Earthquake> earthquakes = null;
 		try {
-			jsonResponse = makeHttpRequest(url);
+			earthquakes = RequestCoalescer.getInstance().fetch(requestUrl, cache, cancellation);
+		} catch (InterruptedIOException e) {
+			Log.d(LOG_TAG, "Earthquake request canceled");
 		} catch (IOException e) {
-			Log.e(LOG_TAG, "Problem making the HTTP request.", e);
+			// Covers both network failures and malformed JSON, so the app doesn't crash
+			Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results. ", e);
 		}
 
-		// Extract relevant fields from the JSON response and create a list of {@link Earthquake}s
-		// Return the list of {@link Earthquake}s
-		return extractFeatureFromJson(jsonResponse);
+		// Return the list of {@link Earthquake}s, or nothing if there were none
+		return earthquakes == null || earthquakes.isEmpty() ? null : earthquakes;
+	}
+
+	/**
+	 * Like {@link #fetchEarthquakeData(String, QueryCache)}, but for callers that have to tell
+	 * an empty result from a failed request: return a possibly empty list, and throw if the
+	 * results could not be retrieved.
+	 */
+	static List<Earthquake> fetchEarthquakes(String requestUrl, QueryCache cache)
+			throws IOException {
+		return fetchEarthquakes(requestUrl, cache, null);
+	}
+
+	/**
+	 * Like {@link #fetchEarthquakes(String, QueryCache)}, and abandoned with an
+	 * {@link InterruptedIOException} if {@code cancellation}, when not null, is cancelled
+	 * while the request is sent or its response parsed.
+	 */
+	static List<Earthquake> fetchEarthquakes(String requestUrl, QueryCache cache,
+	                                         FetchCancellation cancellation) throws IOException {
+		return makeHttpRequest(new URL(requestUrl), cache, cancellation);
+	}
+
+	/**
+	 * Ask the USGS count method at {@code requestUrl} how many events a search would return.
+	 * Return -1 if the count could not be obtained.
+	 */
+	static int fetchCount(String requestUrl) {
+		URL url = createUrl(requestUrl);
+		if (url == null) {
+			return -1;
+		}
+
+		HttpTransport.Response response = null;
+		try {
+			response = getTransport().get(url, Collections.<String, String>emptyMap(), null);
+			if (response.code() != 200) {
+				Log.e(LOG_TAG, "Error Code: " + response.code());
+				return -1;
+			}
+			// The body is the bare number, or {"count":N,...} if geojson was asked for
+			InputStream body = response.body();
+			long count = -1;
+			int c;
+			while ((c = body.read()) != -1) {
+				if (c >= '0' && c <= '9') {
+					count = (count < 0 ? 0 : count * 10) + (c - '0');
+					if (count > Integer.MAX_VALUE) {
+						return -1;
+					}
+				} else if (count >= 0) {
+					break;
+				}
+			}
+			return (int) count;
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Problem retrieving the earthquake count. ", e);
+			return -1;
+		} finally {
+			if (response != null) {
+				response.close();
+			}
+		}
 	}
 
 	private static URL createUrl(String stringUrl) {
@@ -65,129 +160,100 @@ final class QueryUtils {
 		return url;
 	}
 
-	private static String makeHttpRequest(URL url) throws IOException {
-		String jsonResponse = "";
+	private static List<Earthquake> makeHttpRequest(URL url, QueryCache cache,
+	                                                FetchCancellation cancellation)
+			throws IOException {
+		List<Earthquake> earthquakes = null;
 
-		// If the URL is null, then return early
-		if (url == null) {
-			return jsonResponse;
+		// Look for a cached response this request can be revalidated against
+		String cacheKey = null;
+		QueryCache.Entry cached = null;
+		Map<String, String> headers = new HashMap<>();
+		if (cache != null) {
+			cacheKey = QueryCache.normalizeKey(url.toString());
+			cached = cache.get(cacheKey);
+		}
+		if (cached != null) {
+			if (cached.eTag != null) {
+				headers.put("If-None-Match", cached.eTag);
+			}
+			if (cached.lastModified != null) {
+				headers.put("If-Modified-Since", cached.lastModified);
+			}
 		}
 
-		HttpURLConnection urlConnection = null;
-		InputStream inputStream = null;
+		HttpTransport.Response response = null;
+		QueryCache.Editor editor = null;
 		try {
-			urlConnection = (HttpURLConnection) url.openConnection();
-			urlConnection.setRequestMethod("GET");
-			urlConnection.setReadTimeout(10_000 /* milliseconds */);
-			urlConnection.setConnectTimeout(15_000 /* milliseconds */);
-			urlConnection.connect();
+			try {
+				response = getTransport().get(url, headers, cancellation);
+			} catch (CircuitBreaker.OpenException e) {
+				if (cached == null) {
+					throw e;
+				}
+				// USGS keeps failing, so serve the last good answer until it recovers
+				Log.d(LOG_TAG, "Serving a cached response: " + e.getMessage());
+				earthquakes = cache.getEarthquakes(cached);
+				return earthquakes == null ? new ArrayList<Earthquake>() : earthquakes;
+			}
 			// Check for successful connection response code
-			if (urlConnection.getResponseCode() == 200) {
-				// Connection established
-				inputStream = urlConnection.getInputStream();
-				jsonResponse = readFromStream(inputStream);
+			int responseCode = response.code();
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				// Feed unchanged, so serve what we already have without downloading it again
+				earthquakes = cache.getEarthquakes(cached);
+			} else if (responseCode == 200) {
+				// Connection established, and the body arrives already decompressed
+				InputStream inputStream = response.body();
+
+				// Keep a copy of the body while parsing it, if it can be revalidated later
+				String eTag = response.header("ETag");
+				String lastModified = response.header("Last-Modified");
+				if (cache != null && (eTag != null || lastModified != null)) {
+					editor = cache.edit(cacheKey, eTag, lastModified);
+					inputStream = editor.tee(inputStream);
+				}
+
+				long parseStart = Metrics.start();
+				earthquakes = extractFeaturesFromStream(inputStream);
+				Metrics.stop(Metrics.PARSE, parseStart);
+				Metrics.record(Metrics.PARSE_FEATURES,
+						earthquakes == null ? 0 : earthquakes.size());
+				if (editor != null) {
+					editor.commit(earthquakes);
+				}
 			} else {
 				// Connection failure
-				// Log error in connection
-				Log.e(LOG_TAG, "Error Code: " + urlConnection.getResponseCode());
+				throw new IOException("Error Code: " + responseCode);
 			}
-		} catch (IOException e) {
-			Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results. ", e);
 		} finally {
-			if (urlConnection != null) {
-				urlConnection.disconnect();
+			if (editor != null) {
+				// No-op once committed
+				editor.abort();
 			}
-			if (inputStream != null) {
-				// Closing the input stream could throw an IOException, which is why
-				// the makeHttpRequest(URL url) method signature specifies than an IOException
-				// could be thrown.
-				inputStream.close();
-			}
-		}
-		return jsonResponse;
-	}
-
-	/**
-	 * Convert the {@link InputStream} into a String which contains the
-	 * whole JSON response from the server.
-	 */
-	private static String readFromStream(InputStream inputStream) throws IOException {
-		StringBuilder output = new StringBuilder();
-		if (inputStream != null) {
-			InputStreamReader inputStreamReader = new InputStreamReader(
-					inputStream,
-					Charset.forName("UTF-8")); // decoding the input bits
-			BufferedReader reader = new BufferedReader(inputStreamReader);
-			String line = reader.readLine();
-			while (line != null) { // until all data has been transmitted from the http request
-				output.append(line);
-				line = reader.readLine(); // parse next line of decoded input stream
+			if (response != null) {
+				// Hands the connection back to the keep-alive pool rather than disconnecting
+				response.close();
 			}
 		}
-		return output.toString(); // return string from string builder object
+		return earthquakes == null ? new ArrayList<Earthquake>() : earthquakes;
 	}
 
-
 	/**
-	 * Return a list of {@link Earthquake} objects that has been built up from
-	 * parsing a JSON response.
+	 * Return a list of {@link Earthquake} objects parsed straight off the {@link InputStream}.
+	 * Only one feature is held in memory at a time besides the list itself, rather than the
+	 * whole response as a String plus a {@link org.json.JSONObject} tree built from it.
 	 */
-	private static List<Earthquake> extractFeatureFromJson(String jsonResponse) {
-		// If the JSON string is empty or null, then return early.
-		if (TextUtils.isEmpty(jsonResponse)) {
-			return null;
-		}
-
-		// Create an empty ArrayList that we can start adding earthquakes to
-		List<Earthquake> earthquakes = new ArrayList<>();
-
-		// Try to parse the SAMPLE_JSON_RESPONSE. If there's a problem with the way the JSON
-		// is formatted, a JSONException exception object will be thrown.
-		// Catch the exception so the app doesn't crash, and print the error message to the logs.
-		try {
-			// Parse the json string
-			JSONObject response = new JSONObject(jsonResponse);
-
-			// Get target array
-			JSONArray earthquakeArray = response.getJSONArray("features");
-
-			// Traverse through each earthquake json object
-			if (earthquakeArray.length() > 0) {
-				for (int i = 0; i < earthquakeArray.length(); i++) {
-					// Get earthquake at position
-					JSONObject currentEarthquake = earthquakeArray.getJSONObject(i);
-
-					// Grab properties to extract data
-					JSONObject properties = currentEarthquake.getJSONObject("properties");
-
-					// Get required data
-					// Get magnitude of earthquake
-					double magnitude = properties.getDouble("mag");
-
-					// Get location details of earthquake
-					String place = properties.getString("place");
-
-					// Get the time at which the earthquake occurred
-					long rawTime = properties.getLong("time");
-
-					// Get the website url for the earthquake
-					String url = properties.getString("url");
-
-					// Add data to list
-					earthquakes.add(new Earthquake(magnitude, place, rawTime, url));
-				}
-				// Return the list of earthquakes
-				return earthquakes;
+	static List<Earthquake> extractFeaturesFromStream(InputStream inputStream)
+			throws IOException {
+		final List<Earthquake> earthquakes = new ArrayList<>();
+		new EarthquakeJsonParser(inputStream).parse(new EarthquakeJsonParser.Callback() {
+			@Override
+			public void onEarthquake(Earthquake earthquake) {
+				earthquakes.add(earthquake);
 			}
+		});
 
-		} catch (JSONException e) {
-			// If an error is thrown when executing any of the above statements in the "try" block,
-			// catch the exception here, so the app doesn't crash. Print a log message
-			// with the message from the exception.
-			Log.e("QueryUtils", "Problem parsing the earthquake JSON results", e);
-		}
-
-		// return nothing if there is problem with JSON extraction
-		return null;
+		// return nothing if the response held no earthquakes
+		return earthquakes.isEmpty() ? null : earthquakes;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,228 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the queries being fetched, keyed by normalized URL, so that identical requests
+ * share one fetch: whoever asks for a query already in flight waits for its result rather
+ * than sending it again, and a result stays {@link #FRESH_MILLIS fresh} for a short while
+ * after it arrives, during which it is handed out without a request at all. This covers a
+ * loader recreated while its predecessor's page is still loading, or asking again for a page
+ * it was just given. Only page-sized results are kept fresh; a larger one is only shared with
+ * those already waiting for it, so that it isn't pinned on the heap after they are done.
+ * <p>
+ * Fetches run on threads of their own so that each caller can stop waiting independently. A
+ * fetch is only cancelled, closing its connection mid-stream, once every caller waiting for
+ * it has given up. Failures are not remembered; the next caller tries again.
+ */
+final class RequestCoalescer {
+
+	/**
+	 * How long a result is served again without asking USGS, well inside the loader's
+	 * refresh interval
+	 */
+	static final long FRESH_MILLIS = 30_000;
+
+	/**
+	 * Largest result kept fresh, a few of the loader's pages
+	 */
+	static final int MAX_FRESH_EARTHQUAKES = 200;
+
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	private static RequestCoalescer sInstance;
+
+	private final Map<String, Call> mCalls = new HashMap<>();
+
+	private final ExecutorService mExecutor;
+
+	private final long mFreshNanos;
+
+	private int mFetches;
+
+	private int mShared;
+
+	static synchronized RequestCoalescer getInstance() {
+		if (sInstance == null) {
+			sInstance = new RequestCoalescer(FRESH_MILLIS);
+		}
+		return sInstance;
+	}
+
+	RequestCoalescer(long freshMillis) {
+		mFreshNanos = TimeUnit.MILLISECONDS.toNanos(freshMillis);
+		// A thread per distinct query in flight, of which there are only ever a few
+		mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_SECONDS,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+	}
+
+	/**
+	 * Return the results of the query at {@code requestUrl}, as
+	 * {@link QueryUtils#fetchEarthquakes(String, QueryCache)} does, sharing them with anyone
+	 * else asking for the same query meanwhile. The list must not be modified.
+	 *
+	 * @throws InterruptedIOException if {@code cancellation}, when not null, is cancelled
+	 *                                before the results arrive
+	 */
+	List<Earthquake> fetch(String requestUrl, QueryCache cache,
+	                       FetchCancellation cancellation) throws IOException {
+		String key = QueryCache.normalizeKey(requestUrl);
+		Call call;
+		synchronized (this) {
+			long now = System.nanoTime();
+			forgetStale(now);
+			call = mCalls.get(key);
+			if (call != null && call.done) {
+				// Only fresh successes are kept
+				mShared++;
+				return call.result;
+			}
+			if (call == null) {
+				call = new Call(key, requestUrl, cache);
+				mCalls.put(key, call);
+				mFetches++;
+				mExecutor.execute(call);
+			} else {
+				mShared++;
+			}
+			call.waiters++;
+		}
+		return await(call, cancellation);
+	}
+
+	private List<Earthquake> await(Call call, FetchCancellation cancellation)
+			throws IOException {
+		boolean abandoned = false;
+		try {
+			if (cancellation != null) {
+				try {
+					cancellation.setAbortAction(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (RequestCoalescer.this) {
+								RequestCoalescer.this.notifyAll();
+							}
+						}
+					});
+				} catch (InterruptedIOException e) {
+					// Cancelled before waiting at all; the wait below gives up at once, and
+					// still counts this caller out of the call
+				}
+			}
+			synchronized (this) {
+				try {
+					while (!call.done && (cancellation == null || !cancellation.isCanceled())) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				call.waiters--;
+				if (!call.done) {
+					if (call.waiters == 0) {
+						// Nobody wants it any more; a later request starts afresh
+						abandoned = true;
+						if (mCalls.get(call.key) == call) {
+							mCalls.remove(call.key);
+						}
+					}
+					throw new InterruptedIOException("Fetch canceled");
+				}
+				if (call.error != null) {
+					throw new IOException(call.error.getMessage(), call.error);
+				}
+				return call.result;
+			}
+		} finally {
+			if (abandoned) {
+				// Outside the lock, as it disconnects the socket
+				call.cancellation.cancel();
+			}
+			if (cancellation != null) {
+				cancellation.clearAbortAction();
+			}
+		}
+	}
+
+	private void forgetStale(long now) {
+		Iterator<Call> calls = mCalls.values().iterator();
+		while (calls.hasNext()) {
+			Call call = calls.next();
+			if (call.done && now - call.doneNanos >= mFreshNanos) {
+				calls.remove();
+			}
+		}
+	}
+
+	/**
+	 * Return how many fetches were sent and how many requests were answered by another's
+	 * fetch or a fresh result instead, as "sent/shared".
+	 */
+	synchronized String getStats() {
+		return mFetches + "/" + mShared;
+	}
+
+	/**
+	 * One fetch and everyone waiting for it. Guarded by the coalescer.
+	 */
+	private final class Call implements Runnable {
+		final String key;
+
+		final String requestUrl;
+
+		final QueryCache cache;
+
+		final FetchCancellation cancellation = new FetchCancellation();
+
+		int waiters;
+
+		boolean done;
+
+		long doneNanos;
+
+		List<Earthquake> result;
+
+		IOException error;
+
+		Call(String key, String requestUrl, QueryCache cache) {
+			this.key = key;
+			this.requestUrl = requestUrl;
+			this.cache = cache;
+		}
+
+		@Override
+		public void run() {
+			List<Earthquake> fetched = null;
+			IOException failure = null;
+			try {
+				fetched = Collections.unmodifiableList(
+						QueryUtils.fetchEarthquakes(requestUrl, cache, cancellation));
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				failure = new IOException(e);
+			}
+			synchronized (RequestCoalescer.this) {
+				done = true;
+				doneNanos = System.nanoTime();
+				result = fetched;
+				error = failure;
+				boolean keep = error == null && result.size() <= MAX_FRESH_EARTHQUAKES;
+				if (!keep && mCalls.get(key) == this) {
+					mCalls.remove(key);
+				}
+				RequestCoalescer.this.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.example.android.quakereport;
+
+import java.net.URL;
+
+/**
+ * A {@link LatencyTracker} for each kind of request made to USGS, told apart by url. A
+ * count answers in a fraction of the time a few thousand events take to arrive, so learning
+ * one set of timeouts and hedging delays from both would time out the bulk fetches and hedge
+ * the small ones far too late.
+ */
+final class RequestLatencies implements UrlConnectionTransport.Timeouts {
+
+	/**
+	 * A page of a query, as the list scrolls
+	 */
+	static final int PAGE = 0;
+
+	/**
+	 * Many events at once: a time window, or a page larger than the list asks for
+	 */
+	static final int BULK = 1;
+
+	/**
+	 * The count method, which only answers with a number
+	 */
+	static final int COUNT = 2;
+
+	/**
+	 * Events updated since a sync
+	 */
+	static final int CHANGES = 3;
+
+	private static final int KINDS = 4;
+
+	/**
+	 * Largest limit still asked for by a page; anything more is a bulk request
+	 */
+	private static final int MAX_PAGE_LIMIT = 200;
+
+	private final LatencyTracker[] mTrackers = new LatencyTracker[KINDS];
+
+	RequestLatencies() {
+		for (int kind = 0; kind < KINDS; kind++) {
+			mTrackers[kind] = new LatencyTracker();
+		}
+	}
+
+	/**
+	 * Return the tracker for requests of the same kind as one to {@code url}.
+	 */
+	LatencyTracker forUrl(URL url) {
+		return mTrackers[kindOf(url)];
+	}
+
+	@Override
+	public int connectTimeoutMillis(URL url) {
+		return forUrl(url).connectTimeoutMillis();
+	}
+
+	@Override
+	public int readTimeoutMillis(URL url) {
+		return forUrl(url).readTimeoutMillis();
+	}
+
+	/**
+	 * Return the kind of request made to {@code url}, one of {@link #PAGE}, {@link #BULK},
+	 * {@link #COUNT} and {@link #CHANGES}.
+	 */
+	static int kindOf(URL url) {
+		String path = url.getPath();
+		if (path != null && path.endsWith("/count")) {
+			return COUNT;
+		}
+		String query = url.getQuery();
+		if (query == null) {
+			return PAGE;
+		}
+		if (parameter(query, "updatedafter") != null) {
+			return CHANGES;
+		}
+		if (parameter(query, "endtime") != null) {
+			return BULK;
+		}
+		String limit = parameter(query, "limit");
+		if (limit != null) {
+			try {
+				if (Integer.parseInt(limit) > MAX_PAGE_LIMIT) {
+					return BULK;
+				}
+			} catch (NumberFormatException e) {
+				// Left for USGS to reject; sized like a page meanwhile
+			}
+		}
+		return PAGE;
+	}
+
+	/**
+	 * Return the value of parameter {@code name} in {@code query}, or null if it isn't there.
+	 */
+	private static String parameter(String query, String name) {
+		int start = 0;
+		while (start < query.length()) {
+			int end = query.indexOf('&', start);
+			if (end < 0) {
+				end = query.length();
+			}
+			if (query.startsWith(name, start) && start + name.length() < end
+					&& query.charAt(start + name.length()) == '=') {
+				return query.substring(start + name.length() + 1, end);
+			}
+			start = end + 1;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,397 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpTransport} that keeps one slow or failing USGS response from turning into a
+ * long spinner and an empty list. Around the transport it wraps:
+ * <ul>
+ * <li>a request still waiting for its response once the 95th percentile of recent waits has
+ * passed is sent again, and whichever copy answers first is kept while the other is
+ * cancelled</li>
+ * <li>failed requests and server errors are retried after a jittered, exponentially growing
+ * pause</li>
+ * <li>after repeated failures no requests are sent for a while, and they fail at once with
+ * {@link CircuitBreaker.OpenException} so the last good data can be served instead</li>
+ * </ul>
+ * Copies and retries together are held to a {@link RetryBudget}. Only the wait for the
+ * response is hedged and retried; once its body is being read, the response is the
+ * caller's. Each kind of request is hedged by its own {@link LatencyTracker}, and the
+ * timeouts of the wrapped transport should come from the same {@link RequestLatencies},
+ * which learns from the answers seen here.
+ * <p>
+ * Each try at a request is recorded once, from when its first copy was sent to when the
+ * first copy answered, so a hedged answer counts the wait before the hedge too. A try that
+ * timed out is recorded as taking the time it waited, a lower bound. Were only the copies
+ * that answered recorded, from their own start, every hedge would cut the slowest answers
+ * out of the percentiles, and hedging would fire sooner and sooner.
+ */
+final class ResilientTransport implements HttpTransport {
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static final long BASE_BACKOFF_MILLIS = 250;
+
+	private static final long MAX_BACKOFF_MILLIS = 4_000;
+
+	private static final double HEDGE_QUANTILE = 0.95;
+
+	private static final long IDLE_THREAD_SECONDS = 30;
+
+	private final HttpTransport mDelegate;
+
+	private final RequestLatencies mLatencies;
+
+	private final RetryBudget mBudget;
+
+	private final CircuitBreaker mBreaker;
+
+	private final ExecutorService mExecutor;
+
+	private final Random mRandom = new Random();
+
+	ResilientTransport(HttpTransport delegate, RequestLatencies latencies) {
+		this(delegate, latencies, new RetryBudget(0.2, 10), new CircuitBreaker(5, 30_000));
+	}
+
+	ResilientTransport(HttpTransport delegate, RequestLatencies latencies, RetryBudget budget,
+	                   CircuitBreaker breaker) {
+		mDelegate = delegate;
+		mLatencies = latencies;
+		mBudget = budget;
+		mBreaker = breaker;
+		// Hedged copies wait on the network, and there are only ever a few at once
+		mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_SECONDS,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+	}
+
+	CircuitBreaker getCircuitBreaker() {
+		return mBreaker;
+	}
+
+	@Override
+	public Response get(URL url, Map<String, String> headers, FetchCancellation cancellation)
+			throws IOException {
+		if (!mBreaker.allowRequest()) {
+			throw new CircuitBreaker.OpenException(url.getHost());
+		}
+		mBudget.onRequest();
+		long backoffMillis = BASE_BACKOFF_MILLIS;
+		for (int attempt = 1; ; attempt++) {
+			Response response;
+			try {
+				response = hedged(url, headers, cancellation);
+			} catch (IOException e) {
+				if (cancellation != null && cancellation.isCanceled()) {
+					mBreaker.onAbandoned();
+					throw e;
+				}
+				mBreaker.onFailure();
+				if (!mayRetry(attempt)) {
+					throw e;
+				}
+				backOff(backoffMillis, cancellation);
+				backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+				continue;
+			}
+			if (response.code() < 500) {
+				mBreaker.onSuccess();
+				return response;
+			}
+			mBreaker.onFailure();
+			if (!mayRetry(attempt)) {
+				// The caller reports the error code
+				return response;
+			}
+			response.close();
+			backOff(backoffMillis, cancellation);
+			backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+
+	private boolean mayRetry(int attempt) {
+		return attempt < MAX_ATTEMPTS && !mBreaker.isOpen() && mBudget.tryRetry();
+	}
+
+	/**
+	 * Wait a random time up to {@code maxMillis}, the spread keeping clients that failed
+	 * together from retrying together, or until {@code cancellation} is cancelled.
+	 */
+	private void backOff(long maxMillis, FetchCancellation cancellation) throws IOException {
+		long millis = (long) (mRandom.nextDouble() * maxMillis);
+		final CountDownLatch canceled = new CountDownLatch(1);
+		if (cancellation != null) {
+			cancellation.setAbortAction(new Runnable() {
+				@Override
+				public void run() {
+					canceled.countDown();
+				}
+			});
+		}
+		try {
+			canceled.await(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Retry interrupted");
+		} finally {
+			if (cancellation != null) {
+				cancellation.clearAbortAction();
+			}
+		}
+		if (cancellation != null && cancellation.isCanceled()) {
+			mBreaker.onAbandoned();
+			cancellation.throwIfCanceled();
+		}
+	}
+
+	/**
+	 * Send the request, and a copy of it if it is slow to answer and the budget allows.
+	 */
+	private Response hedged(URL url, Map<String, String> headers,
+	                        FetchCancellation cancellation) throws IOException {
+		LatencyTracker latency = mLatencies.forUrl(url);
+		long start = System.nanoTime();
+		long hedgeDelayNanos = latency.percentileNanos(HEDGE_QUANTILE);
+		if (hedgeDelayNanos < 0) {
+			// Too little seen yet to tell a slow answer from a normal one
+			Response response;
+			try {
+				response = mDelegate.get(url, headers, cancellation);
+			} catch (SocketTimeoutException e) {
+				latency.record(System.nanoTime() - start);
+				throw e;
+			}
+			record(latency, response, start);
+			return response;
+		}
+		Race race = new Race(cancellation);
+		Response response;
+		try {
+			race.start(url, headers);
+			response = race.await(hedgeDelayNanos);
+			if (response == null && mBudget.tryRetry()) {
+				race.start(url, headers);
+			}
+			if (response == null) {
+				response = race.await(-1);
+			}
+		} catch (IOException e) {
+			if (cancellation != null) {
+				cancellation.clearAbortAction();
+			}
+			if (race.timedOut()) {
+				latency.record(System.nanoTime() - start);
+			}
+			throw e;
+		}
+		record(latency, response, start);
+		return race.handOver(response);
+	}
+
+	/**
+	 * Record how long the answer to a try started at {@code startNanos} took, unless it was a
+	 * server error, which may come back early or late whatever the usual wait.
+	 */
+	private static void record(LatencyTracker latency, Response response, long startNanos) {
+		if (response.code() < 500) {
+			latency.record(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Copies of one request racing for its response. Cancelling the caller's cancellation
+	 * cancels every copy.
+	 */
+	private final class Race {
+		private final FetchCancellation mCaller;
+
+		private final List<FetchCancellation> mAttempts = new ArrayList<>();
+
+		private int mRunning;
+
+		private Response mWinner;
+
+		private FetchCancellation mWinnerCancellation;
+
+		private IOException mFailure;
+
+		private boolean mTimedOut;
+
+		Race(FetchCancellation caller) throws InterruptedIOException {
+			mCaller = caller;
+			if (caller != null) {
+				caller.setAbortAction(new Runnable() {
+					@Override
+					public void run() {
+						cancelAll();
+					}
+				});
+			}
+		}
+
+		synchronized void start(final URL url, final Map<String, String> headers) {
+			final FetchCancellation attempt = new FetchCancellation();
+			mAttempts.add(attempt);
+			mRunning++;
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Response response = null;
+					IOException failure = null;
+					try {
+						response = mDelegate.get(url, headers, attempt);
+					} catch (IOException e) {
+						failure = e;
+					} catch (RuntimeException e) {
+						failure = new IOException(e);
+					}
+					finished(attempt, response, failure);
+				}
+			});
+		}
+
+		private void finished(FetchCancellation attempt, Response response,
+		                      IOException failure) {
+			boolean won = false;
+			synchronized (this) {
+				mRunning--;
+				if (response != null && mWinner == null && !isCanceled()) {
+					mWinner = response;
+					mWinnerCancellation = attempt;
+					won = true;
+				} else if (failure != null && !attempt.isCanceled()) {
+					mFailure = failure;
+					mTimedOut |= failure instanceof SocketTimeoutException;
+				}
+				notifyAll();
+			}
+			if (response != null && !won) {
+				// Too late; cancelled first so closing doesn't wait to drain the body
+				attempt.cancel();
+				response.close();
+			}
+		}
+
+		/**
+		 * Wait up to {@code timeoutNanos}, or for good if negative, for a response. Return
+		 * null if none came in time while a copy is still waiting for one.
+		 *
+		 * @throws IOException the last failure, once every copy has failed
+		 */
+		synchronized Response await(long timeoutNanos) throws IOException {
+			long deadline = System.nanoTime() + timeoutNanos;
+			try {
+				while (mWinner == null && mRunning > 0 && !isCanceled()) {
+					if (timeoutNanos < 0) {
+						wait();
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							return null;
+						}
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancelAll();
+				throw new InterruptedIOException("Request interrupted");
+			}
+			if (isCanceled()) {
+				// finished() closes a response arriving from now on
+				throw new InterruptedIOException("Fetch canceled");
+			}
+			if (mWinner == null) {
+				throw mFailure != null ? mFailure : new IOException("Request failed");
+			}
+			return mWinner;
+		}
+
+		/**
+		 * Cancel every copy but the one that answered, and return its response for the
+		 * caller to read and close.
+		 */
+		Response handOver(final Response response) {
+			List<FetchCancellation> losers;
+			synchronized (this) {
+				losers = new ArrayList<>(mAttempts);
+				losers.remove(mWinnerCancellation);
+			}
+			for (FetchCancellation loser : losers) {
+				loser.cancel();
+			}
+			final FetchCancellation winner = mWinnerCancellation;
+			if (mCaller != null) {
+				try {
+					mCaller.setAbortAction(new Runnable() {
+						@Override
+						public void run() {
+							winner.cancel();
+						}
+					});
+				} catch (InterruptedIOException e) {
+					winner.cancel();
+				}
+			}
+			return new Response() {
+				@Override
+				public int code() {
+					return response.code();
+				}
+
+				@Override
+				public String header(String name) {
+					return response.header(name);
+				}
+
+				@Override
+				public InputStream body() throws IOException {
+					return response.body();
+				}
+
+				@Override
+				public void close() {
+					if (mCaller != null) {
+						mCaller.clearAbortAction();
+					}
+					response.close();
+				}
+			};
+		}
+
+		/**
+		 * Return whether a copy gave up waiting for its response.
+		 */
+		synchronized boolean timedOut() {
+			return mTimedOut;
+		}
+
+		private boolean isCanceled() {
+			return mCaller != null && mCaller.isCanceled();
+		}
+
+		private void cancelAll() {
+			List<FetchCancellation> attempts;
+			synchronized (this) {
+				attempts = new ArrayList<>(mAttempts);
+				notifyAll();
+			}
+			for (FetchCancellation attempt : attempts) {
+				attempt.cancel();
+			}
+		}
+	}
+}
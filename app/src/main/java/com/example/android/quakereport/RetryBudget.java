@@ -0,0 +1,42 @@
+package com.example.android.quakereport;
+
+/**
+ * Caps the extra requests sent for retries and hedges at a share of the requests made, so
+ * that when USGS struggles the app adds a bounded amount of load to it rather than
+ * multiplying it. Every request deposits a fraction of a token and every extra request
+ * spends a whole one. The balance is capped, and starts full so the odd retry is allowed
+ * while requests are still few.
+ */
+final class RetryBudget {
+
+	private final double mRatio;
+
+	private final double mMaxBalance;
+
+	private double mBalance;
+
+	/**
+	 * @param ratio      extra requests allowed per request, in the long run
+	 * @param maxBalance extra requests allowed in a burst
+	 */
+	RetryBudget(double ratio, int maxBalance) {
+		mRatio = ratio;
+		mMaxBalance = maxBalance;
+		mBalance = maxBalance;
+	}
+
+	synchronized void onRequest() {
+		mBalance = Math.min(mBalance + mRatio, mMaxBalance);
+	}
+
+	/**
+	 * Spend a token on an extra request, and return false if there is none left.
+	 */
+	synchronized boolean tryRetry() {
+		if (mBalance < 1) {
+			return false;
+		}
+		mBalance -= 1;
+		return true;
+	}
+}
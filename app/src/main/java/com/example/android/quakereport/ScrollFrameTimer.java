@@ -0,0 +1,48 @@
+package com.example.android.quakereport;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+
+/**
+ * Records the time between frames into {@link Metrics#FRAME} while a list scrolls, which is
+ * where slow row drawing shows up as dropped frames during flings. Frames are only followed
+ * while metrics are recorded and the list is moving.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+final class ScrollFrameTimer extends RecyclerView.OnScrollListener
+		implements Choreographer.FrameCallback {
+
+	private boolean mScrolling;
+
+	private boolean mPosted;
+
+	/**
+	 * Time of the last frame followed, or 0 at the start of a scroll
+	 */
+	private long mLastFrameNanos;
+
+	@Override
+	public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+		mScrolling = newState != RecyclerView.SCROLL_STATE_IDLE;
+		if (mScrolling && !mPosted && Metrics.isEnabled()) {
+			mLastFrameNanos = 0;
+			mPosted = true;
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		mPosted = false;
+		if (mLastFrameNanos != 0) {
+			Metrics.record(Metrics.FRAME, frameTimeNanos - mLastFrameNanos);
+		}
+		mLastFrameNanos = frameTimeNanos;
+		if (mScrolling) {
+			mPosted = true;
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.example.android.quakereport;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each distinct string a small integer code, so columns that repeat a handful of
+ * values (regions, url prefixes) can be stored as {@code int}s with one copy of each string.
+ */
+final class StringDictionary {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Map<String, Integer> mCodes = new HashMap<>();
+
+	private final List<String> mValues = new ArrayList<>();
+
+	/**
+	 * Return the code for {@code value}, assigning the next one if it hasn't been seen.
+	 */
+	int encode(String value) {
+		Integer code = mCodes.get(value);
+		if (code == null) {
+			code = mValues.size();
+			mCodes.put(value, code);
+			mValues.add(value);
+		}
+		return code;
+	}
+
+	/**
+	 * Return the code for {@code value}, or -1 if it hasn't been seen.
+	 */
+	int find(String value) {
+		Integer code = mCodes.get(value);
+		return code == null ? -1 : code;
+	}
+
+	String decode(int code) {
+		return mValues.get(code);
+	}
+
+	int size() {
+		return mValues.size();
+	}
+
+	/**
+	 * Write every value in code order, each as its UTF-8 length and bytes.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(mValues.size());
+		for (String value : mValues) {
+			byte[] bytes = value.getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Add the values written by {@link #writeTo(DataOutputStream)}. Read into an empty
+	 * dictionary, every value gets back the code it was written with.
+	 */
+	void readFrom(ByteBuffer in) {
+		int count = in.getInt();
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < count; i++) {
+			int length = in.getInt();
+			if (length > bytes.length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			in.get(bytes, 0, length);
+			encode(new String(bytes, 0, length, UTF_8));
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link HttpTransport} on top of {@link HttpURLConnection}. Connections are only
+ * disconnected when a request fails or is cancelled; a response read to the end and closed
+ * hands its socket back to the platform's keep-alive pool, so repeated and paged queries to
+ * the same host skip the TCP and TLS handshakes. Responses are requested gzipped and inflated
+ * as they are read. Unless told otherwise, requests report their timing to {@link Metrics}.
+ */
+final class UrlConnectionTransport implements HttpTransport {
+
+	/**
+	 * Largest remainder read off a closed response to keep its connection reusable. Anything
+	 * bigger costs more than a new connection and is dropped along with the connection.
+	 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15_000;
+
+	static final int DEFAULT_READ_TIMEOUT_MILLIS = 10_000;
+
+	/**
+	 * Supplies the timeouts of each request to {@code url} as it is made
+	 */
+	interface Timeouts {
+		int connectTimeoutMillis(URL url);
+
+		int readTimeoutMillis(URL url);
+	}
+
+	private final Timeouts mTimeouts;
+
+	private final Listener mListener;
+
+	UrlConnectionTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+				Metrics.transportListener());
+	}
+
+	UrlConnectionTransport(final int connectTimeoutMillis, final int readTimeoutMillis,
+	                       Listener listener) {
+		this(new Timeouts() {
+			@Override
+			public int connectTimeoutMillis(URL url) {
+				return connectTimeoutMillis;
+			}
+
+			@Override
+			public int readTimeoutMillis(URL url) {
+				return readTimeoutMillis;
+			}
+		}, listener);
+	}
+
+	UrlConnectionTransport(Timeouts timeouts, Listener listener) {
+		mTimeouts = timeouts;
+		mListener = listener != null ? listener : new Listener() {
+		};
+	}
+
+	@Override
+	public Response get(URL url, Map<String, String> headers,
+	                    FetchCancellation cancellation) throws IOException {
+		long start = System.nanoTime();
+		mListener.requestStarted(url);
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) url.openConnection();
+			if (cancellation != null) {
+				// Closing the socket under a blocked connect or read is the only way to end it
+				// early; the connection is not reused afterwards
+				final HttpURLConnection toAbort = connection;
+				cancellation.setAbortAction(new Runnable() {
+					@Override
+					public void run() {
+						toAbort.disconnect();
+					}
+				});
+			}
+			connection.setRequestMethod("GET");
+			connection.setConnectTimeout(mTimeouts.connectTimeoutMillis(url));
+			connection.setReadTimeout(mTimeouts.readTimeoutMillis(url));
+			// Asking explicitly turns off transparent decompression, which also hides the
+			// compressed length from the timing hooks
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			connection.connect();
+			mListener.connected(url, System.nanoTime() - start);
+			int code = connection.getResponseCode();
+			mListener.responseHeaders(url, code, System.nanoTime() - start);
+			return new ConnectionResponse(url, connection, code, start, cancellation);
+		} catch (IOException e) {
+			if (cancellation != null) {
+				cancellation.clearAbortAction();
+			}
+			if (connection != null) {
+				// The connection is in an unknown state, so it must not be reused
+				connection.disconnect();
+			}
+			mListener.requestFailed(url, e, System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private final class ConnectionResponse implements Response {
+		private final URL mUrl;
+		private final HttpURLConnection mConnection;
+		private final int mCode;
+		private final long mStart;
+		private final FetchCancellation mCancellation;
+		private CountingInputStream mWire;
+		private CountingInputStream mBody;
+		private boolean mClosed;
+
+		ConnectionResponse(URL url, HttpURLConnection connection, int code, long start,
+		                   FetchCancellation cancellation) {
+			mUrl = url;
+			mConnection = connection;
+			mCode = code;
+			mStart = start;
+			mCancellation = cancellation;
+		}
+
+		@Override
+		public int code() {
+			return mCode;
+		}
+
+		@Override
+		public String header(String name) {
+			return mConnection.getHeaderField(name);
+		}
+
+		@Override
+		public InputStream body() throws IOException {
+			if (mBody == null) {
+				InputStream raw = mCode >= 400
+						? mConnection.getErrorStream()
+						: mConnection.getInputStream();
+				mWire = new CountingInputStream(raw != null ? raw : new ByteArrayInputStream(new byte[0]));
+				mWire.timed = true;
+				InputStream decoded = "gzip".equalsIgnoreCase(
+						mConnection.getContentEncoding())
+						? new GZIPInputStream(mWire, 8192)
+						: mWire;
+				mBody = new CountingInputStream(mCancellation != null
+						? mCancellation.wrap(decoded)
+						: decoded);
+			}
+			return mBody;
+		}
+
+		@Override
+		public void close() {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			boolean canceled = false;
+			if (mCancellation != null) {
+				// From here the connection may go back to the pool, where another request
+				// could pick it up, so a late cancel must no longer touch it
+				mCancellation.clearAbortAction();
+				canceled = mCancellation.isCanceled();
+			}
+			if (canceled || mWire != null && mWire.failed) {
+				// Not worth draining, and likely disconnected under the reader already; after
+				// a failed read, draining would only wait out the same stall again
+				mConnection.disconnect();
+			} else {
+				try {
+					InputStream wire = mWire;
+					if (wire == null && mCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+						// Unread bodies still have to be consumed before the socket is reused
+						wire = mCode >= 400
+								? mConnection.getErrorStream()
+								: mConnection.getInputStream();
+					}
+					if (wire != null) {
+						drain(wire);
+						wire.close();
+					}
+				} catch (IOException e) {
+					mConnection.disconnect();
+				}
+			}
+			mListener.responseEnded(mUrl,
+					mWire == null ? 0 : mWire.count,
+					mBody == null ? 0 : mBody.count,
+					mWire == null ? 0 : mWire.nanos,
+					System.nanoTime() - mStart);
+		}
+
+		private void drain(InputStream wire) throws IOException {
+			byte[] buffer = new byte[4096];
+			long drained = 0;
+			int read;
+			while ((read = wire.read(buffer)) != -1) {
+				drained += read;
+				if (drained > MAX_DRAIN_BYTES) {
+					mConnection.disconnect();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it, and when {@link #timed} the time spent reading them
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		long count;
+
+		boolean timed;
+
+		long nanos;
+
+		/**
+		 * Whether a read failed, as when it timed out
+		 */
+		boolean failed;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = timed ? System.nanoTime() : 0;
+			int b;
+			try {
+				b = super.read();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+			if (timed) {
+				nanos += System.nanoTime() - start;
+			}
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long start = timed ? System.nanoTime() : 0;
+			int read;
+			try {
+				read = super.read(buffer, offset, length);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+			if (timed) {
+				nanos += System.nanoTime() - start;
+			}
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
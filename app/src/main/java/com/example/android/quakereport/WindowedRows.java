@@ -0,0 +1,263 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of formatted rows stored in an {@link EarthquakeRowFile}. Every position
+ * exists, but only the blocks around the rows on screen need to be in memory: the list itself
+ * is just the offsets of its blocks. Appending writes new blocks and returns a new list, leaving
+ * this one as it was, so the list shown and the list being built never get in each other's way.
+ * <p>
+ * {@link #get} reads a missing block from disk and is for background threads. The main thread
+ * uses {@link #getIfLoaded} and asks for missing blocks with {@link #loadAround}.
+ */
+final class WindowedRows extends AbstractList<EarthquakeDisplayRow> implements RandomAccess {
+
+	/**
+	 * Told when rows asked for with {@link #loadAround} are in memory
+	 */
+	interface OnRowsLoadedListener {
+		void onRowsLoaded(WindowedRows rows, int start, int count);
+	}
+
+	static final WindowedRows EMPTY = new WindowedRows(null, new long[0], 0, null);
+
+	/**
+	 * Blocks on either side of the rows on screen read ahead of scrolling
+	 */
+	private static final int PRELOAD_BLOCKS = 2;
+
+	private final EarthquakeRowFile mFile;
+
+	private final long[] mBlockOffsets;
+
+	private final int mSize;
+
+	/**
+	 * Shared by every list of the file
+	 */
+	private final Positions mPositions;
+
+	/**
+	 * The position of every event in one list of a file: the one last appended to, which is
+	 * the one appended to next unless a load was abandoned. Appends to the file take turns
+	 * on it.
+	 */
+	private static final class Positions {
+		EarthquakeIdIndex ids = new EarthquakeIdIndex(EarthquakeRowFile.BLOCK_ROWS);
+
+		/**
+		 * The list {@link #ids} is for, or null if an append to it failed halfway
+		 */
+		WindowedRows list;
+	}
+
+	private WindowedRows(EarthquakeRowFile file, long[] blockOffsets, int size,
+	                     Positions positions) {
+		mFile = file;
+		mBlockOffsets = blockOffsets;
+		mSize = size;
+		mPositions = positions;
+	}
+
+	/**
+	 * Return an empty list to append to in {@code file}.
+	 */
+	static WindowedRows empty(EarthquakeRowFile file) {
+		WindowedRows rows = new WindowedRows(file, new long[0], 0, new Positions());
+		rows.mPositions.list = rows;
+		return rows;
+	}
+
+	EarthquakeRowFile getFile() {
+		return mFile;
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Return the row at {@code position}, reading its block from disk if need be.
+	 *
+	 * @throws IllegalStateException if the block can't be read
+	 */
+	@Override
+	public EarthquakeDisplayRow get(int position) {
+		checkPosition(position);
+		try {
+			return mFile.read(mBlockOffsets[position / EarthquakeRowFile.BLOCK_ROWS])
+					[position % EarthquakeRowFile.BLOCK_ROWS];
+		} catch (IOException e) {
+			throw new IllegalStateException("Row " + position + " is unreadable", e);
+		}
+	}
+
+	/**
+	 * Return the row at {@code position} if its block is in memory, or null.
+	 */
+	EarthquakeDisplayRow getIfLoaded(int position) {
+		checkPosition(position);
+		EarthquakeDisplayRow[] block =
+				mFile.getCached(mBlockOffsets[position / EarthquakeRowFile.BLOCK_ROWS]);
+		return block == null ? null : block[position % EarthquakeRowFile.BLOCK_ROWS];
+	}
+
+	/**
+	 * Read the blocks holding positions {@code first} to {@code last} that aren't in memory,
+	 * telling {@code listener} on the main thread as each arrives. A few blocks either side are
+	 * read as well if the disk pool has room, so scrolling rarely reaches a missing row.
+	 */
+	void loadAround(int first, int last, OnRowsLoadedListener listener) {
+		if (mSize == 0) {
+			return;
+		}
+		int firstBlock = Math.max(first, 0) / EarthquakeRowFile.BLOCK_ROWS;
+		int lastBlock = Math.min(Math.max(last, first), mSize - 1) / EarthquakeRowFile.BLOCK_ROWS;
+		for (int block = firstBlock; block <= lastBlock; block++) {
+			loadBlock(block, BackgroundScheduler.PRIORITY_VISIBLE, listener);
+		}
+		for (int distance = 1; distance <= PRELOAD_BLOCKS; distance++) {
+			if (lastBlock + distance < mBlockOffsets.length) {
+				loadBlock(lastBlock + distance, BackgroundScheduler.PRIORITY_PREFETCH, listener);
+			}
+			if (firstBlock - distance >= 0) {
+				loadBlock(firstBlock - distance, BackgroundScheduler.PRIORITY_PREFETCH, listener);
+			}
+		}
+	}
+
+	private void loadBlock(final int block, int priority, final OnRowsLoadedListener listener) {
+		mFile.readInBackground(mBlockOffsets[block], priority, new Runnable() {
+			@Override
+			public void run() {
+				int start = block * EarthquakeRowFile.BLOCK_ROWS;
+				listener.onRowsLoaded(WindowedRows.this, start,
+						Math.min(EarthquakeRowFile.BLOCK_ROWS, mSize - start));
+			}
+		});
+	}
+
+	/**
+	 * Return this list followed by {@code page}, except for events it already holds, whose
+	 * rows are replaced in place. Events that arrive between two page fetches shift the
+	 * offsets, so the next page starts with events the last one ended with, fetched later and
+	 * so at least as up to date. Only the blocks that change are written. Not for the main
+	 * thread.
+	 *
+	 * @param replaced receives the positions of this list whose rows were replaced
+	 */
+	WindowedRows append(List<EarthquakeDisplayRow> page, List<Integer> replaced)
+			throws IOException {
+		synchronized (mPositions) {
+			if (mPositions.list != this) {
+				// Another list of the file was appended to since, or this one failed to be
+				mPositions.ids = indexIds(page.size());
+			}
+			// Until the append is through, the ids are for no list at all
+			mPositions.list = null;
+			WindowedRows rows = append(page, replaced, mPositions.ids);
+			mPositions.list = rows;
+			return rows;
+		}
+	}
+
+	private WindowedRows append(List<EarthquakeDisplayRow> page, List<Integer> replaced,
+	                            EarthquakeIdIndex positions) throws IOException {
+		Map<Integer, EarthquakeDisplayRow> replacements = new HashMap<>();
+		List<EarthquakeDisplayRow> appended = new ArrayList<>(page.size());
+		for (EarthquakeDisplayRow row : page) {
+			int position = positions.get(row.id);
+			if (position < 0) {
+				positions.put(row.id, mSize + appended.size());
+				appended.add(row);
+			} else if (position >= mSize) {
+				appended.set(position - mSize, row);
+			} else {
+				replacements.put(position, row);
+				replaced.add(position);
+			}
+		}
+
+		int size = mSize + appended.size();
+		int blockCount = blockCount(size);
+		long[] blockOffsets = Arrays.copyOf(mBlockOffsets, blockCount);
+
+		// Blocks with replaced rows, and the last partial block once rows are added to it
+		int firstDirty = appended.isEmpty() ? blockCount : mSize / EarthquakeRowFile.BLOCK_ROWS;
+		for (int position : replacements.keySet()) {
+			firstDirty = Math.min(firstDirty, position / EarthquakeRowFile.BLOCK_ROWS);
+		}
+		List<EarthquakeDisplayRow> blockRows = new ArrayList<>(EarthquakeRowFile.BLOCK_ROWS);
+		for (int block = firstDirty; block < blockCount; block++) {
+			int start = block * EarthquakeRowFile.BLOCK_ROWS;
+			int end = Math.min(size, start + EarthquakeRowFile.BLOCK_ROWS);
+			boolean dirty = end > mSize;
+			for (int position = start; position < end && !dirty; position++) {
+				dirty = replacements.containsKey(position);
+			}
+			if (!dirty) {
+				continue;
+			}
+			blockRows.clear();
+			for (int position = start; position < end; position++) {
+				EarthquakeDisplayRow row = position >= mSize
+						? appended.get(position - mSize)
+						: replacements.get(position);
+				blockRows.add(row != null ? row : readRow(position));
+			}
+			blockOffsets[block] = mFile.write(blockRows);
+		}
+		return new WindowedRows(mFile, blockOffsets, size, mPositions);
+	}
+
+	/**
+	 * Return the position of every event in this list, with room for {@code extra} more.
+	 */
+	private EarthquakeIdIndex indexIds(int extra) throws IOException {
+		EarthquakeIdIndex ids = new EarthquakeIdIndex(mSize + extra);
+		for (int block = 0; block < mBlockOffsets.length; block++) {
+			EarthquakeDisplayRow[] rows = mFile.read(mBlockOffsets[block]);
+			int start = block * EarthquakeRowFile.BLOCK_ROWS;
+			for (int i = 0; i < rows.length && start + i < mSize; i++) {
+				ids.put(rows[i].id, start + i);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Store the {@link EarthquakeDisplayRow#idKey} and {@link EarthquakeDisplayRow#contentKey}
+	 * of every row in {@code idKeys} and {@code contentKeys}, which must hold {@link #size()}
+	 * of them, reading only the keys of blocks that aren't in memory. Not for the main thread.
+	 */
+	void readKeys(long[] idKeys, int[] contentKeys) throws IOException {
+		for (int block = 0; block < mBlockOffsets.length; block++) {
+			mFile.readKeys(mBlockOffsets[block], idKeys, contentKeys,
+					block * EarthquakeRowFile.BLOCK_ROWS);
+		}
+	}
+
+	private EarthquakeDisplayRow readRow(int position) throws IOException {
+		return mFile.read(mBlockOffsets[position / EarthquakeRowFile.BLOCK_ROWS])
+				[position % EarthquakeRowFile.BLOCK_ROWS];
+	}
+
+	private void checkPosition(int position) {
+		if (position < 0 || position >= mSize) {
+			throw new IndexOutOfBoundsException("Position " + position + " of " + mSize);
+		}
+	}
+
+	private static int blockCount(int size) {
+		return (size + EarthquakeRowFile.BLOCK_ROWS - 1) / EarthquakeRowFile.BLOCK_ROWS;
+	}
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for the framework handler, posting to a {@link Looper} stand-in.
+ */
+public class Handler {
+
+	private final Looper mLooper;
+
+	public Handler(Looper looper) {
+		mLooper = looper;
+	}
+
+	public final boolean post(Runnable runnable) {
+		mLooper.mQueue.execute(runnable);
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stand-in for the framework's main thread, so classes that hand results back to it run on a
+ * plain JVM. The main looper is a single daemon thread, started on first use, that runs what
+ * is posted to it in order.
+ */
+public final class Looper {
+
+	private static Looper sMainLooper;
+
+	final ExecutorService mQueue;
+
+	private Looper(ExecutorService queue) {
+		mQueue = queue;
+	}
+
+	public static synchronized Looper getMainLooper() {
+		if (sMainLooper == null) {
+			sMainLooper = new Looper(Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "main");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}));
+		}
+		return sMainLooper;
+	}
+}
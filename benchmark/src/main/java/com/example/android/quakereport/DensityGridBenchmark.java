@@ -0,0 +1,88 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The density map's background work: merging a response into the grid, merging it again
+ * unchanged as a refresh does, and rendering the single tile of the whole world and one
+ * tile of the deepest zoom level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DensityGridBenchmark {
+
+	@Param({"1000", "20000", "100000"})
+	public int features;
+
+	private int[] mColors;
+
+	private List<Earthquake> mEarthquakes;
+
+	private EarthquakeDensityGrid mGrid;
+
+	private int mBusiestX;
+
+	private int mBusiestY;
+
+	@Setup
+	public void setUp() throws IOException {
+		mEarthquakes = Fixtures.parse(Fixtures.load(features));
+		mColors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+		for (int i = 0; i < mColors.length; i++) {
+			mColors[i] = 0xff000000 | i * 0x1a1a1a;
+		}
+		mGrid = new EarthquakeDensityGrid(mColors);
+		mGrid.merge(mEarthquakes);
+
+		// The deepest tile holding the first located event, so it is never empty
+		for (Earthquake earthquake : mEarthquakes) {
+			if (earthquake.hasLocation()) {
+				mBusiestX = EarthquakeDensityGrid.tileX(EarthquakeDensityGrid.MAX_ZOOM,
+						earthquake.getLongitude());
+				mBusiestY = EarthquakeDensityGrid.tileY(EarthquakeDensityGrid.MAX_ZOOM,
+						earthquake.getLatitude());
+				break;
+			}
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public double[] mergeNew() {
+		return new EarthquakeDensityGrid(mColors).merge(mEarthquakes);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public double[] mergeUnchanged() {
+		return mGrid.merge(mEarthquakes);
+	}
+
+	@Benchmark
+	public int[] renderWorld() {
+		return mGrid.render(0, 0, 0);
+	}
+
+	@Benchmark
+	public int[] renderDeepest() {
+		return mGrid.render(EarthquakeDensityGrid.MAX_ZOOM, mBusiestX, mBusiestY);
+	}
+}
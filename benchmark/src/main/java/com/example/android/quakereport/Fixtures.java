@@ -0,0 +1,181 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic USGS GeoJSON responses for the benchmarks. Features carry every property the real
+ * feed does, with a mix of place formats, so parsing skips as much as it would in the app.
+ * The small sizes are checked in under {@code fixtures/}; the large ones would only bloat the
+ * repository and are generated the same way on first use.
+ */
+final class Fixtures {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String[] DIRECTIONS = {
+			"N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE",
+			"S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW"
+	};
+
+	private static final String[] NETWORKS = {"us", "ci", "nc", "ak", "hv", "nn", "uw", "pr"};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Return the response body with {@code features} earthquakes.
+	 */
+	static byte[] load(int features) throws IOException {
+		InputStream in = Fixtures.class.getResourceAsStream(resourceName(features));
+		if (in == null) {
+			return generate(features);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Return {@code body} gzipped, as a server that honours Accept-Encoding sends it.
+	 */
+	static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 8);
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(body);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	static List<Earthquake> parse(byte[] body) throws IOException {
+		return QueryUtils.extractFeaturesFromStream(new ByteArrayInputStream(body));
+	}
+
+	/**
+	 * Return a response with {@code features} earthquakes, newest first. The same count always
+	 * gives the same bytes.
+	 */
+	static byte[] generate(int features) {
+		Random random = new Random(features);
+		long generated = 1496275200000L;
+		StringBuilder json = new StringBuilder(features * 1100 + 512);
+		json.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":")
+				.append(generated)
+				.append(",\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query")
+				.append("?format=geojson&limit=").append(features)
+				.append("\",\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.8\",")
+				.append("\"limit\":").append(features).append(",\"offset\":1,\"count\":")
+				.append(features).append("},\"features\":[");
+
+		long time = generated;
+		for (int i = 0; i < features; i++) {
+			time -= 1 + random.nextInt(120000);
+			String network = NETWORKS[random.nextInt(NETWORKS.length)];
+			String code = String.valueOf(10000000 + random.nextInt(90000000));
+			String id = network + code;
+			double magnitude = Math.round(magnitude(random) * 100) / 100.0;
+			String place = place(random);
+			double longitude = Math.round((random.nextDouble() * 360 - 180) * 10000) / 10000.0;
+			double latitude = Math.round((random.nextDouble() * 160 - 80) * 10000) / 10000.0;
+			double depth = Math.round(random.nextDouble() * 300 * 100) / 100.0;
+			boolean reviewed = random.nextInt(3) > 0;
+
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(magnitude)
+					.append(",\"place\":\"").append(place)
+					.append("\",\"time\":").append(time)
+					.append(",\"updated\":").append(time + random.nextInt(86400000))
+					.append(",\"tz\":").append(random.nextInt(25) * 60 - 720)
+					.append(",\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/")
+					.append(id)
+					.append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query")
+					.append("?eventid=").append(id).append("&format=geojson\",\"felt\":")
+					.append(random.nextInt(10) == 0 ? String.valueOf(random.nextInt(500)) : "null")
+					.append(",\"cdi\":null,\"mmi\":null,\"alert\":")
+					.append(magnitude >= 5.5 ? "\"green\"" : "null")
+					.append(",\"status\":\"").append(reviewed ? "reviewed" : "automatic")
+					.append("\",\"tsunami\":0,\"sig\":").append(random.nextInt(1000))
+					.append(",\"net\":\"").append(network)
+					.append("\",\"code\":\"").append(code)
+					.append("\",\"ids\":\",").append(id)
+					.append(",\",\"sources\":\",").append(network)
+					.append(",\",\"types\":\",geoserve,nearby-cities,origin,phase-data,\",\"nst\":")
+					.append(random.nextInt(80))
+					.append(",\"dmin\":").append(Math.round(random.nextDouble() * 5000) / 1000.0)
+					.append(",\"rms\":").append(Math.round(random.nextDouble() * 1000) / 1000.0)
+					.append(",\"gap\":").append(random.nextInt(360))
+					.append(",\"magType\":\"").append(magnitude >= 4 ? "mb" : "ml")
+					.append("\",\"type\":\"earthquake\",\"title\":\"M ").append(magnitude)
+					.append(" - ").append(place)
+					.append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+					.append(longitude).append(',').append(latitude).append(',').append(depth)
+					.append("]},\"id\":\"").append(id).append("\"}");
+		}
+		json.append("],\"bbox\":[-180,-80,0,180,80,300]}");
+		return json.toString().getBytes(UTF_8);
+	}
+
+	/**
+	 * Magnitudes skewed towards small events, as in the real catalog
+	 */
+	private static double magnitude(Random random) {
+		return Math.min(9.5, -Math.log(1 - random.nextDouble()) / Math.log(10) + 1);
+	}
+
+	private static String place(Random random) {
+		String region = "Region " + random.nextInt(2000);
+		switch (random.nextInt(10)) {
+			case 0:
+				// Offshore events name a region only
+				return region + " region";
+			case 1:
+				return String.format(Locale.US, "%dkm %s of \u014Ctaki, New Zealand",
+						random.nextInt(150), DIRECTIONS[random.nextInt(DIRECTIONS.length)]);
+			default:
+				return String.format(Locale.US, "%dkm %s of %s, %s", random.nextInt(150),
+						DIRECTIONS[random.nextInt(DIRECTIONS.length)], region,
+						random.nextBoolean() ? "CA" : "Alaska");
+		}
+	}
+
+	private static String resourceName(int features) {
+		return "/fixtures/usgs-" + features + ".geojson";
+	}
+
+	/**
+	 * Write the fixtures with the given feature counts into the directory named first.
+	 */
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			int features = Integer.parseInt(args[i]);
+			OutputStream out = new FileOutputStream(
+					new File(directory, "usgs-" + features + ".geojson"));
+			try {
+				out.write(generate(features));
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
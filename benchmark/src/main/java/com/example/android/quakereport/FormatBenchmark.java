@@ -0,0 +1,63 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Working out the text of list rows, the magnitude and date formatting that used to happen
+ * while binding views: a single row, as a scroll would, and every row of a response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+	@Param({"20", "1000", "20000", "100000"})
+	public int features;
+
+	private List<Earthquake> mEarthquakes;
+
+	private EarthquakeFormatter mFormatter;
+
+	private int mNext;
+
+	@Setup
+	public void setUp() throws IOException {
+		mEarthquakes = Fixtures.parse(Fixtures.load(features));
+		int[] colors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xff000000 | i * 0x1a1a1a;
+		}
+		mFormatter = new EarthquakeFormatter(colors, "Near the");
+	}
+
+	@Benchmark
+	public EarthquakeDisplayRow formatRow() {
+		if (mNext == mEarthquakes.size()) {
+			mNext = 0;
+		}
+		return mFormatter.format(mEarthquakes.get(mNext++));
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public List<EarthquakeDisplayRow> formatAll() {
+		return mFormatter.format(mEarthquakes);
+	}
+}
@@ -0,0 +1,52 @@
+package com.example.android.quakereport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Imports a USGS catalog export, CSV or GeoJSON, with {@link EarthquakeImporter} and writes
+ * it out as an {@link EarthquakeSnapshot}, which the app reads on a cold start when pushed
+ * to its files directory. Progress goes to standard output.
+ */
+final class ImportCatalog {
+
+	private ImportCatalog() {
+	}
+
+	/**
+	 * Import the catalog named first into the snapshot named second, parsing on as many
+	 * threads as the optional third argument says, or one per core.
+	 */
+	public static void main(String[] args) throws IOException {
+		File catalog = new File(args[0]);
+		File snapshot = new File(args[1]);
+		int parallelism = args.length > 2
+				? Integer.parseInt(args[2])
+				: Runtime.getRuntime().availableProcessors();
+
+		EarthquakeStore store = new EarthquakeStore();
+		long start = System.nanoTime();
+		int rows = new EarthquakeImporter(parallelism, EarthquakeImporter.DEFAULT_CHUNK_BYTES)
+				.importFile(catalog, store, new EarthquakeImporter.Listener() {
+					@Override
+					public void onProgress(long bytesDone, long bytesTotal, int rows,
+					                       double rowsPerSecond) {
+						System.out.printf(Locale.US, "%5.1f%%  %,12d rows  %,10.0f rows/s%n",
+								bytesDone * 100.0 / bytesTotal, rows, rowsPerSecond);
+					}
+				});
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		double minMagnitude = Double.POSITIVE_INFINITY;
+		long watermark = Long.MIN_VALUE;
+		for (int row = 0; row < store.size(); row++) {
+			minMagnitude = Math.min(minMagnitude, store.getMagnitude(row));
+			watermark = Math.max(watermark, store.getUpdated(row));
+		}
+		new EarthquakeSnapshot(store, rows == 0 ? 0 : minMagnitude, watermark,
+				System.currentTimeMillis()).write(snapshot);
+		System.out.printf(Locale.US, "Imported %,d rows from %s in %.1fs on %d threads%n",
+				rows, catalog, seconds, parallelism);
+	}
+}
@@ -0,0 +1,59 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a response body into earthquakes: the list {@link QueryUtils} hands to the loader,
+ * and the columns the {@link EarthquakeQueryEngine} keeps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({"20", "1000", "20000", "100000"})
+	public int features;
+
+	private byte[] mBody;
+
+	@Setup
+	public void setUp() throws IOException {
+		mBody = Fixtures.load(features);
+	}
+
+	@Benchmark
+	public List<Earthquake> parseToList() throws IOException {
+		return QueryUtils.extractFeaturesFromStream(new ByteArrayInputStream(mBody));
+	}
+
+	@Benchmark
+	public EarthquakeStore parseToStore() throws IOException {
+		final EarthquakeStore store = new EarthquakeStore();
+		new EarthquakeJsonParser(new ByteArrayInputStream(mBody)).parse(
+				new EarthquakeJsonParser.Callback() {
+					@Override
+					public void onEarthquake(Earthquake earthquake) {
+						store.add(earthquake);
+					}
+				});
+		return store;
+	}
+}
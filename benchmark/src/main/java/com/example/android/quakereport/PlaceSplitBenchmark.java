@@ -0,0 +1,65 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting places such as "12km SSW of Volcano, Hawaii" into their distance and region,
+ * as rows are formatted for display and as they are encoded into the store's dictionaries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaceSplitBenchmark {
+
+	@Param({"20", "1000", "20000", "100000"})
+	public int features;
+
+	private List<Earthquake> mEarthquakes;
+
+	private String[] mPlaces;
+
+	@Setup
+	public void setUp() throws IOException {
+		mEarthquakes = Fixtures.parse(Fixtures.load(features));
+		mPlaces = new String[mEarthquakes.size()];
+		for (int i = 0; i < mPlaces.length; i++) {
+			mPlaces[i] = mEarthquakes.get(i).getPlace();
+		}
+	}
+
+	@Benchmark
+	public void splitForDisplay(Blackhole blackhole) {
+		for (String place : mPlaces) {
+			int split = EarthquakeFormatter.locationSplit(place);
+			if (split >= 0) {
+				blackhole.consume(place.substring(split).trim());
+				blackhole.consume(place.substring(0, split).trim());
+			} else {
+				blackhole.consume(place);
+			}
+		}
+	}
+
+	@Benchmark
+	public EarthquakeStore encodeIntoStore() {
+		return EarthquakeStore.of(mEarthquakes);
+	}
+}
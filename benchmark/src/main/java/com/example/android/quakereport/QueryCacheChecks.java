@@ -0,0 +1,148 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Drives {@link QueryCache} through {@link QueryUtils} against a local {@link UsgsStubServer}
+ * and exits with status 1 if it misbehaves: unchanged responses must be revalidated rather
+ * than downloaded or parsed again, validators must survive a restart, the directory must stay
+ * under its byte bound, and unfinished entries must leave nothing behind.
+ */
+final class QueryCacheChecks {
+
+	private final UsgsStubServer mServer;
+
+	private final String mBaseUrl;
+
+	private int mFailed;
+
+	private QueryCacheChecks(UsgsStubServer server, String baseUrl) {
+		mServer = server;
+		mBaseUrl = baseUrl;
+	}
+
+	public static void main(String[] args) throws Exception {
+		UsgsStubServer server = new UsgsStubServer(Collections.singletonList(Fixtures.load(50)),
+				0, 0, 0, 1);
+		QueryCacheChecks checks = new QueryCacheChecks(server, server.start());
+		QueryUtils.setTransport(new UrlConnectionTransport());
+		File directory = File.createTempFile("query-cache", "");
+		try {
+			if (!directory.delete() || !directory.mkdir()) {
+				throw new IOException("Could not create " + directory);
+			}
+			checks.revalidatesUnchangedResponses(new File(directory, "revalidate"));
+			checks.staysUnderByteBound(new File(directory, "bound"));
+			checks.abortedEntriesLeaveNothing(new File(directory, "abort"));
+		} finally {
+			server.stop();
+			deleteRecursively(directory);
+		}
+		System.exit(checks.mFailed == 0 ? 0 : 1);
+	}
+
+	private void revalidatesUnchangedResponses(File directory) throws IOException {
+		QueryCache cache = new QueryCache(directory, 10 * 1024 * 1024);
+		String url = pageUrl(0);
+		List<Earthquake> first = QueryUtils.fetchEarthquakes(url, cache);
+		QueryCache.Entry entry = cache.get(QueryCache.normalizeKey(url));
+		check("a response with an ETag is stored", entry != null && entry.eTag != null);
+
+		int notModified = mServer.getNotModified();
+		List<Earthquake> second = QueryUtils.fetchEarthquakes(url, cache);
+		check("the stored ETag is sent back and answered with 304",
+				mServer.getNotModified() == notModified + 1);
+		// The very list parsed the first time, so nothing was read or parsed for the 304
+		check("a 304 serves the parsed list without reading or parsing", second == first);
+
+		// As after a restart: the validators come from disk, and only the body is parsed
+		QueryCache reopened = new QueryCache(directory, 10 * 1024 * 1024);
+		List<Earthquake> third = QueryUtils.fetchEarthquakes(url, reopened);
+		check("validators survive a restart", mServer.getNotModified() == notModified + 2);
+		check("the stored body is served after a restart", third.size() == first.size());
+	}
+
+	private void staysUnderByteBound(File directory) throws IOException {
+		QueryCache probe = new QueryCache(new File(directory, "probe"), 10 * 1024 * 1024);
+		QueryUtils.fetchEarthquakes(pageUrl(0), probe);
+		long entryBytes = probe.get(QueryCache.normalizeKey(pageUrl(0))).length;
+
+		// Room for two and a half entries
+		long maxBytes = entryBytes * 5 / 2;
+		File bounded = new File(directory, "bounded");
+		QueryCache cache = new QueryCache(bounded, maxBytes);
+		boolean underBound = true;
+		for (int page = 0; page < 6; page++) {
+			QueryUtils.fetchEarthquakes(pageUrl(page), cache);
+			underBound &= directoryBytes(bounded) <= maxBytes;
+		}
+		check("the directory stays under its byte bound", underBound);
+		check("the least recently used entries are evicted",
+				cache.get(QueryCache.normalizeKey(pageUrl(0))) == null);
+		check("the most recently used entries are kept",
+				cache.get(QueryCache.normalizeKey(pageUrl(5))) != null
+						&& cache.get(QueryCache.normalizeKey(pageUrl(4))) != null);
+	}
+
+	private void abortedEntriesLeaveNothing(File directory) throws IOException {
+		QueryCache cache = new QueryCache(directory, 10 * 1024 * 1024);
+		String key = QueryCache.normalizeKey(pageUrl(0));
+		QueryCache.Editor editor = cache.edit(key, "\"aborted\"", null);
+		InputStream body = editor.tee(new ByteArrayInputStream(Fixtures.load(50)));
+		byte[] buffer = new byte[1024];
+		body.read(buffer);
+		editor.abort();
+		check("an aborted entry isn't published", cache.get(key) == null);
+		check("an aborted entry leaves no file", directoryBytes(directory) == 0);
+
+		editor = cache.edit(key, "\"committed\"", null);
+		body = editor.tee(new ByteArrayInputStream(Fixtures.load(50)));
+		while (body.read(buffer) != -1) {
+			// Copied into the entry as it is read
+		}
+		editor.commit(null);
+		QueryCache.Entry entry = cache.get(key);
+		check("a committed entry is published", entry != null
+				&& "\"committed\"".equals(entry.eTag));
+		File[] files = directory.listFiles();
+		check("a committed entry leaves only its file", files != null && files.length == 1);
+	}
+
+	private String pageUrl(int page) {
+		return new EarthquakeQuery(2.5, EarthquakeQuery.ORDER_BY_TIME)
+				.toUrl(mBaseUrl, page * 50, 50);
+	}
+
+	private static long directoryBytes(File directory) {
+		long bytes = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				bytes += file.length();
+			}
+		}
+		return bytes;
+	}
+
+	private void check(String name, boolean passed) {
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+		if (!passed) {
+			mFailed++;
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
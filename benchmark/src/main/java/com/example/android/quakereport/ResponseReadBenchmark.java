@@ -0,0 +1,85 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reading a response body off its stream, before any parsing: the bytes as they arrive, the
+ * gzipped bytes the transport inflates, and the characters the parser decodes from them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseReadBenchmark {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Param({"20", "1000", "20000", "100000"})
+	public int features;
+
+	private byte[] mBody;
+
+	private byte[] mGzippedBody;
+
+	private final byte[] mBuffer = new byte[8 * 1024];
+
+	private final char[] mChars = new char[8 * 1024];
+
+	@Setup
+	public void setUp() throws IOException {
+		mBody = Fixtures.load(features);
+		mGzippedBody = Fixtures.gzip(mBody);
+	}
+
+	@Benchmark
+	public long readBytes() throws IOException {
+		return drain(new ByteArrayInputStream(mBody));
+	}
+
+	@Benchmark
+	public long readGzippedBytes() throws IOException {
+		return drain(new GZIPInputStream(new ByteArrayInputStream(mGzippedBody)));
+	}
+
+	@Benchmark
+	public long decodeGzippedChars() throws IOException {
+		Reader reader = new InputStreamReader(
+				new GZIPInputStream(new ByteArrayInputStream(mGzippedBody)), UTF_8);
+		long total = 0;
+		int count;
+		while ((count = reader.read(mChars)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+
+	private long drain(InputStream in) throws IOException {
+		long total = 0;
+		int count;
+		while ((count = in.read(mBuffer)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,437 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the app's whole query path, from a page URL through the {@link RequestCoalescer},
+ * {@link QueryCache} and {@link ResilientTransport} to formatted rows, against a local
+ * {@link UsgsStubServer}, under sustained and concurrent load. Each scenario reports its
+ * throughput, load latencies, GC time and peak heap, and the results can be checked against
+ * those of an earlier run to catch regressions.
+ * <p>
+ * Arguments are {@code name=value} pairs:
+ * <ul>
+ * <li>{@code include}: regular expression picking the scenarios to run</li>
+ * <li>{@code scale}: multiplies the loads of every scenario, for longer soaks</li>
+ * <li>{@code feeds}: directory of recorded GeoJSON responses to replay instead of the
+ * synthetic ones</li>
+ * <li>{@code out}: CSV file to write the results to</li>
+ * <li>{@code baseline}: CSV file of an earlier run; the harness exits with status 1 if any
+ * scenario's throughput fell or its 99th percentile rose by more than {@code tolerance}, a
+ * fraction that defaults to 0.25</li>
+ * </ul>
+ * Queries are picked from seeded random sequences, so every run asks for the same pages.
+ */
+final class SoakHarness {
+
+	/**
+	 * As {@link EarthquakeLoader} pages
+	 */
+	private static final int PAGE_SIZE = 50;
+
+	private static final double[] MIN_MAGNITUDES = {2.5, 3.0, 4.5, 6.0};
+
+	private static final String[] ORDERS = {
+			EarthquakeQuery.ORDER_BY_MAGNITUDE, EarthquakeQuery.ORDER_BY_TIME
+	};
+
+	private static final String CSV_HEADER = "scenario,loads,seconds,loads_per_s,p50_ms,p99_ms,"
+			+ "max_ms,failed,requests,not_modified,gc_count,gc_ms,peak_heap_mb";
+
+	/**
+	 * One workload against one server
+	 */
+	static final class Scenario {
+		final String name;
+
+		/**
+		 * Threads loading at once
+		 */
+		final int workers;
+
+		final int loadsPerWorker;
+
+		/**
+		 * Pages the workers pick from; the fewer, the more loads the coalescer and the
+		 * response cache answer
+		 */
+		final int distinctPages;
+
+		/**
+		 * Earthquakes per synthetic response
+		 */
+		final int features;
+
+		final int latencyMillis;
+
+		final int jitterMillis;
+
+		/**
+		 * Bandwidth per response in KB/s, or 0 for unlimited
+		 */
+		final int kilobytesPerSecond;
+
+		Scenario(String name, int workers, int loadsPerWorker, int distinctPages, int features,
+		         int latencyMillis, int jitterMillis, int kilobytesPerSecond) {
+			this.name = name;
+			this.workers = workers;
+			this.loadsPerWorker = loadsPerWorker;
+			this.distinctPages = distinctPages;
+			this.features = features;
+			this.latencyMillis = latencyMillis;
+			this.jitterMillis = jitterMillis;
+			this.kilobytesPerSecond = kilobytesPerSecond;
+		}
+	}
+
+	private static final List<Scenario> SCENARIOS = Arrays.asList(
+			// Paging through one query on a good connection
+			new Scenario("paging", 1, 200, 400, 50, 20, 10, 0),
+			// Several loaders and syncs at once, often asking for the same pages
+			new Scenario("concurrent", 8, 100, 40, 50, 50, 50, 0),
+			// Mobile network: slow to answer, slow to download
+			new Scenario("slow-network", 4, 40, 200, 50, 300, 200, 64),
+			// Superset fetches for the query engine
+			new Scenario("superset", 2, 5, 10, 20_000, 100, 50, 2_048),
+			// Sustained reloads of a handful of pages, answered by the coalescer and, once its
+			// results go stale, revalidated against the response cache
+			new Scenario("soak", 4, 1_000, 20, 1_000, 10, 10, 0)
+	);
+
+	/**
+	 * What one scenario measured
+	 */
+	static final class Result {
+		String scenario;
+		int loads;
+		double seconds;
+		double loadsPerSecond;
+		double p50Millis;
+		double p99Millis;
+		double maxMillis;
+		int failed;
+		int requests;
+		int notModified;
+		long gcCount;
+		long gcMillis;
+		double peakHeapMegabytes;
+
+		String toCsv() {
+			return String.format(Locale.US, "%s,%d,%.3f,%.2f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%.1f",
+					scenario, loads, seconds, loadsPerSecond, p50Millis, p99Millis, maxMillis,
+					failed, requests, notModified, gcCount, gcMillis, peakHeapMegabytes);
+		}
+
+		static Result fromCsv(String line) {
+			String[] fields = line.split(",");
+			Result result = new Result();
+			result.scenario = fields[0];
+			result.loadsPerSecond = Double.parseDouble(fields[3]);
+			result.p99Millis = Double.parseDouble(fields[5]);
+			return result;
+		}
+	}
+
+	private SoakHarness() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		String include = options.containsKey("include") ? options.get("include") : ".*";
+		double scale = options.containsKey("scale")
+				? Double.parseDouble(options.get("scale"))
+				: 1;
+		List<byte[]> recorded = options.containsKey("feeds")
+				? loadFeeds(new File(options.get("feeds")))
+				: null;
+
+		// Let the JIT compile the parser and transport before anything is measured
+		run(new Scenario("warmup", 2, 100, 20, 1_000, 0, 0, 0), 1, recorded);
+
+		List<Result> results = new ArrayList<>();
+		System.out.println(CSV_HEADER);
+		for (Scenario scenario : SCENARIOS) {
+			if (scenario.name.matches(include)) {
+				Result result = run(scenario, scale, recorded);
+				results.add(result);
+				System.out.println(result.toCsv());
+			}
+		}
+
+		if (options.containsKey("out")) {
+			File out = new File(options.get("out"));
+			if (out.getParentFile() != null) {
+				out.getParentFile().mkdirs();
+			}
+			PrintWriter writer = new PrintWriter(out, "UTF-8");
+			try {
+				writer.println(CSV_HEADER);
+				for (Result result : results) {
+					writer.println(result.toCsv());
+				}
+			} finally {
+				writer.close();
+			}
+		}
+
+		if (options.containsKey("baseline")) {
+			double tolerance = options.containsKey("tolerance")
+					? Double.parseDouble(options.get("tolerance"))
+					: 0.25;
+			if (!compare(results, new File(options.get("baseline")), tolerance)) {
+				System.exit(1);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static Result run(Scenario scenario, double scale, List<byte[]> recorded)
+			throws Exception {
+		List<byte[]> feeds = recorded != null
+				? recorded
+				: Arrays.asList(Fixtures.load(scenario.features));
+		UsgsStubServer server = new UsgsStubServer(feeds, scenario.latencyMillis,
+				scenario.jitterMillis, scenario.kilobytesPerSecond * 1024L,
+				scenario.name.hashCode());
+		final String baseUrl = server.start();
+		File cacheDirectory = createTempDirectory();
+
+		// Nothing learned or cached in one scenario carries over to the next; the server's
+		// new port keeps the coalescer's fresh results from matching too
+		RequestLatencies requestLatencies = new RequestLatencies();
+		QueryUtils.setTransport(new ResilientTransport(
+				new UrlConnectionTransport(requestLatencies, Metrics.transportListener()),
+				requestLatencies));
+		final QueryCache cache = new QueryCache(cacheDirectory, 10 * 1024 * 1024);
+
+		final int loadsPerWorker = Math.max(1, (int) Math.round(scenario.loadsPerWorker * scale));
+		final int distinctPages = scenario.distinctPages;
+		final Histogram latencies = new Histogram();
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch ready = new CountDownLatch(scenario.workers);
+		final CountDownLatch go = new CountDownLatch(1);
+		Thread[] workers = new Thread[scenario.workers];
+		for (int i = 0; i < workers.length; i++) {
+			final int worker = i;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(worker);
+					EarthquakeFormatter formatter = newFormatter();
+					ready.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int load = 0; load < loadsPerWorker; load++) {
+						String url = pageUrl(baseUrl, random.nextInt(distinctPages));
+						long start = System.nanoTime();
+						List<Earthquake> page = QueryUtils.fetchEarthquakeData(url, cache);
+						if (page == null) {
+							failed.incrementAndGet();
+						} else {
+							formatter.format(page);
+						}
+						latencies.record(System.nanoTime() - start);
+					}
+				}
+			}, "soak-" + i);
+			workers[i].start();
+		}
+		ready.await();
+
+		System.gc();
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long start = System.nanoTime();
+		go.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Result result = new Result();
+		result.scenario = scenario.name;
+		result.gcCount = gcCount() - gcCount;
+		result.gcMillis = gcMillis() - gcMillis;
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			// The pools peak at different times, so this is an upper bound
+			peakHeap += pool.getPeakUsage().getUsed();
+		}
+		result.peakHeapMegabytes = peakHeap / (1024.0 * 1024.0);
+		Histogram.Snapshot snapshot = latencies.snapshot();
+		result.loads = (int) snapshot.count;
+		result.seconds = seconds;
+		result.loadsPerSecond = snapshot.count / seconds;
+		result.p50Millis = snapshot.valueAt(0.5) / 1e6;
+		result.p99Millis = snapshot.valueAt(0.99) / 1e6;
+		result.maxMillis = snapshot.max / 1e6;
+		result.failed = failed.get();
+		result.requests = server.getRequests();
+		result.notModified = server.getNotModified();
+
+		server.stop();
+		deleteRecursively(cacheDirectory);
+		return result;
+	}
+
+	/**
+	 * Return the URL of page {@code index} of the workload, spread over a few filters and
+	 * both sort orders as settings changes would.
+	 */
+	private static String pageUrl(String baseUrl, int index) {
+		EarthquakeQuery query = new EarthquakeQuery(
+				MIN_MAGNITUDES[index % MIN_MAGNITUDES.length],
+				ORDERS[index / MIN_MAGNITUDES.length % ORDERS.length]);
+		int page = index / (MIN_MAGNITUDES.length * ORDERS.length);
+		return query.toUrl(baseUrl, page * PAGE_SIZE, PAGE_SIZE);
+	}
+
+	private static EarthquakeFormatter newFormatter() {
+		int[] colors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xFF000000 | i * 0x111111;
+		}
+		return new EarthquakeFormatter(colors, "Near the");
+	}
+
+	/**
+	 * Return whether every result is within {@code tolerance} of its baseline, printing those
+	 * that are not. Scenarios missing from either side are skipped.
+	 */
+	private static boolean compare(List<Result> results, File baselineFile, double tolerance)
+			throws IOException {
+		Map<String, Result> baseline = new HashMap<>();
+		BufferedReader reader = new BufferedReader(new FileReader(baselineFile));
+		try {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					Result result = Result.fromCsv(line);
+					baseline.put(result.scenario, result);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		boolean passed = true;
+		for (Result result : results) {
+			Result before = baseline.get(result.scenario);
+			if (before == null) {
+				continue;
+			}
+			if (result.loadsPerSecond < before.loadsPerSecond * (1 - tolerance)) {
+				System.out.printf(Locale.US, "REGRESSION %s: %.2f loads/s, was %.2f%n",
+						result.scenario, result.loadsPerSecond, before.loadsPerSecond);
+				passed = false;
+			}
+			if (result.p99Millis > before.p99Millis * (1 + tolerance)) {
+				System.out.printf(Locale.US, "REGRESSION %s: p99 %.3fms, was %.3fms%n",
+						result.scenario, result.p99Millis, before.p99Millis);
+				passed = false;
+			}
+		}
+		return passed;
+	}
+
+	private static List<byte[]> loadFeeds(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		List<byte[]> feeds = new ArrayList<>();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.getName().endsWith(".geojson") || file.getName().endsWith(".json")) {
+					feeds.add(readFully(file));
+				}
+			}
+		}
+		if (feeds.isEmpty()) {
+			throw new IOException("No .geojson or .json feeds in " + directory);
+		}
+		return feeds;
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("soak-cache", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Could not create " + directory);
+		}
+		return directory;
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,230 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link ResilientTransport}, {@link RetryBudget}, {@link CircuitBreaker} and the
+ * adaptive timeouts of {@link RequestLatencies} through faults injected into a local
+ * {@link UsgsStubServer}, and exits with status 1 if any of them misbehaves. Each check
+ * starts from a transport and latencies of its own.
+ */
+final class TransportChecks {
+
+	/**
+	 * Answers seen before a check relies on the learned latencies
+	 */
+	private static final int WARM_UP_REQUESTS = LatencyTracker.MIN_SAMPLES + 10;
+
+	private static final int LATENCY_MILLIS = 5;
+
+	private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+	private final UsgsStubServer mServer;
+
+	private final URL mPageUrl;
+
+	private int mFailed;
+
+	private TransportChecks(UsgsStubServer server, String baseUrl) throws IOException {
+		mServer = server;
+		mPageUrl = new URL(new EarthquakeQuery(2.5, EarthquakeQuery.ORDER_BY_TIME)
+				.toUrl(baseUrl, 0, 50));
+	}
+
+	public static void main(String[] args) throws Exception {
+		// Large enough that a stall halfway through the body is past what the client buffers
+		UsgsStubServer server = new UsgsStubServer(
+				Collections.singletonList(Fixtures.load(1_000)), LATENCY_MILLIS, 0, 0, 1);
+		TransportChecks checks = new TransportChecks(server, server.start());
+		try {
+			checks.hedgesSlowResponses();
+			checks.retriesServerErrors();
+			checks.retryBudgetLimitsRetries();
+			checks.circuitBreakerOpensAndRecovers();
+			checks.timeoutsFollowLatency();
+			checks.stalledBodyTimesOut();
+		} finally {
+			server.stop();
+		}
+		System.exit(checks.mFailed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * A response slower than the hedge delay is answered by the hedged copy, and the time
+	 * recorded for it includes the wait before the hedge.
+	 */
+	private void hedgesSlowResponses() throws IOException {
+		RequestLatencies latencies = new RequestLatencies();
+		HttpTransport transport = newTransport(latencies, new RetryBudget(1, 100),
+				new CircuitBreaker(5, 30_000));
+		warmUp(transport);
+		LatencyTracker latency = latencies.forUrl(mPageUrl);
+		long hedgeDelayNanos = latency.percentileNanos(0.95);
+
+		int hedged = 10;
+		for (int i = 0; i < hedged; i++) {
+			// The first copy is slow, and its hedge answers at once
+			mServer.injectFaults(UsgsStubServer.Fault.delay(5_000),
+					UsgsStubServer.Fault.delay(0));
+		}
+		int requests = mServer.getRequests();
+		long start = System.nanoTime();
+		for (int i = 0; i < hedged; i++) {
+			fetch(transport);
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		check("hedged answers arrive before the slow copies", millis < 5_000);
+		check("each slow request was sent twice", mServer.getRequests() - requests >= 2 * hedged);
+
+		// Copy answers recorded from their own start would keep the 90th percentile down
+		// with the fast answers
+		check("hedged answers are recorded from the first copy's start",
+				latency.percentileNanos(0.9) >= hedgeDelayNanos);
+	}
+
+	private void retriesServerErrors() throws IOException {
+		HttpTransport transport = newTransport(new RequestLatencies(), new RetryBudget(1, 10),
+				new CircuitBreaker(5, 30_000));
+		mServer.injectFaults(UsgsStubServer.Fault.status(503), UsgsStubServer.Fault.status(503));
+		int requests = mServer.getRequests();
+		int code = fetch(transport);
+		check("a server error is retried until answered", code == 200);
+		check("two errors took three requests", mServer.getRequests() - requests == 3);
+	}
+
+	private void retryBudgetLimitsRetries() throws IOException {
+		HttpTransport transport = newTransport(new RequestLatencies(), new RetryBudget(0, 0),
+				new CircuitBreaker(5, 30_000));
+		mServer.injectFaults(UsgsStubServer.Fault.status(503));
+		int requests = mServer.getRequests();
+		int code = fetch(transport);
+		check("without budget a server error is handed back", code == 503);
+		check("without budget nothing is retried", mServer.getRequests() - requests == 1);
+	}
+
+	private void circuitBreakerOpensAndRecovers() throws IOException {
+		CircuitBreaker breaker = new CircuitBreaker(3, 500);
+		HttpTransport transport = newTransport(new RequestLatencies(), new RetryBudget(0, 0),
+				breaker);
+		mServer.injectFaults(UsgsStubServer.Fault.status(503), UsgsStubServer.Fault.status(503),
+				UsgsStubServer.Fault.status(503));
+		for (int i = 0; i < 3; i++) {
+			fetch(transport);
+		}
+		check("repeated failures open the breaker", breaker.isOpen());
+
+		int requests = mServer.getRequests();
+		boolean refused = false;
+		try {
+			fetch(transport);
+		} catch (CircuitBreaker.OpenException e) {
+			refused = true;
+		}
+		check("an open breaker fails requests at once", refused);
+		check("an open breaker sends nothing", mServer.getRequests() == requests);
+
+		sleep(600);
+		check("the probe after the pause is answered", fetch(transport) == 200);
+		check("an answered probe closes the breaker", !breaker.isOpen());
+	}
+
+	/**
+	 * Once fast answers have been learned, a request that doesn't answer gives up long
+	 * before the fixed timeout, and is recorded as taking at least as long as it waited.
+	 */
+	private void timeoutsFollowLatency() throws IOException {
+		RequestLatencies latencies = new RequestLatencies();
+		HttpTransport transport = newTransport(latencies, new RetryBudget(0, 0),
+				new CircuitBreaker(5, 30_000));
+		warmUp(transport);
+		int timeoutMillis = latencies.readTimeoutMillis(mPageUrl);
+		check("the read timeout has come down from the fixed one",
+				timeoutMillis < UrlConnectionTransport.DEFAULT_READ_TIMEOUT_MILLIS);
+
+		mServer.injectFaults(UsgsStubServer.Fault.delay(timeoutMillis * 3));
+		long start = System.nanoTime();
+		boolean timedOut = false;
+		try {
+			fetch(transport);
+		} catch (SocketTimeoutException e) {
+			timedOut = true;
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		check("an unanswered request times out", timedOut);
+		check("it times out after the learned timeout", millis < timeoutMillis * 2);
+		check("the time waited is recorded", latencies.forUrl(mPageUrl).percentileNanos(1)
+				>= TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	private void stalledBodyTimesOut() throws IOException {
+		RequestLatencies latencies = new RequestLatencies();
+		HttpTransport transport = newTransport(latencies, new RetryBudget(0, 0),
+				new CircuitBreaker(5, 30_000));
+		warmUp(transport);
+		int timeoutMillis = latencies.readTimeoutMillis(mPageUrl);
+
+		mServer.injectFaults(UsgsStubServer.Fault.stall(timeoutMillis * 3));
+		long start = System.nanoTime();
+		boolean timedOut = false;
+		try {
+			fetch(transport);
+		} catch (SocketTimeoutException e) {
+			timedOut = true;
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		check("a body stalled halfway times out", timedOut);
+		check("the stall is cut short by the learned timeout", millis < timeoutMillis * 2);
+	}
+
+	private static HttpTransport newTransport(RequestLatencies latencies, RetryBudget budget,
+	                                          CircuitBreaker breaker) {
+		return new ResilientTransport(new UrlConnectionTransport(latencies, null), latencies,
+				budget, breaker);
+	}
+
+	private void warmUp(HttpTransport transport) throws IOException {
+		for (int i = 0; i < WARM_UP_REQUESTS; i++) {
+			fetch(transport);
+		}
+	}
+
+	/**
+	 * Send the page request, read its body to the end and return its status.
+	 */
+	private int fetch(HttpTransport transport) throws IOException {
+		HttpTransport.Response response = transport.get(mPageUrl, NO_HEADERS, null);
+		try {
+			if (response.code() == 200) {
+				InputStream body = response.body();
+				byte[] buffer = new byte[8 * 1024];
+				while (body.read(buffer) != -1) {
+					// Only the timing matters
+				}
+			}
+			return response.code();
+		} finally {
+			response.close();
+		}
+	}
+
+	private void check(String name, boolean passed) {
+		System.out.println((passed ? "ok     " : "FAILED ") + name);
+		if (!passed) {
+			mFailed++;
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
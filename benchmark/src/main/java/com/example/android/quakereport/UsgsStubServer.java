@@ -0,0 +1,246 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the USGS query endpoint, serving GeoJSON feeds from memory on the
+ * loopback interface. Each distinct query always gets the same feed, picked by its query
+ * string. Responses are gzipped when asked, carry an {@code ETag} and answer a matching
+ * {@code If-None-Match} with 304, as the real service does.
+ * <p>
+ * Every response first waits the configured latency, plus a random part up to the jitter,
+ * and then sends its body no faster than the configured bandwidth. Faults injected with
+ * {@link #injectFaults} go wrong with the next responses, one each, in the order given.
+ */
+final class UsgsStubServer {
+
+	static final String QUERY_PATH = "/fdsnws/event/1/query";
+
+	/**
+	 * Bytes written between checks on the bandwidth
+	 */
+	private static final int CHUNK_BYTES = 4 * 1024;
+
+	static {
+		// Otherwise the body waits for the client to acknowledge the headers, which it delays
+		// by up to 40ms, and every response looks that much slower than USGS would be
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/**
+	 * What goes wrong with one response
+	 */
+	static final class Fault {
+		/**
+		 * Status sent instead of the feed, or 0 to send the feed
+		 */
+		final int status;
+
+		/**
+		 * Wait before the headers, on top of the latency
+		 */
+		final int delayMillis;
+
+		/**
+		 * Pause halfway through the body
+		 */
+		final int stallMillis;
+
+		private Fault(int status, int delayMillis, int stallMillis) {
+			this.status = status;
+			this.delayMillis = delayMillis;
+			this.stallMillis = stallMillis;
+		}
+
+		/**
+		 * Answer with {@code status} and an empty body.
+		 */
+		static Fault status(int status) {
+			return new Fault(status, 0, 0);
+		}
+
+		/**
+		 * Wait {@code millis} longer before answering.
+		 */
+		static Fault delay(int millis) {
+			return new Fault(0, millis, 0);
+		}
+
+		/**
+		 * Stop sending for {@code millis} halfway through the body.
+		 */
+		static Fault stall(int millis) {
+			return new Fault(0, 0, millis);
+		}
+	}
+
+	private final byte[][] mFeeds;
+
+	private final byte[][] mGzippedFeeds;
+
+	private final int mLatencyMillis;
+
+	private final int mJitterMillis;
+
+	private final long mBytesPerSecond;
+
+	private final long mSeed;
+
+	private final AtomicInteger mRequests = new AtomicInteger();
+
+	private final AtomicInteger mNotModified = new AtomicInteger();
+
+	private final Queue<Fault> mFaults = new ConcurrentLinkedQueue<>();
+
+	private HttpServer mServer;
+
+	private ExecutorService mExecutor;
+
+	/**
+	 * @param bytesPerSecond body bandwidth per response, or 0 for as fast as the loopback goes
+	 */
+	UsgsStubServer(List<byte[]> feeds, int latencyMillis, int jitterMillis, long bytesPerSecond,
+	               long seed) throws IOException {
+		mFeeds = feeds.toArray(new byte[feeds.size()][]);
+		mGzippedFeeds = new byte[mFeeds.length][];
+		for (int i = 0; i < mFeeds.length; i++) {
+			mGzippedFeeds[i] = Fixtures.gzip(mFeeds[i]);
+		}
+		mLatencyMillis = latencyMillis;
+		mJitterMillis = jitterMillis;
+		mBytesPerSecond = bytesPerSecond;
+		mSeed = seed;
+	}
+
+	/**
+	 * Start serving on a free port, and return the query endpoint's URL.
+	 */
+	String start() throws IOException {
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+		// A thread per open request, so the server never limits the concurrency measured
+		mExecutor = Executors.newCachedThreadPool();
+		mServer.setExecutor(mExecutor);
+		mServer.createContext(QUERY_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		mServer.start();
+		return "http://127.0.0.1:" + mServer.getAddress().getPort() + QUERY_PATH;
+	}
+
+	void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Return how many requests were answered, including the 304s.
+	 */
+	int getRequests() {
+		return mRequests.get();
+	}
+
+	int getNotModified() {
+		return mNotModified.get();
+	}
+
+	/**
+	 * Make the next responses go wrong as {@code faults} say, one fault per response.
+	 */
+	void injectFaults(Fault... faults) {
+		mFaults.addAll(Arrays.asList(faults));
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		int request = mRequests.incrementAndGet();
+		String query = exchange.getRequestURI().getRawQuery();
+		int feed = ((query == null ? 0 : query.hashCode()) & Integer.MAX_VALUE) % mFeeds.length;
+		String eTag = "\"feed-" + feed + "-" + mFeeds[feed].length + "\"";
+
+		// Seeded per request, so a single-threaded run waits the same times every time
+		Random random = new Random(mSeed * 31 + request);
+		sleep(mLatencyMillis + (mJitterMillis > 0 ? random.nextInt(mJitterMillis + 1) : 0));
+
+		Fault fault = mFaults.poll();
+		if (fault != null) {
+			sleep(fault.delayMillis);
+			if (fault.status != 0) {
+				exchange.sendResponseHeaders(fault.status, -1);
+				return;
+			}
+		}
+
+		exchange.getResponseHeaders().set("ETag", eTag);
+		if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			mNotModified.incrementAndGet();
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+		byte[] body = gzip ? mGzippedFeeds[feed] : mFeeds[feed];
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(200, body.length);
+
+		OutputStream out = exchange.getResponseBody();
+		long start = System.nanoTime();
+		boolean stalled = fault == null || fault.stallMillis == 0;
+		for (int offset = 0; offset < body.length; offset += CHUNK_BYTES) {
+			int length = Math.min(CHUNK_BYTES, body.length - offset);
+			if (!stalled && offset + length > body.length / 2) {
+				// Send up to the middle, then stop
+				int half = body.length / 2 - offset;
+				out.write(body, offset, half);
+				out.flush();
+				sleep(fault.stallMillis);
+				out.write(body, offset + half, length - half);
+				out.flush();
+				stalled = true;
+			} else {
+				out.write(body, offset, length);
+				out.flush();
+			}
+			if (mBytesPerSecond > 0) {
+				long due = start + TimeUnit.SECONDS.toNanos(offset + length) / mBytesPerSecond;
+				sleep(TimeUnit.NANOSECONDS.toMillis(due - System.nanoTime()));
+			}
+		}
+		out.close();
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
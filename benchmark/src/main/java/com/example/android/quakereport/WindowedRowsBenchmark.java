@@ -0,0 +1,99 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paging a result set into the rows the list shows, stored on disk with a small memory
+ * budget: appending every page as the loader does, and reading rows from all over the list,
+ * most of which have to come back from disk, as a fast fling would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowedRowsBenchmark {
+
+	private static final int PAGE_SIZE = 50;
+
+	private static final long MEMORY_BYTES = 256 * 1024;
+
+	@Param({"1000", "20000", "100000"})
+	public int features;
+
+	private File mDirectory;
+
+	private List<EarthquakeDisplayRow> mRows;
+
+	private EarthquakeRowFile mFile;
+
+	private WindowedRows mWindowedRows;
+
+	private final Random mRandom = new Random(42);
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] colors = new int[EarthquakeFormatter.MAGNITUDE_BUCKETS];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xff000000 | i * 0x1a1a1a;
+		}
+		mRows = new EarthquakeFormatter(colors, "Near the")
+				.format(Fixtures.parse(Fixtures.load(features)));
+		mDirectory = Files.createTempDirectory("windowed-rows").toFile();
+		mFile = EarthquakeRowFile.create(mDirectory, MEMORY_BYTES);
+		mWindowedRows = appendPages(mFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.close();
+		new File(mDirectory, "earthquake-rows").delete();
+		mDirectory.delete();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int appendAll() throws IOException {
+		EarthquakeRowFile file = EarthquakeRowFile.create(mDirectory, MEMORY_BYTES);
+		try {
+			return appendPages(file).size();
+		} finally {
+			file.close();
+		}
+	}
+
+	@Benchmark
+	public EarthquakeDisplayRow readScattered() {
+		return mWindowedRows.get(mRandom.nextInt(mWindowedRows.size()));
+	}
+
+	private WindowedRows appendPages(EarthquakeRowFile file) throws IOException {
+		WindowedRows rows = WindowedRows.empty(file);
+		List<Integer> replaced = new ArrayList<>();
+		for (int start = 0; start < mRows.size(); start += PAGE_SIZE) {
+			rows = rows.append(mRows.subList(start, Math.min(start + PAGE_SIZE, mRows.size())),
+					replaced);
+		}
+		return rows;
+	}
+}